@@ -0,0 +1,60 @@
+package com.gmail.josephui.simplentpservice.client;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of the Consumer messages by the ConsumerPacketFactory
+ * and the decoding of the Consumer opcodes.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsumerProtocolBenchmark{
+    /**
+     * The opcodes decoded in turn, so that the lookup is not a constant.
+     */
+    private byte[] opcodes;
+
+    private int next;
+
+    @Setup
+    public void setUp(){
+        ConsumerOpcode[] operations = ConsumerOpcode.values();
+        opcodes = new byte[operations.length];
+        for(int i = 0; i < operations.length; i++){
+            opcodes[i] = operations[i].opcode();
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeRegister(){
+        return ConsumerPacketFactory.getRegisterMessagePacket();
+    }
+
+    @Benchmark
+    public byte[] encodeKeepAlive(){
+        return ConsumerPacketFactory.getKeepAliveMessagePacket();
+    }
+
+    @Benchmark
+    public ConsumerOpcode decodeOpcode(){
+        next = (next + 1) % opcodes.length;
+        return ConsumerOpcode.getByOpcode(opcodes[next]);
+    }
+}
@@ -0,0 +1,108 @@
+package com.gmail.josephui.simplentpservice.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the decoding of a read holding many frames by the FrameDecoder,
+ * per frame, alone and followed by the dispatch of each frame to its
+ * OpcodeHandler. Run with -prof gc to check that neither allocates.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecoderBenchmark{
+    /**
+     * The number of frames in the decoded buffer.
+     */
+    private static final int FRAMES = 64;
+
+    /**
+     * Alternating empty frames, like REGISTER and KEEP_ALIVE, and frames
+     * holding a long, like TIME and TIME_REQUEST.
+     */
+    private ByteBuffer buffer;
+
+    private final FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler(){
+        @Override
+        public boolean onFrame(int opcode, ByteBuffer payload){
+            sum += opcode;
+            if(payload.remaining() == 8){
+                sum += payload.getLong();
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Dispatches the same frames through an OpcodeDispatcher, with one
+     * handler per opcode.
+     */
+    private FrameDecoder.FrameHandler dispatchingHandler;
+
+    private long sum;
+
+    @Setup
+    public void setUp(){
+        buffer = ByteBuffer.allocate(FRAMES * 10);
+        for(int i = 0; i < FRAMES; i++){
+            if(i % 2 == 0){
+                buffer.put((byte)1).put((byte)0);
+            }else{
+                buffer.put((byte)2).put((byte)8).putLong(i);
+            }
+        }
+        buffer.flip();
+
+        OpcodeDispatcher<FrameDecoderBenchmark> dispatcher = new OpcodeDispatcher<FrameDecoderBenchmark>();
+        dispatcher.register((byte)1, new OpcodeHandler<FrameDecoderBenchmark>(){
+            @Override
+            public boolean process(FrameDecoderBenchmark benchmark, ByteBuffer payload){
+                benchmark.sum++;
+                return true;
+            }
+        });
+        dispatcher.register((byte)2, new OpcodeHandler<FrameDecoderBenchmark>(){
+            @Override
+            public boolean process(FrameDecoderBenchmark benchmark, ByteBuffer payload){
+                benchmark.sum += payload.getLong();
+                return true;
+            }
+        });
+        dispatchingHandler = dispatcher.bind(this);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() throws IOException{
+        buffer.rewind();
+        FrameDecoder.decode(buffer, handler);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decodeAndDispatch() throws IOException{
+        buffer.rewind();
+        FrameDecoder.decode(buffer, dispatchingHandler);
+        return sum;
+    }
+}
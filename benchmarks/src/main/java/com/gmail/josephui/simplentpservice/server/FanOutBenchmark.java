@@ -0,0 +1,218 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.client.ConsumerOpcode;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full TIME broadcast of the EVENT_LOOP engine over loopback: one
+ * operation ticks every EventLoop and returns once every client has received
+ * its TIME message.
+ *
+ * The clients are bound over 127.0.0.x so that 100000 of them do not run out
+ * of ephemeral ports, each client takes two file descriptors in this process,
+ * so "ulimit -n" has to be raised accordingly for the larger counts.
+ *
+ * The heap taken per connection, both ends included as the clients live in
+ * the same JVM, is printed once the clients have registered, along with the
+ * share of it taken by the SessionTables of the EventLoops.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark{
+    /**
+     * The clients bound to each loopback address.
+     */
+    private static final int CLIENTS_PER_ADDRESS = 20000;
+
+    /**
+     * How long a broadcast may take before the benchmark gives up.
+     */
+    private static final long BROADCAST_TIMEOUT = 30000;
+
+    @Param({"1000", "10000", "100000"})
+    public int clients;
+
+    @Param({"1"})
+    public int eventLoopThreads;
+
+    private ServerSocketChannel serverChannel;
+
+    private EventLoop[] eventLoops;
+
+    private SocketChannel[] clientChannels;
+
+    private Selector clientSelector;
+
+    private ByteBuffer readBuffer;
+
+    /**
+     * The number of the next tick, every tick is due as the minimum time
+     * interval is the default one.
+     */
+    private long tick;
+
+    @Setup
+    public void setUp() throws IOException{
+        ProducerConfig config = new ProducerConfig()
+                .setEngine(ProducerEngine.EVENT_LOOP)
+                .setEventLoopThreads(eventLoopThreads)
+                .setMinTimeInterval((int)Producer.DELAY_BETWEEN_TIME_MESSAGES);
+        OverloadMonitor overloadMonitor = new OverloadMonitor(config);
+        eventLoops = new EventLoop[eventLoopThreads];
+        for(int i = 0; i < eventLoops.length; i++){
+            eventLoops[i] = new EventLoop("EventLoop " + i, config, null, overloadMonitor);
+            eventLoops[i].setDaemon(true);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        eventLoops[0].acceptFrom(serverChannel, eventLoops, null);
+        for(EventLoop eventLoop : eventLoops){
+            eventLoop.start();
+        }
+
+        InetSocketAddress server = (InetSocketAddress)serverChannel.getLocalAddress();
+        long heapBefore = usedHeap();
+        clientSelector = Selector.open();
+        readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        clientChannels = new SocketChannel[clients];
+        ByteBuffer register = ByteBuffer.wrap(new byte[]{ConsumerOpcode.REGISTER.opcode(), 0});
+        for(int i = 0; i < clients; i++){
+            SocketChannel channel = SocketChannel.open();
+            channel.bind(new InetSocketAddress("127.0.0." + (1 + i / CLIENTS_PER_ADDRESS), 0));
+            channel.connect(server);
+            register.clear();
+            channel.write(register);
+            channel.configureBlocking(false);
+            channel.register(clientSelector, SelectionKey.OP_READ);
+            clientChannels[i] = channel;
+        }
+
+        long deadline = System.currentTimeMillis() + BROADCAST_TIMEOUT;
+        while(EventLoop.getClientQueueStats().size() < clients){
+            if(System.currentTimeMillis() > deadline){
+                throw new IllegalStateException("The clients did not register in time");
+            }
+            try{
+                Thread.sleep(10);
+            }catch(InterruptedException ie){
+                throw new IllegalStateException(ie);
+            }
+        }
+        long heapPerClient = (usedHeap() - heapBefore) / clients;
+        long sessionTableBytes = 0;
+        for(EventLoop eventLoop : eventLoops){
+            //Recorded as the channels are registered
+            sessionTableBytes += eventLoop.getStats().snapshotAndReset().getSessionTableBytes();
+        }
+        System.out.println("Heap per connection: " + heapPerClient + " bytes, of which SessionTable: "
+                + sessionTableBytes / clients + " bytes");
+    }
+
+    /**
+     * @return the heap in use after a full collection, in bytes
+     */
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Sends a KEEP_ALIVE from every client so that none of them expire
+     * during the iteration.
+     */
+    @Setup(Level.Iteration)
+    public void keepAlive() throws IOException{
+        ByteBuffer keepAlive = ByteBuffer.wrap(new byte[]{ConsumerOpcode.KEEP_ALIVE.opcode(), 0});
+        for(SocketChannel channel : clientChannels){
+            keepAlive.clear();
+            channel.write(keepAlive);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        for(SocketChannel channel : clientChannels){
+            if(channel != null){
+                channel.close();
+            }
+        }
+        clientSelector.close();
+        serverChannel.close();
+    }
+
+    @Benchmark
+    public void broadcastTimeMessage() throws IOException{
+        if(!broadcast(BROADCAST_TIMEOUT)){
+            throw new IllegalStateException("The broadcast did not complete in time");
+        }
+    }
+
+    /**
+     * Ticks every EventLoop and reads from the clients until each of them
+     * has received a TIME message.
+     *
+     * @param timeout the time in milliseconds to wait for the messages
+     * @return false if not every client received its message in time
+     */
+    private boolean broadcast(long timeout) throws IOException{
+        long expectedBytes = (long)clients * ProducerPacketFactory.TIME_MESSAGE_PACKET_SIZE;
+        long receivedBytes = 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        for(EventLoop eventLoop : eventLoops){
+            eventLoop.tick(System.nanoTime(), tick);
+        }
+        tick++;
+        while(receivedBytes < expectedBytes){
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                return false;
+            }
+            clientSelector.select(remaining);
+            Iterator<SelectionKey> keys = clientSelector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                int read;
+                do{
+                    readBuffer.clear();
+                    read = ((SocketChannel)key.channel()).read(readBuffer);
+                    if(read > 0){
+                        receivedBytes += read;
+                    }
+                }while(read == readBuffer.capacity());
+            }
+        }
+        return true;
+    }
+}
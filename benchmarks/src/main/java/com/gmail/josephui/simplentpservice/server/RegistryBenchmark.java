@@ -0,0 +1,110 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the ClientRegistry and the TimingWheel the way the BLOCKING engine
+ * uses them: several Threads registering clients and rescheduling their
+ * keep-alives while another Thread iterates over the registry for the
+ * broadcast and expires the clients that are due.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RegistryBenchmark{
+    @Param({"10000", "100000"})
+    public int clients;
+
+    private ClientRegistry<Object> registry;
+
+    private TimingWheel<Object> keepAliveWheel;
+
+    private List<TimingWheel.Entry<Object>> entries;
+
+    /**
+     * The simulated time, advanced by every keep-alive.
+     */
+    private long now;
+
+    @Setup
+    public void setUp(){
+        registry = new ClientRegistry<Object>();
+        keepAliveWheel = new TimingWheel<Object>();
+        entries = new ArrayList<TimingWheel.Entry<Object>>(clients);
+        for(int i = 0; i < clients; i++){
+            Object client = new Object();
+            registry.add(i, client);
+            TimingWheel.Entry<Object> entry = keepAliveWheel.newEntry(client);
+            keepAliveWheel.schedule(entry, i);
+            entries.add(entry);
+        }
+        now = clients;
+    }
+
+    /**
+     * Per Thread index into the clients.
+     */
+    @State(Scope.Thread)
+    public static class Cursor{
+        int next;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void registerAndKeepAlive(Cursor cursor){
+        int i = cursor.next;
+        cursor.next = (i + 1) % clients;
+        //Remove and add back, as a reconnecting client would
+        Object client = registry.remove(i);
+        if(client != null){
+            registry.add(i, client);
+        }
+        synchronized(keepAliveWheel){
+            keepAliveWheel.schedule(entries.get(i), ++now);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void iterateAndExpire(Blackhole blackhole){
+        //A slice of the broadcast, followed by the expiry of the tick Thread
+        int visited = 0;
+        for(Object client : registry.clients()){
+            blackhole.consume(client);
+            if(++visited == 64){
+                break;
+            }
+        }
+        //The expired clients are scheduled again by the next keep-alive, so
+        //the population stays stable
+        List<Object> expired = new ArrayList<Object>();
+        synchronized(keepAliveWheel){
+            keepAliveWheel.expireOlderThan(now - clients, expired);
+        }
+        blackhole.consume(expired);
+    }
+}
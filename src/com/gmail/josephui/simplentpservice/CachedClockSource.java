@@ -0,0 +1,80 @@
+package com.gmail.josephui.simplentpservice;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ClockSource whose currentTimeMillis() is read from a volatile field that 
+ * a background Thread refreshes every resolution milliseconds, so that the 
+ * hot paths stamping every KEEP_ALIVE and TIME message read a cached value 
+ * instead of asking the operating system each time. The time read lags 
+ * behind by up to the resolution.
+ * 
+ * nanoTime() and currentTimeNanos() are not cached, the deadlines of the 
+ * DeadlineScheduler and the timestamps of the TIME_RESPONSE messages need 
+ * their precision.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class CachedClockSource extends ClockSource{
+    /**
+     * The default interval between two refreshes, in milliseconds.
+     */
+    public static final long DEFAULT_RESOLUTION = 1;
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private final long resolutionNanos;
+    
+    private volatile long cachedTimeMillis;
+    
+    /**
+     * This Thread refreshes cachedTimeMillis, it is a daemon Thread.
+     */
+    private final Thread cachingClockThread;
+    
+    public CachedClockSource(){
+        this(DEFAULT_RESOLUTION);
+    }
+    
+    /**
+     * @param resolution the interval between two refreshes, in milliseconds
+     */
+    public CachedClockSource(long resolution){
+        if(resolution <= 0){
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        resolutionNanos = resolution * 1000000;
+        cachedTimeMillis = System.currentTimeMillis();
+        
+        //The thread is made on the fly because it's a single purpose thread
+        cachingClockThread = new Thread("cachingClockThread"){
+            @Override
+            public void run(){
+                while(true){
+                    LockSupport.parkNanos(resolutionNanos);
+                    cachedTimeMillis = System.currentTimeMillis();
+                }
+            }
+        };
+        cachingClockThread.setDaemon(true);
+        cachingClockThread.start();
+    }
+    
+    @Override
+    public long currentTimeMillis(){
+        return cachedTimeMillis;
+    }
+    
+    @Override
+    public long currentTimeNanos(){
+        return NanoClock.currentTimeNanos();
+    }
+    
+    @Override
+    public long nanoTime(){
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,63 @@
+package com.gmail.josephui.simplentpservice;
+
+/**
+ * This class provides the enumerate constants for the kind of ClockSource 
+ * the Producer and the Consumers read the time from.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum ClockMode{
+    //The precise wall clock of the system, read on every call
+    SYSTEM,
+    
+    //The wall clock of the system, cached by a background Thread every 
+    //millisecond for the hot paths
+    CACHED,
+    
+    //A clock running faster than real time, for simulating hours of traffic 
+    //in minutes
+    VIRTUAL;
+    
+    /**
+     * The speed of a VIRTUAL clock when none is given, an hour per minute.
+     */
+    public static final double DEFAULT_VIRTUAL_SPEED = 60;
+    
+    /**
+     * Creates the ClockSource of this mode.
+     * 
+     * @param speed how many times faster than real time a VIRTUAL clock 
+     * runs, ignored by the other modes
+     * @return the ClockSource of this mode
+     */
+    public ClockSource newClockSource(double speed){
+        switch(this){
+            case CACHED:
+                return new CachedClockSource();
+            case VIRTUAL:
+                return new VirtualClockSource(speed);
+            default:
+                return ClockSource.getSystemClock();
+        }
+    }
+    
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * Looks up the mode by name, ignoring case.
+     * 
+     * @param name the name of the mode
+     * @return the matching mode, or null if there is none
+     */
+    public static ClockMode getByName(String name){
+        for(ClockMode mode : values()){
+            if(mode.name().equalsIgnoreCase(name)){
+                return mode;
+            }
+        }
+        return null;
+    }
+}
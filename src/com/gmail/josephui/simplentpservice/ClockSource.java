@@ -0,0 +1,130 @@
+package com.gmail.josephui.simplentpservice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The source of every time read by the Producer and the Consumers: the TIME 
+ * messages, the keep-alive stamps, the deadlines of the DeadlineScheduler and 
+ * the delays between retries. The whole application reads the default 
+ * ClockSource, which is set once at startup before anything is started, see 
+ * setDefault(ClockSource).
+ * 
+ * Three sources are provided, see ClockMode: the system clock, a cached 
+ * clock whose currentTimeMillis() is a single volatile read refreshed by a 
+ * background Thread, and a VirtualClockSource that runs faster than real time 
+ * or is advanced by hand, to simulate hours of keep-alive churn in minutes.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public abstract class ClockSource{
+    private static final ClockSource systemClock = new ClockSource(){
+        @Override
+        public long currentTimeMillis(){
+            return System.currentTimeMillis();
+        }
+        
+        @Override
+        public long currentTimeNanos(){
+            return NanoClock.currentTimeNanos();
+        }
+        
+        @Override
+        public long nanoTime(){
+            return System.nanoTime();
+        }
+    };
+    
+    private static volatile ClockSource defaultClock = systemClock;
+    
+    /**
+     * @return the precise wall clock of the system, as System.currentTimeMillis() 
+     * and System.nanoTime()
+     */
+    public static ClockSource getSystemClock(){
+        return systemClock;
+    }
+    
+    /**
+     * @return the ClockSource shared by the whole application, the system 
+     * clock unless another one has been set
+     */
+    public static ClockSource getDefault(){
+        return defaultClock;
+    }
+    
+    /**
+     * Sets the ClockSource shared by the whole application. The Producer and 
+     * the Consumers read it once when they are created, so this has to be 
+     * called before any of them is.
+     * 
+     * @param clock the new default ClockSource
+     */
+    public static void setDefault(ClockSource clock){
+        if(clock == null){
+            throw new IllegalArgumentException("clock must not be null");
+        }
+        defaultClock = clock;
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * @return the milliseconds since the epoch, which may lag behind by the 
+     * resolution of the source
+     */
+    public abstract long currentTimeMillis();
+    
+    /**
+     * @return the nanoseconds since the epoch, as precise as the source 
+     * allows, for the timestamps of the TIME_REQUEST and TIME_RESPONSE 
+     * messages
+     */
+    public abstract long currentTimeNanos();
+    
+    /**
+     * @return a monotonic time in nanoseconds from an arbitrary origin, as 
+     * System.nanoTime()
+     */
+    public abstract long nanoTime();
+    
+    /**
+     * Converts a duration of this clock to the real time it takes to pass, 
+     * for the Threads waiting on a timed park, sleep or select.
+     * 
+     * @param nanos a duration of this clock in nanoseconds
+     * @return the real time in nanoseconds to wait before looking at this 
+     * clock again, the duration itself by default
+     */
+    public long toRealNanos(long nanos){
+        return nanos;
+    }
+    
+    /**
+     * Converts a timeout of this clock to the real timeout of a select() or 
+     * a wait(), which take milliseconds and treat 0 as no timeout.
+     * 
+     * @param millis a duration of this clock in milliseconds, at least 1
+     * @return the real time in milliseconds to wait, at least 1
+     */
+    public long toRealMillis(long millis){
+        return Math.max(1, toRealNanos(millis * 1000000) / 1000000);
+    }
+    
+    /**
+     * Sleeps until the given time of this clock has passed.
+     * 
+     * @param millis the duration in milliseconds of this clock
+     * @throws InterruptedException if the Thread is interrupted while 
+     * sleeping
+     */
+    public void sleep(long millis) throws InterruptedException{
+        long deadlineNanos = nanoTime() + millis * 1000000;
+        long remainingNanos;
+        while((remainingNanos = deadlineNanos - nanoTime()) > 0){
+            TimeUnit.NANOSECONDS.sleep(toRealNanos(remainingNanos));
+        }
+    }
+}
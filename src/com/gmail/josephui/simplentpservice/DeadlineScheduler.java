@@ -0,0 +1,201 @@
+package com.gmail.josephui.simplentpservice;
+
+import com.gmail.josephui.simplentpservice.metrics.Histogram;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This singleton class puts Threads to sleep until a nanoTime() deadline of 
+ * the default ClockSource, it drives the TIME ticks of the Producer and the 
+ * KEEP_ALIVE messages of the Consumers. A sleeping Thread is parked until a 
+ * single scheduler Thread wakes it at its deadline, so thousands of sleeping 
+ * Consumers cost no wakeups in between, and only the scheduler Thread needs 
+ * to be precise: it parks until shortly before the earliest deadline and, if 
+ * a spin time is set, spins for the rest.
+ * 
+ * How late each Thread actually wakes up is recorded, see getJitterMicros().
+ * 
+ * The clock is read anew on every call, and the parks are converted to real 
+ * time by ClockSource.toRealNanos(long), so the scheduler keeps up with a 
+ * VirtualClockSource running faster than real time.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class DeadlineScheduler{
+    private static final DeadlineScheduler instance = new DeadlineScheduler();
+    
+    /**
+     * @return the DeadlineScheduler shared by the whole application
+     */
+    public static DeadlineScheduler getInstance(){
+        return instance;
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * The sleeping Threads by deadline, guarded by this DeadlineScheduler's 
+     * monitor.
+     */
+    private final PriorityQueue<Sleeper> sleepers;
+    
+    /**
+     * This Thread wakes the sleeping Threads at their deadlines, it is only 
+     * started once a Thread first sleeps.
+     */
+    private final Thread wakingSleepersThread;
+    
+    private boolean started;
+    
+    /**
+     * How long before a deadline the wakingSleepersThread stops parking and 
+     * spins instead, in nanoseconds.
+     */
+    private volatile long spinNanos;
+    
+    /**
+     * How late the sleeping Threads woke up after their deadline, in 
+     * microseconds.
+     */
+    private final Histogram jitterMicros;
+    
+    private DeadlineScheduler(){
+        sleepers = new PriorityQueue<Sleeper>(64, new Comparator<Sleeper>(){
+            @Override
+            public int compare(Sleeper a, Sleeper b){
+                //nanoTime values may overflow, only their difference counts
+                return Long.signum(a.deadlineNanos - b.deadlineNanos);
+            }
+        });
+        jitterMicros = new Histogram();
+        
+        //The thread is made on the fly because it's a single purpose thread
+        wakingSleepersThread = new Thread("wakingSleepersThread"){
+            @Override
+            public void run(){
+                while(true){
+                    wakeDueSleepers();
+                }
+            }
+        };
+        wakingSleepersThread.setDaemon(true);
+    }
+    
+    /**
+     * Parks the calling Thread until deadlineNanos, returning at once if it 
+     * has already passed.
+     * 
+     * @param deadlineNanos the ClockSource.getDefault().nanoTime() to wake up 
+     * at
+     * @throws InterruptedException if the Thread is interrupted while sleeping
+     */
+    public void sleepUntil(long deadlineNanos) throws InterruptedException{
+        ClockSource clock = ClockSource.getDefault();
+        if(deadlineNanos - clock.nanoTime() <= 0){
+            return;
+        }
+        Sleeper sleeper = new Sleeper(Thread.currentThread(), deadlineNanos);
+        synchronized(this){
+            if(!started){
+                wakingSleepersThread.start();
+                started = true;
+            }
+            sleepers.add(sleeper);
+            if(sleepers.peek() == sleeper){
+                //The wakingSleepersThread may be parked until a later deadline
+                LockSupport.unpark(wakingSleepersThread);
+            }
+        }
+        while(!sleeper.woken){
+            LockSupport.park(this);
+            if(Thread.interrupted()){
+                synchronized(this){
+                    sleepers.remove(sleeper);
+                }
+                throw new InterruptedException();
+            }
+        }
+        jitterMicros.record((clock.nanoTime() - deadlineNanos) / 1000);
+    }
+    
+    /**
+     * Waits for the earliest deadline and wakes every Thread that is due.
+     */
+    private void wakeDueSleepers(){
+        Sleeper first;
+        synchronized(this){
+            first = sleepers.peek();
+        }
+        if(first == null){
+            LockSupport.park(this);
+            return;
+        }
+        ClockSource clock = ClockSource.getDefault();
+        long deadlineNanos = first.deadlineNanos;
+        long parkNanos = deadlineNanos - clock.nanoTime() - spinNanos;
+        if(parkNanos > 0){
+            //Returns early if an earlier deadline was added
+            LockSupport.parkNanos(this, clock.toRealNanos(parkNanos));
+            return;
+        }
+        while(deadlineNanos - clock.nanoTime() > 0){
+            Thread.onSpinWait();
+        }
+        long now = clock.nanoTime();
+        synchronized(this){
+            Sleeper sleeper;
+            while((sleeper = sleepers.peek()) != null && sleeper.deadlineNanos - now <= 0){
+                sleepers.poll();
+                sleeper.woken = true;
+                LockSupport.unpark(sleeper.thread);
+            }
+        }
+    }
+    
+    /**
+     * Sets how long before a deadline the scheduler stops parking and spins 
+     * instead. Parking may overshoot by tens of microseconds, spinning the 
+     * last few microseconds trades the CPU time of the scheduler Thread for 
+     * precision. The default is 0, no spinning.
+     * 
+     * @param _spinNanos the spin time in nanoseconds
+     */
+    public void setSpinNanos(long _spinNanos){
+        if(_spinNanos < 0){
+            throw new IllegalArgumentException("spinNanos must not be negative");
+        }
+        spinNanos = _spinNanos;
+    }
+    
+    public long getSpinNanos(){
+        return spinNanos;
+    }
+    
+    /**
+     * @return how late the sleeping Threads woke up after their deadline, in 
+     * microseconds
+     */
+    public Histogram getJitterMicros(){
+        return jitterMicros;
+    }
+    
+    /**
+     * A Thread sleeping until its deadline.
+     */
+    private static final class Sleeper{
+        private final Thread thread;
+        
+        private final long deadlineNanos;
+        
+        private volatile boolean woken;
+        
+        private Sleeper(Thread _thread, long _deadlineNanos){
+            thread = _thread;
+            deadlineNanos = _deadlineNanos;
+        }
+    }
+}
@@ -1,8 +1,25 @@
 package com.gmail.josephui.simplentpservice;
 
 import com.gmail.josephui.simplentpservice.client.Consumer;
+import com.gmail.josephui.simplentpservice.client.ConsumerPacketFactory;
+import com.gmail.josephui.simplentpservice.client.Gateway;
+import com.gmail.josephui.simplentpservice.client.LoadGenerator;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.log.LogLevel;
+import com.gmail.josephui.simplentpservice.server.MetricsFormat;
+import com.gmail.josephui.simplentpservice.server.OverloadPolicy;
 import com.gmail.josephui.simplentpservice.server.Producer;
+import com.gmail.josephui.simplentpservice.server.ProducerConfig;
+import com.gmail.josephui.simplentpservice.server.ProducerEngine;
+import com.gmail.josephui.simplentpservice.server.SlowConsumerPolicy;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * This class provides the entry point for the application
@@ -11,13 +28,81 @@ import java.io.IOException;
  * @version 2015.1.17
  */
 public final class Main{
+    private static final Log log = Log.getInstance();
+
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, the number of Consumers 
+     * followed by the options, each given as --name=value:
+     * --engine=blocking|event-loop selects the Producer networking engine
+     * --event-loops=N sets the number of EventLoop Threads
+     * --broadcast-shards=N sets the number of BroadcastShards of the blocking 
+     * engine
+     * --high-water-mark=N sets the number of TIME messages that may be queued 
+     * for a Consumer
+     * --slow-consumer-policy=drop-stale|disconnect|degrade selects what 
+     * happens to a Consumer whose queue is full
+     * --threads=platform|virtual selects the kind of Threads the Producer and 
+     * the Consumers run on
+     * --ntp-port=N also answers standard NTP requests on the UDP port N
+     * --ntp-workers=N sets the number of Threads answering NTP requests
+     * --metrics-interval=N logs the Producer metrics every N seconds, at the 
+     * INFO level
+     * --metrics-format=text|json selects the format of the printed metrics
+     * --multicast-group=ADDRESS:PORT also publishes the TIME messages to the 
+     * multicast group, which the Consumers join after registering
+     * --multicast-interface=NAME sets the network interface the multicast 
+     * group is published on
+     * --port=N sets the port the Producer listens on
+     * --peers=HOST:PORT,... makes the Producer part of a cluster with the 
+     * other Producers listed
+     * --max-clients=N makes the Producer redirect the Consumers that REGISTER 
+     * once it has N of them to a less loaded peer
+     * --accept-backlog=N sets the length of the listen backlog
+     * --acceptors=N sets the number of Threads accepting the connections
+     * --admission-rate=N accepts at most N connections per second, the others 
+     * wait in the listen backlog
+     * --admission-burst=N sets the most connections accepted at once at the 
+     * admission rate
+     * --overload-policies=reject-register,throttle-low-priority,skip-stale-ticks|none 
+     * selects what the Producer does once its ticks take longer than their 
+     * budget, skip-stale-ticks by default
+     * --overload-threshold=N sets the budget of a tick, N percent of the tick 
+     * interval
+     * --retry-after=N sets the milliseconds an overloaded Producer tells the 
+     * rejected Consumers to wait before registering again
+     * --min-time-interval=N sets the shortest interval in milliseconds a 
+     * Consumer may receive the TIME message at, which is also the interval 
+     * the Producer ticks at
+     * --max-time-interval=N sets the longest interval in milliseconds a 
+     * Consumer may receive the TIME message at
+     * --time-interval=N makes the Consumers ask for the TIME message every N 
+     * milliseconds instead of the default interval
+     * --compact-time makes the Consumers ask for the TIME messages in the 
+     * compact format, as varint deltas with a periodic full time
+     * --time-batch=N makes the Consumers let the Producer write N TIME 
+     * messages at once
+     * --low-priority makes the Consumers register as low priority, they 
+     * receive fewer TIME messages from an overloaded Producer
+     * --producer-only starts the Producer alone, without any Consumer, in 
+     * which case the number of Consumers is not given
+     * --servers=HOST:PORT,... starts the Consumers alone, connected to the 
+     * Producers listed instead of one started along with them
+     * --scheduler-spin-us=N makes the DeadlineScheduler spin for the last N 
+     * microseconds before each deadline
+     * --clock=system|cached|virtual sets the ClockSource every time is read 
+     * from, a virtual clock runs faster than real time to simulate hours of 
+     * traffic in minutes
+     * --clock-speed=N sets how many times faster than real time the virtual 
+     * clock runs, ClockMode.DEFAULT_VIRTUAL_SPEED by default
+     * --load-generator simulates the Consumers with a LoadGenerator, which 
+     * takes the options described in LoadGenerator.main(String[])
+     * --gateways=N starts N Gateways instead, which carry the Consumers as 
+     * logical Consumers over a single connection each
+     * --log-level=error|warn|info|debug sets the least severe messages 
+     * printed, info prints the TIME messages received and debug the progress 
+     * of every Thread as well
      */
     public static void main(String[] args){
-        //Load test mode argument, or use args if test mode is off
-        args = TestMod.getArgs(args);
-        
         //This checks if the user has supplied a command line argument
         if(args.length == 0){
             System.err.println("Please provide the number of Consumers to start");
@@ -26,37 +111,394 @@ public final class Main{
         
         //This checks if the users has supplied a valid number in the command 
         //line argument
+        boolean producerOnly = hasFlag(args, "producer-only");
         int numConsumers = 0;
+        if(!producerOnly){
+            try{
+                numConsumers = Integer.parseInt(args[0]);
+                if(numConsumers <= 0){
+                    throw new NumberFormatException();
+                }
+            }catch(NumberFormatException nfe){
+                System.err.println("Please enter a valid number of Consumers");
+                return;
+            }
+        }
+        
+        //Read the Producer settings from the options, if any
+        ProducerConfig config = new ProducerConfig();
         try{
-            numConsumers = Integer.parseInt(args[0]);
-            if(numConsumers <= 0){
-                throw new NumberFormatException();
+            String logLevelName = getOption(args, "log-level");
+            if(logLevelName != null){
+                LogLevel logLevel = LogLevel.getByName(logLevelName);
+                if(logLevel == null){
+                    throw new IllegalArgumentException("Unknown log level: " + logLevelName);
+                }
+                log.setLevel(logLevel);
+            }
+            String engineName = getOption(args, "engine");
+            if(engineName != null){
+                ProducerEngine engine = ProducerEngine.getByName(engineName);
+                if(engine == null){
+                    throw new IllegalArgumentException("Unknown engine: " + engineName);
+                }
+                config.setEngine(engine);
+            }
+            String eventLoops = getOption(args, "event-loops");
+            if(eventLoops != null){
+                config.setEventLoopThreads(Integer.parseInt(eventLoops));
+            }
+            String broadcastShards = getOption(args, "broadcast-shards");
+            if(broadcastShards != null){
+                config.setBroadcastShards(Integer.parseInt(broadcastShards));
+            }
+            String highWaterMark = getOption(args, "high-water-mark");
+            if(highWaterMark != null){
+                config.setOutboundHighWaterMark(Integer.parseInt(highWaterMark));
+            }
+            String policyName = getOption(args, "slow-consumer-policy");
+            if(policyName != null){
+                SlowConsumerPolicy policy = SlowConsumerPolicy.getByName(policyName);
+                if(policy == null){
+                    throw new IllegalArgumentException("Unknown slow consumer policy: " + policyName);
+                }
+                config.setSlowConsumerPolicy(policy);
+            }
+            String threadModeName = getOption(args, "threads");
+            if(threadModeName != null){
+                ThreadMode threadMode = ThreadMode.getByName(threadModeName);
+                if(threadMode == null){
+                    throw new IllegalArgumentException("Unknown thread mode: " + threadModeName);
+                }
+                config.setThreadMode(threadMode);
+            }
+            String ntpPort = getOption(args, "ntp-port");
+            if(ntpPort != null){
+                config.setNtpPort(Integer.parseInt(ntpPort));
+            }
+            String ntpWorkers = getOption(args, "ntp-workers");
+            if(ntpWorkers != null){
+                config.setNtpWorkers(Integer.parseInt(ntpWorkers));
+            }
+            String metricsInterval = getOption(args, "metrics-interval");
+            if(metricsInterval != null){
+                config.setMetricsInterval(Integer.parseInt(metricsInterval));
+            }
+            String metricsFormatName = getOption(args, "metrics-format");
+            if(metricsFormatName != null){
+                MetricsFormat metricsFormat = MetricsFormat.getByName(metricsFormatName);
+                if(metricsFormat == null){
+                    throw new IllegalArgumentException("Unknown metrics format: " + metricsFormatName);
+                }
+                config.setMetricsFormat(metricsFormat);
+            }
+            String multicastGroup = getOption(args, "multicast-group");
+            if(multicastGroup != null){
+                config.setMulticastGroup(getSocketAddress(multicastGroup, "multicast-group"));
+            }
+            String multicastInterface = getOption(args, "multicast-interface");
+            if(multicastInterface != null){
+                config.setMulticastInterface(multicastInterface);
+            }
+            String port = getOption(args, "port");
+            if(port != null){
+                config.setPort(Integer.parseInt(port));
+            }
+            String peers = getOption(args, "peers");
+            if(peers != null){
+                config.setPeers(getSocketAddresses(peers, "peers"));
+            }
+            String maxClients = getOption(args, "max-clients");
+            if(maxClients != null){
+                config.setMaxClients(Integer.parseInt(maxClients));
+            }
+            String acceptBacklog = getOption(args, "accept-backlog");
+            if(acceptBacklog != null){
+                config.setAcceptBacklog(Integer.parseInt(acceptBacklog));
+            }
+            String acceptors = getOption(args, "acceptors");
+            if(acceptors != null){
+                config.setAcceptorThreads(Integer.parseInt(acceptors));
+            }
+            String admissionRate = getOption(args, "admission-rate");
+            if(admissionRate != null){
+                config.setAdmissionRate(Integer.parseInt(admissionRate));
             }
-        }catch(NumberFormatException nfe){
-            System.err.println("Please enter a valid number of Consumers");
+            String admissionBurst = getOption(args, "admission-burst");
+            if(admissionBurst != null){
+                config.setAdmissionBurst(Integer.parseInt(admissionBurst));
+            }
+            String overloadPolicies = getOption(args, "overload-policies");
+            if(overloadPolicies != null){
+                Set<OverloadPolicy> policies = EnumSet.noneOf(OverloadPolicy.class);
+                if(!overloadPolicies.equalsIgnoreCase("none")){
+                    for(String overloadPolicyName : overloadPolicies.split(",")){
+                        OverloadPolicy policy = OverloadPolicy.getByName(overloadPolicyName.trim());
+                        if(policy == null){
+                            throw new IllegalArgumentException("Unknown overload policy: " + overloadPolicyName);
+                        }
+                        policies.add(policy);
+                    }
+                }
+                config.setOverloadPolicies(policies);
+            }
+            String overloadThreshold = getOption(args, "overload-threshold");
+            if(overloadThreshold != null){
+                config.setOverloadThreshold(Integer.parseInt(overloadThreshold));
+            }
+            String retryAfter = getOption(args, "retry-after");
+            if(retryAfter != null){
+                config.setRetryAfter(Integer.parseInt(retryAfter));
+            }
+            String minTimeInterval = getOption(args, "min-time-interval");
+            if(minTimeInterval != null){
+                config.setMinTimeInterval(Integer.parseInt(minTimeInterval));
+            }
+            String maxTimeInterval = getOption(args, "max-time-interval");
+            if(maxTimeInterval != null){
+                config.setMaxTimeInterval(Integer.parseInt(maxTimeInterval));
+            }
+            String schedulerSpin = getOption(args, "scheduler-spin-us");
+            if(schedulerSpin != null){
+                DeadlineScheduler.getInstance().setSpinNanos(Long.parseLong(schedulerSpin) * 1000);
+            }
+            //The clock is set before the Producer and the Consumers read it
+            configureClock(args);
+        }catch(IllegalArgumentException iae){
+            //This also catches NumberFormatException
+            System.err.println("Invalid option: " + iae.getMessage());
             return;
         }
         
-        //Start the server (Producer)
-        TestMod.printlnIfTest("Main", "Starting Producer");
+        //The Consumers run on the same kind of Threads as the Producer
+        ThreadExecutor executor;
         try{
-            Producer.getInstance().start();
-        }catch(IOException ioe){
-            System.err.println("Unable to init server (Producer)");
+            executor = new ThreadExecutor(config.getThreadMode());
+        }catch(UnsupportedOperationException uoe){
+            System.err.println(uoe.getMessage());
+            return;
+        }
+        
+        //The Consumers connect to the given servers, or to the Producer 
+        //started along with them, failing over to its peers
+        List<InetSocketAddress> servers;
+        String serversOption = getOption(args, "servers");
+        try{
+            if(serversOption != null){
+                servers = getSocketAddresses(serversOption, "servers");
+            }else{
+                servers = new ArrayList<InetSocketAddress>();
+                servers.add(new InetSocketAddress(Consumer.SERVER_ADDRESS, config.getPort()));
+                servers.addAll(config.getPeers());
+            }
+        }catch(IllegalArgumentException iae){
+            System.err.println("Invalid option: " + iae.getMessage());
+            return;
+        }
+        
+        //Start the server (Producer), unless the Consumers are to connect to 
+        //other ones
+        if(serversOption == null){
+            log.debug("Main", "Starting Producer on port {}", config.getPort());
+            try{
+                Producer.getInstance(config).start();
+            }catch(IOException ioe){
+                System.err.println("Unable to init server (Producer)");
+                return;
+            }
+        }
+        if(producerOnly){
+            return;
+        }
+        
+        //Simulate the clients (Consumers) over a few Selector Threads instead 
+        //of starting them, if asked to
+        if(hasFlag(args, "load-generator")){
+            try{
+                LoadGenerator.fromArgs(numConsumers, args).start();
+            }catch(IOException ioe){
+                System.err.println("Unable to start the load generator");
+            }catch(IllegalArgumentException iae){
+                System.err.println("Invalid option: " + iae.getMessage());
+            }
             return;
         }
         
+        //Spread the clients (Consumers) over a few Gateway connections 
+        //instead of starting them, if asked to
+        String gatewaysOption = getOption(args, "gateways");
+        if(gatewaysOption != null){
+            int numGateways;
+            try{
+                numGateways = Integer.parseInt(gatewaysOption);
+                if(numGateways <= 0 || numGateways > numConsumers){
+                    throw new NumberFormatException();
+                }
+            }catch(NumberFormatException nfe){
+                System.err.println("Invalid option: gateways must be between 1 and the number of Consumers");
+                return;
+            }
+            long nextLogicalConsumerId = 1;
+            for(int i = 1; i <= numGateways; i++){
+                //The remainder goes to the first Gateways
+                int logicalConsumers = numConsumers / numGateways + (i <= numConsumers % numGateways ? 1 : 0);
+                log.debug("Main", "Starting Gateway {} with {} logical Consumers", i, logicalConsumers);
+                try{
+                    //Gateways are not redirected, they are spread over the 
+                    //servers instead
+                    new Gateway("Gateway " + i, servers.get((i - 1) % servers.size()), nextLogicalConsumerId, logicalConsumers, executor).start();
+                }catch(IOException ioe){
+                    System.err.println("Error connecting to server (Gateway #" + i + ")");
+                }
+                nextLogicalConsumerId += logicalConsumers;
+            }
+            return;
+        }
+        
+        //The Consumers ask for the default interval unless told otherwise
+        int timeInterval = 0;
+        String timeIntervalOption = getOption(args, "time-interval");
+        if(timeIntervalOption != null){
+            try{
+                timeInterval = Integer.parseInt(timeIntervalOption);
+                if(timeInterval <= 0){
+                    throw new NumberFormatException();
+                }
+            }catch(NumberFormatException nfe){
+                System.err.println("Invalid option: time-interval must be positive");
+                return;
+            }
+        }
+        boolean compactTime = hasFlag(args, "compact-time");
+        boolean lowPriority = hasFlag(args, "low-priority");
+        int timeBatch = 1;
+        String timeBatchOption = getOption(args, "time-batch");
+        if(timeBatchOption != null){
+            try{
+                timeBatch = Integer.parseInt(timeBatchOption);
+                if(timeBatch < 1 || timeBatch > ConsumerPacketFactory.MAX_TIME_BATCH){
+                    throw new NumberFormatException();
+                }
+            }catch(NumberFormatException nfe){
+                System.err.println("Invalid option: time-batch must be between 1 and " + ConsumerPacketFactory.MAX_TIME_BATCH);
+                return;
+            }
+        }
+        
         //Generate the clients (Consumers) and start them
         for(int i = 1; i <= numConsumers; i++){
-            TestMod.printlnIfTest("Main", "Starting Consumer " + i);
+            log.debug("Main", "Starting Consumer {}", i);
             try{
-                new Consumer("Consumer " + i).start();
+                new Consumer("Consumer " + i, executor, servers, timeInterval, compactTime, timeBatch, lowPriority).start();
             }catch(IOException ioe){
                 System.err.println("Error connecting to server (Consumer #" + i + ")");
             }
         }
     }
     
+    /**
+     * Looks up the value of the option given as --name=value in args
+     * 
+     * @param args the command line arguments
+     * @param name the name of the option
+     * @return the value of the option, or null if it was not given
+     */
+    public static String getOption(String[] args, String name){
+        String prefix = "--" + name + "=";
+        for(String arg : args){
+            if(arg.startsWith(prefix)){
+                return arg.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Parses the value of an option given as ADDRESS:PORT, an IPv6 address 
+     * may be given in brackets
+     * 
+     * @param value the value of the option
+     * @param name the name of the option
+     * @return the resolved address and port
+     * @throws IllegalArgumentException if value is not a valid address and 
+     * port
+     */
+    public static InetSocketAddress getSocketAddress(String value, String name){
+        int separator = value.lastIndexOf(':');
+        if(separator < 0){
+            throw new IllegalArgumentException(name + " must be given as ADDRESS:PORT");
+        }
+        String address = value.substring(0, separator).replace("[", "").replace("]", "");
+        int port = Integer.parseInt(value.substring(separator + 1));
+        try{
+            return new InetSocketAddress(InetAddress.getByName(address), port);
+        }catch(UnknownHostException uhe){
+            throw new IllegalArgumentException("Unknown host in " + name + ": " + address);
+        }
+    }
+    
+    /**
+     * Parses the value of an option given as a comma separated list of 
+     * ADDRESS:PORT
+     * 
+     * @param value the value of the option
+     * @param name the name of the option
+     * @return the resolved addresses and ports, in order
+     * @throws IllegalArgumentException if an element of the list is not a 
+     * valid address and port
+     */
+    public static List<InetSocketAddress> getSocketAddresses(String value, String name){
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for(String element : value.split(",")){
+            addresses.add(getSocketAddress(element.trim(), name));
+        }
+        return addresses;
+    }
+    
+    /**
+     * Sets the default ClockSource from the --clock and --clock-speed options 
+     * in args, if given
+     * 
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if the clock or its speed is not valid
+     */
+    public static void configureClock(String[] args){
+        String clockModeName = getOption(args, "clock");
+        String clockSpeed = getOption(args, "clock-speed");
+        if(clockModeName == null){
+            if(clockSpeed != null){
+                throw new IllegalArgumentException("clock-speed requires --clock=virtual");
+            }
+            return;
+        }
+        ClockMode clockMode = ClockMode.getByName(clockModeName);
+        if(clockMode == null){
+            throw new IllegalArgumentException("Unknown clock: " + clockModeName);
+        }
+        if(clockSpeed != null && clockMode != ClockMode.VIRTUAL){
+            throw new IllegalArgumentException("clock-speed requires --clock=virtual");
+        }
+        double speed = (clockSpeed != null) ? Double.parseDouble(clockSpeed) : ClockMode.DEFAULT_VIRTUAL_SPEED;
+        ClockSource.setDefault(clockMode.newClockSource(speed));
+    }
+    
+    /**
+     * Checks whether the flag given as --name is in args
+     * 
+     * @param args the command line arguments
+     * @param name the name of the flag
+     * @return true if the flag was given
+     */
+    public static boolean hasFlag(String[] args, String name){
+        String flag = "--" + name;
+        for(String arg : args){
+            if(arg.equals(flag)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
 /*------------------------------------------------------------------------------
 START NON-STATIC
 ------------------------------------------------------------------------------*/
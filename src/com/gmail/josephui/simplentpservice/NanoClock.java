@@ -0,0 +1,29 @@
+package com.gmail.josephui.simplentpservice;
+
+import java.time.Instant;
+
+/**
+ * This class provides the wall clock time at nanosecond resolution, as used 
+ * by the timestamps of the TIME_REQUEST and TIME_RESPONSE messages. The 
+ * actual precision depends on the platform, it is about a microsecond on 
+ * Linux.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class NanoClock{
+    /**
+     * @return the nanoseconds since the epoch, which fit in a long until 
+     * the year 2262
+     */
+    public static long currentTimeNanos(){
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1000000000L + now.getNano();
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private NanoClock(){}
+}
@@ -0,0 +1,77 @@
+package com.gmail.josephui.simplentpservice;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This Executor runs every task on a Thread of its own, made by the 
+ * ThreadFactory of the given ThreadMode. The Producer and the Consumers start 
+ * all their Threads through a ThreadExecutor, so the same blocking socket 
+ * code runs on either platform or virtual Threads.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ThreadExecutor implements Executor{
+    /**
+     * The ThreadExecutor making platform Threads, used unless another one is 
+     * given.
+     */
+    private static final ThreadExecutor platformExecutor;
+    
+    static{
+        platformExecutor = new ThreadExecutor(ThreadMode.PLATFORM);
+    }
+    
+    /**
+     * @return the ThreadExecutor making platform Threads
+     */
+    public static ThreadExecutor getPlatformExecutor(){
+        return platformExecutor;
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private final ThreadMode mode;
+    
+    private final ThreadFactory threadFactory;
+    
+    /**
+     * @param _mode the kind of Threads to run the tasks on
+     * @throws UnsupportedOperationException if the JVM does not support the 
+     * mode
+     */
+    public ThreadExecutor(ThreadMode _mode){
+        mode = _mode;
+        threadFactory = _mode.newThreadFactory();
+    }
+    
+    public ThreadMode getMode(){
+        return mode;
+    }
+    
+    /**
+     * Makes a Thread running task, the Thread is not started.
+     * 
+     * @param name the name of the Thread
+     * @param task the task to run
+     * @return the new Thread
+     */
+    public Thread newThread(String name, Runnable task){
+        Thread thread = threadFactory.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+    
+    /**
+     * Runs the task on a new Thread.
+     * 
+     * @param task the task to run
+     */
+    @Override
+    public void execute(Runnable task){
+        threadFactory.newThread(task).start();
+    }
+}
@@ -0,0 +1,73 @@
+package com.gmail.josephui.simplentpservice;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class provides the enumerate constants for the kind of Threads the 
+ * Producer and the Consumers run their blocking socket code on.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum ThreadMode{
+    //Regular operating system Threads, each with its own stack
+    PLATFORM,
+    
+    //Virtual Threads scheduled by the JVM over a few carrier Threads, these 
+    //require Java 21 or later
+    VIRTUAL;
+    
+    /**
+     * Creates the ThreadFactory making Threads of this mode.
+     * 
+     * @return the ThreadFactory of this mode
+     * @throws UnsupportedOperationException if the JVM does not support this 
+     * mode
+     */
+    public ThreadFactory newThreadFactory(){
+        if(this == PLATFORM){
+            return Executors.defaultThreadFactory();
+        }
+        //Thread.ofVirtual() is looked up reflectively so that the application 
+        //still compiles and runs in PLATFORM mode on older JVMs
+        try{
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }catch(ReflectiveOperationException roe){
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", roe);
+        }
+    }
+    
+    /**
+     * @return true if the JVM supports this mode
+     */
+    public boolean isSupported(){
+        try{
+            newThreadFactory();
+            return true;
+        }catch(UnsupportedOperationException uoe){
+            return false;
+        }
+    }
+    
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * Looks up the mode by name, ignoring case.
+     * 
+     * @param name the name of the mode
+     * @return the matching mode, or null if there is none
+     */
+    public static ThreadMode getByName(String name){
+        for(ThreadMode mode : values()){
+            if(mode.name().equalsIgnoreCase(name)){
+                return mode;
+            }
+        }
+        return null;
+    }
+}
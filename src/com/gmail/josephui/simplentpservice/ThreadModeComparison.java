@@ -0,0 +1,163 @@
+package com.gmail.josephui.simplentpservice;
+
+import com.gmail.josephui.simplentpservice.client.Consumer;
+import com.gmail.josephui.simplentpservice.server.Producer;
+import com.gmail.josephui.simplentpservice.server.ProducerConfig;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the Producer and a number of Consumers once on platform 
+ * Threads and once on virtual Threads, and prints the TIME message throughput 
+ * and memory use of both side by side. As the Producer is a singleton, each 
+ * mode is measured in a JVM of its own.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ThreadModeComparison{
+    /**
+     * The number of Consumers started when none is given.
+     */
+    private static final int DEFAULT_NUM_CONSUMERS = 1000;
+    
+    /**
+     * How long the Consumers run before the measurement starts, in 
+     * milliseconds.
+     */
+    private static final long WARM_UP_TIME = 3000;
+    
+    /**
+     * How long the TIME messages are counted for, in milliseconds.
+     */
+    private static final long MEASURE_TIME = 5000;
+    
+    /**
+     * The prefix of the line a measuring JVM reports its results on.
+     */
+    private static final String RESULT_PREFIX = "RESULT ";
+    
+    /**
+     * @param args the number of Consumers to start, or "--measure MODE 
+     * NUM_CONSUMERS" when run as one of the measuring JVMs
+     */
+    public static void main(String[] args) throws Exception{
+        if(args.length == 3 && args[0].equals("--measure")){
+            measure(ThreadMode.valueOf(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int numConsumers = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUM_CONSUMERS;
+        
+        System.out.println(String.format("%-10s %10s %12s %12s %12s %10s", 
+                "Mode", "Consumers", "TIME/s", "Heap (MB)", "RSS (MB)", "Threads"));
+        for(ThreadMode mode : ThreadMode.values()){
+            String result = runMeasuringJvm(mode, numConsumers);
+            if(result == null){
+                System.out.println(String.format("%-10s %10s", mode, "failed or not supported by this JVM"));
+                continue;
+            }
+            String[] values = result.split(" ");
+            System.out.println(String.format("%-10s %10s %12s %12s %12s %10s", 
+                    mode, numConsumers, values[0], values[1], values[2], values[3]));
+        }
+    }
+    
+    /**
+     * Starts a JVM measuring the given mode, with the same class path as 
+     * this one.
+     * 
+     * @return the values reported by the JVM, or null if it did not report
+     */
+    private static String runMeasuringJvm(ThreadMode mode, int numConsumers) throws IOException, InterruptedException{
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), 
+                ThreadModeComparison.class.getName(), "--measure", mode.name(), "" + numConsumers);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        
+        String result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try{
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.startsWith(RESULT_PREFIX)){
+                    result = line.substring(RESULT_PREFIX.length());
+                }
+            }
+        }finally{
+            reader.close();
+        }
+        process.waitFor();
+        return result;
+    }
+    
+    /**
+     * Runs the Producer and the Consumers in this JVM and reports the TIME 
+     * messages received per second, the used heap, the resident set size and 
+     * the number of live platform Threads on a single line.
+     */
+    private static void measure(ThreadMode mode, int numConsumers) throws Exception{
+        if(!mode.isSupported()){
+            return;
+        }
+        ThreadExecutor executor = new ThreadExecutor(mode);
+        Producer.getInstance(new ProducerConfig().setThreadMode(mode)).start();
+        
+        final AtomicLong receivedTimeMessages = new AtomicLong();
+        for(int i = 1; i <= numConsumers; i++){
+            new Consumer("Consumer " + i, executor){
+                @Override
+                protected void processTimeMessage(long time){
+                    receivedTimeMessages.incrementAndGet();
+                }
+                
+                @Override
+                protected void processTimeResponse(long offsetNanos, long delayNanos){
+                    //Only the TIME messages are measured
+                }
+            }.start();
+        }
+        
+        Thread.sleep(WARM_UP_TIME);
+        long before = receivedTimeMessages.get();
+        Thread.sleep(MEASURE_TIME);
+        long received = receivedTimeMessages.get() - before;
+        
+        System.gc();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(RESULT_PREFIX + (received * 1000 / MEASURE_TIME) + " " 
+                + (heap.getUsed() >> 20) + " " + getResidentSetSizeInMegabytes() + " " + threads);
+        System.exit(0);
+    }
+    
+    /**
+     * @return the resident set size of this process, which includes the 
+     * stacks of the platform Threads, or -1 if it is not available
+     */
+    private static long getResidentSetSizeInMegabytes(){
+        try{
+            for(String line : Files.readAllLines(Paths.get("/proc/self/status"))){
+                if(line.startsWith("VmRSS:")){
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10;
+                }
+            }
+        }catch(IOException ioe){
+            //Not running on Linux
+        }
+        return -1;
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private ThreadModeComparison(){}
+}
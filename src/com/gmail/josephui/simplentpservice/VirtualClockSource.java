@@ -0,0 +1,123 @@
+package com.gmail.josephui.simplentpservice;
+
+/**
+ * A ClockSource for capacity testing that runs speed times faster than real 
+ * time, starting from the current time, and may be paused, sped up or 
+ * advanced by hand while the application runs. With a speed of 360 a 24 hour 
+ * scenario of connections, KEEP_ALIVE messages and expiries plays out in 4 
+ * minutes, every period of the Producer and the Consumers being shortened 
+ * alike.
+ * 
+ * Every Thread waiting for this clock wakes up at least every 
+ * MAX_REAL_WAIT_NANOS to look at it again, so that a change of speed or an 
+ * advance is seen promptly.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class VirtualClockSource extends ClockSource{
+    /**
+     * The longest a Thread waits for this clock before looking at it again, 
+     * in real nanoseconds.
+     */
+    public static final long MAX_REAL_WAIT_NANOS = 10000000;
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * The real System.nanoTime() and the time of this clock in nanoseconds 
+     * since the epoch at the last change of speed or advance, along with the 
+     * speed since then. It is replaced as a whole so that it is always read 
+     * consistently.
+     */
+    private volatile Timeline timeline;
+    
+    /**
+     * @param speed how many times faster than real time this clock runs, 0 
+     * to start it paused
+     */
+    public VirtualClockSource(double speed){
+        checkSpeed(speed);
+        timeline = new Timeline(System.nanoTime(), NanoClock.currentTimeNanos(), speed);
+    }
+    
+    private static void checkSpeed(double speed){
+        if(!(speed >= 0) || Double.isInfinite(speed)){
+            throw new IllegalArgumentException("speed must be a finite number, 0 or more");
+        }
+    }
+    
+    public double getSpeed(){
+        return timeline.speed;
+    }
+    
+    /**
+     * Changes the speed of this clock from now on, 0 pauses it.
+     * 
+     * @param speed how many times faster than real time this clock runs
+     */
+    public synchronized void setSpeed(double speed){
+        checkSpeed(speed);
+        long realNanos = System.nanoTime();
+        timeline = new Timeline(realNanos, timeline.timeNanosAt(realNanos), speed);
+    }
+    
+    /**
+     * Moves this clock forward at once, the Threads waiting for a time that 
+     * is now past wake up within MAX_REAL_WAIT_NANOS.
+     * 
+     * @param millis the milliseconds to add to this clock
+     */
+    public synchronized void advance(long millis){
+        if(millis < 0){
+            throw new IllegalArgumentException("millis must not be negative, a clock does not go back");
+        }
+        long realNanos = System.nanoTime();
+        timeline = new Timeline(realNanos, timeline.timeNanosAt(realNanos) + millis * 1000000, timeline.speed);
+    }
+    
+    @Override
+    public long currentTimeMillis(){
+        return currentTimeNanos() / 1000000;
+    }
+    
+    @Override
+    public long currentTimeNanos(){
+        return timeline.timeNanosAt(System.nanoTime());
+    }
+    
+    @Override
+    public long nanoTime(){
+        //The time since the epoch is monotonic here, so it serves as both
+        return currentTimeNanos();
+    }
+    
+    @Override
+    public long toRealNanos(long nanos){
+        double speed = timeline.speed;
+        if(speed == 0){
+            return MAX_REAL_WAIT_NANOS;
+        }
+        return Math.min(MAX_REAL_WAIT_NANOS, (long)Math.ceil(nanos / speed));
+    }
+    
+    private static final class Timeline{
+        private final long realOriginNanos;
+        
+        private final long originTimeNanos;
+        
+        private final double speed;
+        
+        private Timeline(long _realOriginNanos, long _originTimeNanos, double _speed){
+            realOriginNanos = _realOriginNanos;
+            originTimeNanos = _originTimeNanos;
+            speed = _speed;
+        }
+        
+        private long timeNanosAt(long realNanos){
+            return originTimeNanos + (long)((realNanos - realOriginNanos) * speed);
+        }
+    }
+}
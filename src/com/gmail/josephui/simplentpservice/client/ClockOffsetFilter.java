@@ -0,0 +1,141 @@
+package com.gmail.josephui.simplentpservice.client;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+
+/**
+ * Estimates the offset of the local clock from the Producer's clock out of 
+ * the timestamps of the TIME_REQUEST / TIME_RESPONSE exchanges, in the manner 
+ * of the NTP clock filter: of the last few samples, the one with the 
+ * smallest round trip delay is the one least disturbed by queueing on the 
+ * network, so its offset is used.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ClockOffsetFilter{
+    /**
+     * The number of samples kept by default, the same as the NTP clock 
+     * filter.
+     */
+    public static final int DEFAULT_SAMPLES = 8;
+    
+    /**
+     * The offset of the local clock, as the Producer's time minus the local 
+     * time. t1 is the request send time and t4 the response receive time on 
+     * the local clock, t2 the request receive time and t3 the response send 
+     * time on the Producer's clock.
+     * 
+     * @return the offset in nanoseconds
+     */
+    public static long offsetOf(long t1, long t2, long t3, long t4){
+        return ((t2 - t1) + (t3 - t4)) / 2;
+    }
+    
+    /**
+     * The round trip delay of the exchange, without the time the Producer 
+     * took to answer.
+     * 
+     * @return the delay in nanoseconds
+     */
+    public static long delayOf(long t1, long t2, long t3, long t4){
+        return (t4 - t1) - (t3 - t2);
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private final long[] offsets;
+    
+    private final long[] delays;
+    
+    /**
+     * The number of samples held, up to the length of offsets.
+     */
+    private int count;
+    
+    /**
+     * The index the next sample is stored at, the oldest sample is replaced 
+     * once the filter is full.
+     */
+    private int next;
+    
+    /**
+     * The index of the sample with the smallest delay.
+     */
+    private int best;
+    
+    public ClockOffsetFilter(){
+        this(DEFAULT_SAMPLES);
+    }
+    
+    /**
+     * @param samples the number of samples the best one is picked from
+     */
+    public ClockOffsetFilter(int samples){
+        if(samples <= 0){
+            throw new IllegalArgumentException("samples must be positive");
+        }
+        offsets = new long[samples];
+        delays = new long[samples];
+    }
+    
+    /**
+     * Adds the sample of one exchange, replacing the oldest sample once the 
+     * filter is full. A negative delay means a clock was stepped during the 
+     * exchange, such samples are ignored.
+     * 
+     * @return true if the sample was added
+     */
+    public synchronized boolean add(long t1, long t2, long t3, long t4){
+        long delay = delayOf(t1, t2, t3, t4);
+        if(delay < 0){
+            return false;
+        }
+        offsets[next] = offsetOf(t1, t2, t3, t4);
+        delays[next] = delay;
+        next = (next + 1) % offsets.length;
+        if(count < offsets.length){
+            count++;
+        }
+        best = 0;
+        for(int i = 1; i < count; i++){
+            if(delays[i] < delays[best]){
+                best = i;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return true once at least one sample was added
+     */
+    public synchronized boolean hasEstimate(){
+        return count > 0;
+    }
+    
+    /**
+     * @return the offset of the sample with the smallest delay, in 
+     * nanoseconds, or 0 if there is no sample
+     */
+    public synchronized long getOffsetNanos(){
+        return count == 0 ? 0 : offsets[best];
+    }
+    
+    /**
+     * @return the smallest delay of the samples, in nanoseconds, which also 
+     * bounds the error of the offset to half of it, or 0 if there is no 
+     * sample
+     */
+    public synchronized long getDelayNanos(){
+        return count == 0 ? 0 : delays[best];
+    }
+    
+    /**
+     * @return the Producer's current time as estimated from the local clock, 
+     * the default ClockSource, in nanoseconds since the epoch
+     */
+    public long currentTimeNanos(){
+        return ClockSource.getDefault().currentTimeNanos() + getOffsetNanos();
+    }
+}
@@ -1,14 +1,34 @@
 package com.gmail.josephui.simplentpservice.client;
 
-import com.gmail.josephui.simplentpservice.TestMod;
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.DeadlineScheduler;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeDispatcher;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeHandler;
+import com.gmail.josephui.simplentpservice.protocol.VarInt;
 import static com.gmail.josephui.simplentpservice.server.Producer.DEFAULT_PORT;
 import com.gmail.josephui.simplentpservice.server.ProducerOpcode;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class represent a Consumer as specified in the specification.
@@ -16,17 +36,35 @@ import java.util.Random;
  * @author Joseph Hui
  * @version 2015.1.17
  */
-public class Consumer extends Thread{
+public class Consumer{
+    private static final Log log = Log.getInstance();
+
     /**
      * This is the host address to which this Consumer will attempt to connect
      */
-    protected static final String SERVER_ADDRESS = "localhost";
+    public static final String SERVER_ADDRESS = "localhost";
     
     /**
      * This specific the delay between KEEP_ALIVE messages, in milliseconds
      */
     protected static final long DELAY_BETWEEN_KEEP_ALIVE_MESSAGES = 5000;
     
+    /**
+     * The delay between the TIME_REQUEST messages sent once the burst 
+     * following a REGISTER message has filled the clockOffsetFilter, in 
+     * milliseconds
+     */
+    protected static final long DELAY_BETWEEN_TIME_REQUESTS = 2000;
+    
+    /**
+     * The number of TIME_REQUEST messages sent in a burst from each REGISTER 
+     * message on, enough to fill the clockOffsetFilter, and the delay between 
+     * them in milliseconds. They are spread a little so that a single stall 
+     * does not spoil every sample.
+     */
+    protected static final int TIME_REQUEST_BURST = ClockOffsetFilter.DEFAULT_SAMPLES;
+    protected static final long DELAY_BETWEEN_BURST_TIME_REQUESTS = 100;
+    
     /**
      * These two constants specifies the minimum and maximum number of 
      * KEEP_ALIVE messages a Consumer may send out, respectively.
@@ -34,14 +72,109 @@ public class Consumer extends Thread{
     protected static final int MINIMUM_KEEP_ALIVE_MESSAGES = 0;
     protected static final int MAXIMUM_KEEP_ALIVE_MESSAGES = 12;
     
+    /**
+     * These two constants specifies the delay before the first attempt to 
+     * reconnect once the connection to the server is lost, and the most it 
+     * doubles to after failed attempts, in milliseconds.
+     */
+    protected static final long MINIMUM_RECONNECT_DELAY = 100;
+    protected static final long MAXIMUM_RECONNECT_DELAY = 5000;
+    
+    /**
+     * The most REDIRECT messages followed in a row. A Consumer redirected 
+     * once more fails over to the next server instead, so that Producers 
+     * disagreeing on their loads do not send it back and forth.
+     */
+    protected static final int MAXIMUM_CONSECUTIVE_REDIRECTS = 3;
+    
     /**
      * This is the Random object used when generating a number between 
      * MINIMUM_KEEP_ALIVE_MESSAGES and MAXIMUM_KEEP_ALIVE_MESSAGES
      */
     protected static final Random rand;
     
+    /**
+     * Processes the messages from the server, by Opcode. A new type of 
+     * message is added by registering its OpcodeHandler here.
+     */
+    private static final OpcodeDispatcher<Consumer> dispatcher;
+    
+    /**
+     * Processes the datagrams received from the multicast group, which only 
+     * carry MulticastTime messages. Anyone may send a datagram to the port of 
+     * the group, so every other Opcode is dropped there rather than letting 
+     * it redirect this Consumer or change the state of the connection.
+     */
+    private static final OpcodeDispatcher<Consumer> multicastDispatcher;
+    
     static{
         rand = new Random();
+        
+        dispatcher = new OpcodeDispatcher<Consumer>();
+        dispatcher.register(ProducerOpcode.TIME.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                FrameDecoder.expectLength(payload, 8);
+                long time = payload.getLong();
+                consumer.lastTime = time;
+                consumer.processTimeMessage(time);
+                return true;
+            }
+        });
+        dispatcher.register(ProducerOpcode.TIME_DELTA.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                //Every connection starts with a full TIME message
+                if(consumer.lastTime == 0){
+                    throw new ProtocolException("TIME_DELTA before any TIME message");
+                }
+                long time = consumer.lastTime + VarInt.getZigZag(payload);
+                consumer.lastTime = time;
+                consumer.processTimeMessage(time);
+                return true;
+            }
+        });
+        dispatcher.register(ProducerOpcode.TIME_RESPONSE.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                //Taken before the content is decoded, this is the receive 
+                //time of the TIME_RESPONSE
+                consumer.processTimeResponse(payload, consumer.clock.currentTimeNanos());
+                return true;
+            }
+        });
+        dispatcher.register(ProducerOpcode.MULTICAST_GROUP.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                consumer.processMulticastGroup(payload);
+                return true;
+            }
+        });
+        dispatcher.register(ProducerOpcode.REDIRECT.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                consumer.processRedirect(payload);
+                //The server closes the connection after a Redirect message
+                return false;
+            }
+        });
+        dispatcher.register(ProducerOpcode.RETRY_AFTER.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                consumer.processRetryAfter(payload);
+                //The server closes the connection after a RetryAfter message
+                return false;
+            }
+        });
+        
+        multicastDispatcher = new OpcodeDispatcher<Consumer>();
+        multicastDispatcher.register(ProducerOpcode.MULTICAST_TIME.opcode(), new OpcodeHandler<Consumer>(){
+            @Override
+            public boolean process(Consumer consumer, ByteBuffer payload) throws IOException{
+                consumer.processMulticastTime(payload);
+                return true;
+            }
+        });
     }
     
     /**
@@ -52,24 +185,94 @@ public class Consumer extends Thread{
         return rand.nextInt(MAXIMUM_KEEP_ALIVE_MESSAGES - MINIMUM_KEEP_ALIVE_MESSAGES + 1) + MINIMUM_KEEP_ALIVE_MESSAGES;
     }
     
+    /**
+     * Decodes the address carried by the MulticastGroup and Redirect 
+     * messages.
+     * 
+     * @param payload the content of the message, a port followed by an IPv4 
+     * or IPv6 address
+     * @return the address and port
+     */
+    private static InetSocketAddress getSocketAddress(ByteBuffer payload) throws IOException{
+        if(payload.remaining() != 6 && payload.remaining() != 18){
+            throw new ProtocolException("Unexpected frame length: " + payload.remaining());
+        }
+        int port = payload.getShort() & 0xFFFF;
+        byte[] address = new byte[payload.remaining()];
+        payload.get(address);
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    }
+    
 /*------------------------------------------------------------------------------
 START NON-STATIC
 ------------------------------------------------------------------------------*/
     
     /**
-     * This Consumer is connected to the server through this Socket
+     * The Producers this Consumer may connect to, it fails over to the next 
+     * one whenever its connection is lost
+     */
+    protected final List<InetSocketAddress> servers;
+    
+    /**
+     * This Consumer is connected to the server through this Socket, it is 
+     * replaced whenever the Consumer reconnects
      */
-    protected final Socket socketToServer;
+    protected volatile Socket socketToServer;
     
     /**
      * The InputStream that accepts data from the server
      */
-    protected final InputStream in;
+    protected volatile InputStream in;
     
     /**
      * The OutputStream that will take data to be send to the server
      */
-    protected final OutputStream out;
+    protected volatile OutputStream out;
+    
+    /**
+     * The writes to out are guarded by this lock rather than by out, which is 
+     * replaced whenever the Consumer reconnects. A ReentrantLock rather than a 
+     * monitor, so that a virtual Thread blocked in a write while holding it 
+     * does not pin its carrier.
+     */
+    private final ReentrantLock sendLock;
+    
+    /**
+     * The index in servers of the last Producer connected to. Only accessed 
+     * by the receiving Thread once constructed.
+     */
+    private int serverIndex;
+    
+    /**
+     * The Producer the last Redirect message sent this Consumer to, or null. 
+     * Only accessed by the receiving Thread.
+     */
+    private InetSocketAddress redirectTarget;
+    
+    /**
+     * The number of Redirect messages followed since the last failover. Only 
+     * accessed by the receiving Thread.
+     */
+    private int consecutiveRedirects;
+    
+    /**
+     * The delay the last RetryAfter message asked for, in milliseconds, or 0 
+     * if there is none. Only accessed by the receiving Thread.
+     */
+    private long retryAfterDelay;
+    
+    /**
+     * The number of TIME_REQUEST messages of the current burst the sending 
+     * Thread has yet to send, set whenever the REGISTER message is sent
+     */
+    private volatile int remainingBurstTimeRequests;
+    
+    /**
+     * Set once the sending Thread has sent its last KEEP_ALIVE message, from 
+     * then on a lost connection is not reconnected, as the server expires 
+     * this Consumer.
+     */
+    private volatile boolean finished;
     
     /**
      * The name of this Consumer, this is used when printing out messages to 
@@ -77,6 +280,62 @@ START NON-STATIC
      */
     protected final String consumerName;
     
+    /**
+     * Estimates the offset of the local clock from the server's clock out of 
+     * the TIME_RESPONSE messages
+     */
+    protected final ClockOffsetFilter clockOffsetFilter;
+    
+    /**
+     * The clock the KEEP_ALIVE messages, the reconnect delays and the 
+     * TIME_REQUEST timestamps follow, the default ClockSource when this 
+     * Consumer was created
+     */
+    private final ClockSource clock;
+    
+    /**
+     * The TimeRequest message packet, its send time is patched in place 
+     * before each write
+     */
+    private final byte[] timeRequestPacket;
+    
+    /**
+     * The Register message packet, which asks for the TIME message at the 
+     * interval given to the constructor, if any
+     */
+    private final byte[] registerPacket;
+    
+    /**
+     * Makes the Thread receiving the multicast group, if the Producer 
+     * publishes to one
+     */
+    private final ThreadExecutor executor;
+    
+    /**
+     * The channel joined to the multicast group the Producer publishes the 
+     * TIME messages to, or null until the Producer has told the group and it 
+     * has been joined
+     */
+    private DatagramChannel multicastChannel;
+    
+    /**
+     * The multicast group multicastChannel has joined
+     */
+    private InetSocketAddress multicastGroup;
+    
+    /**
+     * The sequence number of the last MulticastTime message received, 0 
+     * before the first one. Only accessed by the Thread receiving the group.
+     */
+    private long lastMulticastSequence;
+    
+    /**
+     * The time of the last TIME or TIME_DELTA message received over the 
+     * connection, which the next TIME_DELTA message is added to, 0 before the 
+     * first one. Only accessed by the receiving Thread.
+     */
+    private long lastTime;
+    
     /**
      * This Thread periodically sends KEEP_ALIVE messages to the server that 
      * has both (1) REGISTER itself with the server, and (2) has send a 
@@ -91,102 +350,551 @@ START NON-STATIC
     protected final Thread receivingServerMessagesThread;
     
     public Consumer(String _consumerName) throws IOException{
-        socketToServer = new Socket(SERVER_ADDRESS, DEFAULT_PORT);
-        in = socketToServer.getInputStream();
-        out = socketToServer.getOutputStream();
+        this(_consumerName, ThreadExecutor.getPlatformExecutor());
+    }
+    
+    /**
+     * @param _consumerName the name of this Consumer
+     * @param _executor makes the Threads of this Consumer, which decides 
+     * whether they are platform or virtual Threads
+     */
+    public Consumer(String _consumerName, ThreadExecutor _executor) throws IOException{
+        this(_consumerName, _executor, Collections.singletonList(new InetSocketAddress(SERVER_ADDRESS, DEFAULT_PORT)));
+    }
+    
+    /**
+     * @param _consumerName the name of this Consumer
+     * @param _executor makes the Threads of this Consumer, which decides 
+     * whether they are platform or virtual Threads
+     * @param _servers the Producers of the cluster, the Consumer connects to 
+     * the first reachable one starting from a random one, so that the 
+     * Consumers spread over them, and fails over to the next one whenever 
+     * its connection is lost
+     * @throws IOException if none of the servers is reachable
+     */
+    public Consumer(String _consumerName, ThreadExecutor _executor, List<InetSocketAddress> _servers) throws IOException{
+        this(_consumerName, _executor, _servers, 0);
+    }
+    
+    /**
+     * @param _consumerName the name of this Consumer
+     * @param _executor makes the Threads of this Consumer, which decides 
+     * whether they are platform or virtual Threads
+     * @param _servers the Producers of the cluster, see 
+     * Consumer(String, ThreadExecutor, List)
+     * @param timeInterval the interval to receive the TIME message at, in 
+     * milliseconds, 0 for the Producer's default interval. The Producer 
+     * clamps it to the intervals it allows.
+     * @throws IOException if none of the servers is reachable
+     */
+    public Consumer(String _consumerName, ThreadExecutor _executor, List<InetSocketAddress> _servers, int timeInterval) throws IOException{
+        this(_consumerName, _executor, _servers, timeInterval, false, 1);
+    }
+    
+    /**
+     * @param _consumerName the name of this Consumer
+     * @param _executor makes the Threads of this Consumer, which decides 
+     * whether they are platform or virtual Threads
+     * @param _servers the Producers of the cluster, the Consumer connects to 
+     * the first reachable one starting from a random one, so that the 
+     * Consumers spread over them, and fails over to the next one whenever 
+     * its connection is lost
+     * @param timeInterval the interval to receive the TIME message at, in 
+     * milliseconds, 0 for the Producer's default interval. The Producer 
+     * clamps it to the intervals it allows.
+     * @param compactTime true to receive the TIME messages in the compact 
+     * format, as the difference with the previous one
+     * @param timeBatch the number of TIME messages the Producer may write at 
+     * once, 1 to receive each as soon as it is sent. The Producer caps it to 
+     * the size of its outbound queues.
+     * @throws IOException if none of the servers is reachable
+     */
+    public Consumer(String _consumerName, ThreadExecutor _executor, List<InetSocketAddress> _servers, int timeInterval,
+            boolean compactTime, int timeBatch) throws IOException{
+        this(_consumerName, _executor, _servers, timeInterval, compactTime, timeBatch, false);
+    }
+    
+    /**
+     * @param _consumerName the name of this Consumer
+     * @param _executor makes the Threads of this Consumer, which decides 
+     * whether they are platform or virtual Threads
+     * @param _servers the Producers of the cluster, see 
+     * Consumer(String, ThreadExecutor, List)
+     * @param timeInterval the interval to receive the TIME message at, in 
+     * milliseconds, 0 for the Producer's default interval. The Producer 
+     * clamps it to the intervals it allows.
+     * @param compactTime true to receive the TIME messages in the compact 
+     * format, as the difference with the previous one
+     * @param timeBatch the number of TIME messages the Producer may write at 
+     * once, 1 to receive each as soon as it is sent. The Producer caps it to 
+     * the size of its outbound queues.
+     * @param lowPriority true to register as low priority, an overloaded 
+     * Producer may then send fewer TIME messages to this Consumer
+     * @throws IOException if none of the servers is reachable
+     */
+    public Consumer(String _consumerName, ThreadExecutor _executor, List<InetSocketAddress> _servers, int timeInterval,
+            boolean compactTime, int timeBatch, boolean lowPriority) throws IOException{
+        if(_servers.isEmpty()){
+            throw new IllegalArgumentException("servers must not be empty");
+        }
+        if(timeInterval < 0){
+            throw new IllegalArgumentException("timeInterval must not be negative");
+        }
+        if(timeBatch < 1 || timeBatch > ConsumerPacketFactory.MAX_TIME_BATCH){
+            throw new IllegalArgumentException("timeBatch must be between 1 and " + ConsumerPacketFactory.MAX_TIME_BATCH);
+        }
+        servers = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(_servers));
+        sendLock = new ReentrantLock();
+        clock = ClockSource.getDefault();
+        serverIndex = rand.nextInt(servers.size());
+        IOException failure = null;
+        for(int i = 0; i < servers.size() && socketToServer == null; i++){
+            try{
+                connect(servers.get(serverIndex));
+            }catch(IOException ioe){
+                failure = ioe;
+                serverIndex = (serverIndex + 1) % servers.size();
+            }
+        }
+        if(socketToServer == null){
+            throw failure;
+        }
         
         consumerName = _consumerName;
+        executor = _executor;
+        clockOffsetFilter = new ClockOffsetFilter();
+        timeRequestPacket = ConsumerPacketFactory.newTimeRequestMessagePacket();
+        if(lowPriority){
+            registerPacket = ConsumerPacketFactory.newRegisterMessagePacket(timeInterval, compactTime, timeBatch, true);
+        }else if(compactTime || timeBatch > 1){
+            registerPacket = ConsumerPacketFactory.newRegisterMessagePacket(timeInterval, compactTime, timeBatch);
+        }else if(timeInterval > 0){
+            registerPacket = ConsumerPacketFactory.newRegisterMessagePacket(timeInterval);
+        }else{
+            registerPacket = ConsumerPacketFactory.getRegisterMessagePacket();
+        }
         
         //The thread is made on the fly because it's a single purpose thread
-        sendingServerMessagesThread = new Thread(){
-            long nextSendTime;
+        sendingServerMessagesThread = _executor.newThread("sendingServerMessagesThread", new Runnable(){
+            long nextSendNanos;
+            long nextTimeRequestNanos;
             @Override
             public void run(){
-                //Sends the REGISTER message to the server
+                DeadlineScheduler scheduler = DeadlineScheduler.getInstance();
+                //Should the REGISTER message be lost, it is sent again once 
+                //the receiving Thread has reconnected
                 try{
-                    sendMessageToServer(ConsumerPacketFactory.getRegisterMessagePacket());
+                    sendRegistration();
                 }catch(IOException ioe){
-                    System.err.println(ioe);
-                    return;
+                    log.warn(consumerName, "Unable to register: {}", ioe);
                 }
-                nextSendTime = System.currentTimeMillis() + DELAY_BETWEEN_KEEP_ALIVE_MESSAGES;
+                nextSendNanos = clock.nanoTime() + DELAY_BETWEEN_KEEP_ALIVE_MESSAGES * 1000000;
+                //The clockOffsetFilter is sampled on its own schedule, the 
+                //burst first and then for as long as KEEP_ALIVE messages are 
+                //sent
+                nextTimeRequestNanos = clock.nanoTime() + timeRequestDelay() * 1000000;
                 //This variable keeps track of the number of remaining 
                 //KEEP_ALIVE message this thread will send out
                 int remainingKeepAliveMessages = generateTotalKeepAliveMessages();
-                while(--remainingKeepAliveMessages >= 0){
-                    while(System.currentTimeMillis() < nextSendTime){
-                        try{
-                            Thread.sleep(10);
-                        }catch(InterruptedException ie){
-                            //Impossible because no other thread is calling 
-                            //interrupt()
-                            throw new IllegalStateException("Impossible event.");
+                while(remainingKeepAliveMessages > 0 || remainingBurstTimeRequests > 0){
+                    //The Thread is parked until its next deadline instead of 
+                    //polling the clock
+                    try{
+                        if(remainingKeepAliveMessages > 0 && nextSendNanos - nextTimeRequestNanos < 0){
+                            scheduler.sleepUntil(nextSendNanos);
+                        }else{
+                            scheduler.sleepUntil(nextTimeRequestNanos);
                         }
+                    }catch(InterruptedException ie){
+                        //Impossible because no other thread is calling 
+                        //interrupt()
+                        throw new IllegalStateException("Impossible event.");
                     }
                     //This method of counting time is more accurate in the long 
                     //run than simply making the Thread sleep for 
                     //DELAY_BETWEEN_KEEP_ALIVE_MESSAGES milliseconds.
                     try{
-                        byte[] keepAlivePacket = ConsumerPacketFactory.getKeepAliveMessagePacket();
-                        nextSendTime = System.currentTimeMillis() + DELAY_BETWEEN_KEEP_ALIVE_MESSAGES;
-                        
-                        TestMod.printlnIfTest("sendingServerMessagesThread", "Sending KeepAlive Message. Remaining messages: " + remainingKeepAliveMessages);
-                        sendMessageToServer(keepAlivePacket);
+                        long now = clock.nanoTime();
+                        if(remainingKeepAliveMessages > 0 && now - nextSendNanos >= 0){
+                            byte[] keepAlivePacket = ConsumerPacketFactory.getKeepAliveMessagePacket();
+                            nextSendNanos = now + DELAY_BETWEEN_KEEP_ALIVE_MESSAGES * 1000000;
+                            remainingKeepAliveMessages--;
+                            
+                            log.debug(consumerName, "Sending KeepAlive Message. Remaining messages: {}", remainingKeepAliveMessages);
+                            sendMessageToServer(keepAlivePacket);
+                        }
+                        if(now - nextTimeRequestNanos >= 0){
+                            int remainingBurst = remainingBurstTimeRequests;
+                            if(remainingBurst > 0){
+                                remainingBurstTimeRequests = remainingBurst - 1;
+                            }
+                            nextTimeRequestNanos = now + timeRequestDelay() * 1000000;
+                            sendTimeRequest();
+                        }
                     }catch(IOException ioe){
-                        System.err.println(ioe);
-                        return;
+                        //The connection is lost, the receiving Thread 
+                        //reconnects and the next KEEP_ALIVE goes to the new 
+                        //server
+                        log.warn(consumerName, "Unable to send: {}", ioe);
                     }
                 }
+                finished = true;
             }
-        };
+        });
         
         //The thread is made on the fly because it's a single purpose thread
-        receivingServerMessagesThread = new Thread(){
+        receivingServerMessagesThread = _executor.newThread("receivingServerMessagesThread", new Runnable(){
             @Override
             public void run(){
+                FrameDecoder.FrameHandler handler = dispatcher.bind(Consumer.this);
+                do{
+                    //Every message received with one read is decoded in 
+                    //place out of a buffer that is reused for the life of the 
+                    //connection
+                    FrameDecoder decoder = new FrameDecoder(in);
+                    try{
+                        do{
+                            log.debug(consumerName, "Reading request");
+                        }while(decoder.readFrames(handler));
+                    }catch(IOException ioe){
+                        log.warn(consumerName, "Connection lost: {}", ioe);
+                    }
+                    closeConnection();
+                }while(reconnect());
+            }
+        });
+    }
+    
+    /**
+     * Starts sending messages to, and receiving messages from, the server.
+     */
+    public void start(){
+        sendingServerMessagesThread.start();
+        receivingServerMessagesThread.start();
+    }
+    
+    /**
+     * Connects to a server, replacing the previous connection.
+     * 
+     * @param server the Producer to connect to
+     */
+    private void connect(InetSocketAddress server) throws IOException{
+        Socket socket = new Socket(server.getAddress(), server.getPort());
+        //The TIME_REQUEST written right after a KEEP_ALIVE would otherwise 
+        //wait for the KEEP_ALIVE to be acknowledged, adding the delayed ACK 
+        //time to the round trip of the sample
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        socketToServer = socket;
+        //The new connection starts with a full TIME message
+        lastTime = 0;
+    }
+    
+    private void closeConnection(){
+        try{
+            socketToServer.close();
+        }catch(IOException ioe){
+            //Problem closing socket..
+        }
+    }
+    
+    /**
+     * Connects again once the connection has been lost, to the Producer of 
+     * the Redirect message if one has just been received, to the same 
+     * Producer after the delay of the RetryAfter message if one has just been 
+     * received, otherwise to the next server after a delay that doubles with 
+     * every failed attempt. The delays are randomized so that the Consumers 
+     * of a failed or overloaded Producer do not all reconnect at once. The 
+     * REGISTER message is sent again on the new connection.
+     * 
+     * @return false if this Consumer has sent its last KEEP_ALIVE message, in 
+     * which case it only follows a Redirect message and is not reconnected 
+     * otherwise
+     */
+    private boolean reconnect(){
+        InetSocketAddress target = redirectTarget;
+        redirectTarget = null;
+        long retryAfter = retryAfterDelay;
+        retryAfterDelay = 0;
+        if(retryAfter > 0){
+            if(finished){
+                return false;
+            }
+            try{
+                clock.sleep(retryAfter + (long)(rand.nextDouble() * retryAfter / 2));
+            }catch(InterruptedException ie){
+                //Impossible because no other thread is calling 
+                //interrupt()
+                throw new IllegalStateException("Impossible event.");
+            }
+        }
+        long delay = MINIMUM_RECONNECT_DELAY;
+        while(target != null || !finished){
+            if(target == null){
+                consecutiveRedirects = 0;
                 try{
-                    int b;
-                    while((b = in.read()) != -1){
-                        TestMod.printlnIfTest("receivingServerMessagesThread", "Reading request");
-                        //Identify the operation of the request
-                        ProducerOpcode operation = ProducerOpcode.getByOpcode((byte)b);
-                        //If operation is null it's not a defined operation
-                        assert(operation != null);
-                        
-                        //The length of the rest of the packet (in bytes)
-                        int length = in.read();
-
-                        //BufferedInputStream is not used here because the read() 
-                        //does not guarentee to read all the bytes before returning.
-                        byte[] packet = new byte[length];
-                        for(int i = 0; i < packet.length; i++){
-                            packet[i] = (byte)in.read();
-                        }
-
-                        //Set up buffer to decipher the packet
-                        ByteBuffer buffer = ByteBuffer.wrap(packet);
-                        
-                        switch(operation){
-                            case TIME:
-                                long time = buffer.getLong();
-                                System.out.println("[" + consumerName + "]" + " CurrentTime: " + time);
+                    clock.sleep(delay / 2 + (long)(rand.nextDouble() * delay / 2));
+                }catch(InterruptedException ie){
+                    //Impossible because no other thread is calling 
+                    //interrupt()
+                    throw new IllegalStateException("Impossible event.");
+                }
+                delay = Math.min(delay * 2, MAXIMUM_RECONNECT_DELAY);
+                serverIndex = (serverIndex + 1) % servers.size();
+                target = servers.get(serverIndex);
+            }
+            try{
+                connect(target);
+                log.debug(consumerName, "Connected to {}", target);
+                sendRegistration();
+                return true;
+            }catch(IOException ioe){
+                log.debug(consumerName, "Unable to connect to {}: {}", target, ioe);
+                target = null;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Sends the REGISTER message to the server, along with the first 
+     * TIME_REQUEST of a burst of TIME_REQUEST_BURST, the rest of which the 
+     * sending Thread sends, so that the clockOffsetFilter picks the best of a 
+     * full window of samples from the start.
+     */
+    private void sendRegistration() throws IOException{
+        sendMessageToServer(registerPacket);
+        sendTimeRequest();
+        remainingBurstTimeRequests = TIME_REQUEST_BURST - 1;
+    }
+    
+    /**
+     * @return the delay until the next TIME_REQUEST message, in milliseconds
+     */
+    private long timeRequestDelay(){
+        if(remainingBurstTimeRequests > 0){
+            return DELAY_BETWEEN_BURST_TIME_REQUESTS;
+        }
+        return DELAY_BETWEEN_TIME_REQUESTS;
+    }
+    
+    /**
+     * Answers a Redirect message by connecting to the given Producer once 
+     * the server has closed the connection, unless this Consumer has already 
+     * been redirected MAXIMUM_CONSECUTIVE_REDIRECTS times in a row.
+     * 
+     * @param payload the content of the message
+     */
+    private void processRedirect(ByteBuffer payload) throws IOException{
+        InetSocketAddress target = getSocketAddress(payload);
+        if(consecutiveRedirects < MAXIMUM_CONSECUTIVE_REDIRECTS){
+            consecutiveRedirects++;
+            redirectTarget = target;
+            log.debug(consumerName, "Redirected to {}", target);
+        }
+    }
+    
+    /**
+     * Answers a RetryAfter message by connecting to the same Producer again 
+     * once the server has closed the connection and the given delay has 
+     * passed.
+     * 
+     * @param payload the content of the message
+     */
+    private void processRetryAfter(ByteBuffer payload) throws ProtocolException{
+        FrameDecoder.expectLength(payload, 4);
+        int delay = payload.getInt();
+        if(delay <= 0){
+            throw new ProtocolException("Invalid retry delay: " + delay);
+        }
+        retryAfterDelay = delay;
+        redirectTarget = (InetSocketAddress)socketToServer.getRemoteSocketAddress();
+        log.debug(consumerName, "Told to retry after {}ms", delay);
+    }
+    
+    /**
+     * Answers a TimeResponse message by adding its sample to the 
+     * clockOffsetFilter.
+     * 
+     * @param payload the content of the message
+     * @param receiveTimeNanos the time the message was received, in 
+     * nanoseconds since the epoch
+     */
+    private void processTimeResponse(ByteBuffer payload, long receiveTimeNanos) throws ProtocolException{
+        FrameDecoder.expectLength(payload, 24);
+        long requestSendTimeNanos = payload.getLong();
+        long serverReceiveTimeNanos = payload.getLong();
+        long serverTransmitTimeNanos = payload.getLong();
+        if(clockOffsetFilter.add(requestSendTimeNanos, serverReceiveTimeNanos, serverTransmitTimeNanos, receiveTimeNanos)){
+            processTimeResponse(clockOffsetFilter.getOffsetNanos(), clockOffsetFilter.getDelayNanos());
+        }
+    }
+    
+    /**
+     * Answers a MulticastGroup message by joining the group.
+     * 
+     * @param payload the content of the message
+     */
+    private void processMulticastGroup(ByteBuffer payload) throws IOException{
+        joinMulticastGroup(getSocketAddress(payload));
+    }
+    
+    /**
+     * Joins the multicast group on the network interface this Consumer 
+     * reaches the server through, and tells the server so that it stops 
+     * sending the TIME messages over the connection. If the group can not be 
+     * joined the TIME messages keep coming over the connection.
+     * 
+     * @param group the multicast group and UDP port the TIME messages are 
+     * published to
+     */
+    private void joinMulticastGroup(InetSocketAddress group) throws IOException{
+        if(multicastChannel != null){
+            //The group was joined over a previous connection, the server 
+            //connected to since only has to be told
+            if(group.equals(multicastGroup)){
+                sendMessageToServer(ConsumerPacketFactory.getMulticastJoinedMessagePacket());
+            }
+            return;
+        }
+        final DatagramChannel channel;
+        try{
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(socketToServer.getLocalAddress());
+            if(networkInterface == null){
+                throw new IOException("No network interface for " + socketToServer.getLocalAddress());
+            }
+            channel = DatagramChannel.open(group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+            //Every Consumer on this host binds the same port
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            channel.join(group.getAddress(), networkInterface);
+        }catch(IOException ioe){
+            log.warn(consumerName, "Unable to join multicast group {}: {}", group, ioe);
+            return;
+        }
+        multicastChannel = channel;
+        multicastGroup = group;
+        
+        //The thread is made on the fly because it's a single purpose thread
+        executor.newThread("receivingMulticastMessagesThread", new Runnable(){
+            @Override
+            public void run(){
+                //A datagram holds a single message, it is decoded in place 
+                //like the messages of the connection
+                ByteBuffer datagram = ByteBuffer.allocate(FrameDecoder.MAX_FRAME_SIZE);
+                FrameDecoder.FrameHandler handler = multicastDispatcher.bind(Consumer.this);
+                try{
+                    while(true){
+                        datagram.clear();
+                        SocketAddress sender = channel.receive(datagram);
+                        datagram.flip();
+                        try{
+                            FrameDecoder.decode(datagram, handler);
+                        }catch(ProtocolException pe){
+                            //A stray datagram on the group, or another 
+                            //Opcode than MulticastTime, not fatal
+                            log.debug(consumerName, "Dropped datagram from {}: {}", sender, pe);
+                        }catch(RuntimeException re){
+                            //A malformed datagram must not end the loop
+                            log.warn(consumerName, "Dropped datagram from {}: {}", sender, re);
                         }
                     }
                 }catch(IOException ioe){
-                    System.err.println(ioe);
+                    log.warn(consumerName, "Left multicast group: {}", ioe);
                 }
             }
-        };
+        }).start();
+        log.debug(consumerName, "Joined multicast group {}", group);
+        sendMessageToServer(ConsumerPacketFactory.getMulticastJoinedMessagePacket());
     }
     
-    @Override
-    public void run(){
-        sendingServerMessagesThread.start();
-        receivingServerMessagesThread.start();
+    /**
+     * Processes a MulticastTime message, counting the ticks missed since the 
+     * previous one out of the sequence numbers. Duplicated and reordered 
+     * datagrams are dropped.
+     * 
+     * @param payload the content of the message
+     */
+    private void processMulticastTime(ByteBuffer payload) throws ProtocolException{
+        FrameDecoder.expectLength(payload, 16);
+        long sequence = payload.getLong();
+        long time = payload.getLong();
+        if(sequence <= lastMulticastSequence){
+            return;
+        }
+        if(lastMulticastSequence > 0 && sequence > lastMulticastSequence + 1){
+            processMissedTimeMessages(sequence - lastMulticastSequence - 1);
+        }
+        lastMulticastSequence = sequence;
+        processTimeMessage(time);
+    }
+    
+    /**
+     * Called for every TIME message received from the server, on the 
+     * receiving Thread or, once the multicast group has been joined, on the 
+     * Thread receiving the group. This prints out the time by default.
+     * 
+     * @param time the time in milliseconds since the epoch
+     */
+    protected void processTimeMessage(long time){
+        log.info(consumerName, "CurrentTime: {}", time);
+    }
+    
+    /**
+     * Called when the sequence numbers of the multicast group show that TIME 
+     * messages were lost, this prints out their number by default.
+     * 
+     * @param missed the number of TIME messages missed since the previous one
+     */
+    protected void processMissedTimeMessages(long missed){
+        log.info(consumerName, "MissedTimeMessages: {}", missed);
+    }
+    
+    /**
+     * Called on the receiving Thread for every TIME_RESPONSE message received 
+     * from the server, once its sample has been added to the 
+     * clockOffsetFilter. This prints out the estimate by default.
+     * 
+     * @param offsetNanos the offset of the local clock from the server's 
+     * clock, as estimated from the best sample
+     * @param delayNanos the round trip delay of the best sample
+     */
+    protected void processTimeResponse(long offsetNanos, long delayNanos){
+        log.info(consumerName, "ClockOffset: {}us RoundTrip: {}us", offsetNanos / 1000, delayNanos / 1000);
+    }
+    
+    /**
+     * Sends a TIME_REQUEST message to the server, the TIME_RESPONSE adds a 
+     * sample to the clockOffsetFilter.
+     */
+    public void sendTimeRequest() throws IOException{
+        sendLock.lock();
+        try{
+            //The send time is taken as late as possible
+            sendMessageToServer(ConsumerPacketFactory.putTimeRequest(timeRequestPacket, clock.currentTimeNanos()));
+        }finally{
+            sendLock.unlock();
+        }
+    }
+    
+    /**
+     * @return the server's current time as estimated from the local clock, in 
+     * nanoseconds since the epoch
+     */
+    public long currentServerTimeNanos(){
+        return clockOffsetFilter.currentTimeNanos();
     }
     
     public void sendMessageToServer(byte[] packet) throws IOException{
-        out.write(packet);
-        out.flush();
+        //The packets of the sending Thread and of sendTimeRequest() must not 
+        //interleave
+        sendLock.lock();
+        try{
+            out.write(packet);
+            out.flush();
+        }finally{
+            sendLock.unlock();
+        }
     }
 }
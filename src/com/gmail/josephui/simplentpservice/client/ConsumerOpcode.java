@@ -11,7 +11,23 @@ public enum ConsumerOpcode{
     //These Opcodes represent the operations to send the REGISTER and 
     //KEEP_ALIVE messages, respectively
     REGISTER,
-    KEEP_ALIVE;
+    KEEP_ALIVE,
+    
+    //This Opcode represent the operation to ask the Producer for its time, 
+    //it is answered with a TIME_RESPONSE message
+    TIME_REQUEST,
+    
+    //These Opcodes represent the operations of a gateway to REGISTER and 
+    //KEEP_ALIVE a batch of logical Consumers, listed by id, over its single 
+    //connection. The gateway receives one TIME message per tick for all of 
+    //them
+    GATEWAY_REGISTER,
+    GATEWAY_KEEP_ALIVE,
+    
+    //This Opcode represent the operation to tell the Producer that the 
+    //Consumer has joined the multicast group, so that the TIME message is no 
+    //longer sent over its connection
+    MULTICAST_JOINED;
     
     //Using byte representation, this allows for up to 256 opcodes
     public byte opcode(){
@@ -22,7 +38,18 @@ public enum ConsumerOpcode{
 START STATIC
     ------------------------------------------------------------------------------*/
     
+    /**
+     * The operations by Opcode. values() clones the array on every call, so 
+     * it is only called once.
+     */
+    private static final ConsumerOpcode[] byOpcode = values();
+    
+    /**
+     * @param opcode the first byte of a message
+     * @return the matching operation, or null if it is not a defined 
+     * operation, which includes the bytes above 127 that are negative
+     */
     public static ConsumerOpcode getByOpcode(byte opcode){
-        return (opcode < values().length) ? values()[opcode] : null;
+        return (opcode >= 0 && opcode < byOpcode.length) ? byOpcode[opcode] : null;
     }
 }
@@ -1,6 +1,7 @@
 package com.gmail.josephui.simplentpservice.client;
 
 import static com.gmail.josephui.simplentpservice.client.ConsumerOpcode.*;
+import java.nio.ByteBuffer;
 
 /**
  * This factory class provides the method to generate packets to be send to the 
@@ -10,36 +11,218 @@ import static com.gmail.josephui.simplentpservice.client.ConsumerOpcode.*;
  * @version 2015.1.17
  */
 public final class ConsumerPacketFactory{
+    /**
+     * The size of the TimeRequest message packet, in bytes.
+     */
+    public static final int TIME_REQUEST_PACKET_SIZE = 10;
+    
+    /**
+     * The most logical Consumer ids listed by a single GatewayRegister or 
+     * GatewayKeepAlive message packet, so that its length fits in a byte.
+     */
+    public static final int MAX_IDS_PER_GATEWAY_PACKET = 31;
+    
+    /**
+     * The most TIME messages a Register message packet may ask to be written 
+     * at once, so that the batch size fits in a byte.
+     */
+    public static final int MAX_TIME_BATCH = 255;
+    
     static{
         registerMessagePacket = new byte[]{
-            REGISTER.opcode()
+            REGISTER.opcode(), 0
         };
         
         keepAliveMessagePacket = new byte[]{
-            KEEP_ALIVE.opcode()
+            KEEP_ALIVE.opcode(), 0
+        };
+        
+        multicastJoinedMessagePacket = new byte[]{
+            MULTICAST_JOINED.opcode(), 0
         };
     }
     
     /**
      * Construct a Register message packet to be send to Producer. The size is 
-     * 1, and the information will be encoded as follows:
+     * 2, and the information will be encoded as follows:
      * byte 0: The Opcode of the Register message
+     * byte 1: The size of the remaining number of bytes, 0
      */
     private static final byte[] registerMessagePacket;
     protected static byte[] getRegisterMessagePacket(){
         return registerMessagePacket;
     }
     
+    /**
+     * Construct a Register message packet asking for the TIME message at the 
+     * given interval, to be send to Producer. The size is 6, and the 
+     * information will be encoded as follows:
+     * byte 0: The Opcode of the Register message
+     * byte 1: The size of the remaining number of bytes, 4
+     * byte 2-5: The interval in milliseconds, which the Producer clamps to 
+     * the intervals it allows
+     * 
+     * @param timeInterval the interval in milliseconds
+     * @return a new Register message packet
+     */
+    protected static byte[] newRegisterMessagePacket(int timeInterval){
+        return ByteBuffer.allocate(6).put(REGISTER.opcode()).put((byte)4).putInt(timeInterval).array();
+    }
+    
+    /**
+     * Construct a Register message packet asking for the TIME message at the 
+     * given interval and in the given format, to be send to Producer. The 
+     * size is 8, and the information will be encoded as follows:
+     * byte 0: The Opcode of the Register message
+     * byte 1: The size of the remaining number of bytes, 6
+     * byte 2-5: The interval in milliseconds, 0 for the default interval
+     * byte 6: The format of the TIME messages, 0 for full and 1 for compact
+     * byte 7: The number of TIME messages the Producer may write at once
+     * 
+     * @param timeInterval the interval in milliseconds
+     * @param compactTime true for the compact format
+     * @param timeBatch the number of TIME messages written at once, from 1 to 
+     * MAX_TIME_BATCH
+     * @return a new Register message packet
+     */
+    protected static byte[] newRegisterMessagePacket(int timeInterval, boolean compactTime, int timeBatch){
+        return ByteBuffer.allocate(8).put(REGISTER.opcode()).put((byte)6).putInt(timeInterval)
+                .put((byte)(compactTime ? 1 : 0)).put((byte)timeBatch).array();
+    }
+    
+    /**
+     * Construct a Register message packet asking for the TIME message at the 
+     * given interval, in the given format and with the given priority, to be 
+     * send to Producer. The size is 9, and the information will be encoded as 
+     * follows:
+     * byte 0: The Opcode of the Register message
+     * byte 1: The size of the remaining number of bytes, 7
+     * byte 2-5: The interval in milliseconds, 0 for the default interval
+     * byte 6: The format of the TIME messages, 0 for full and 1 for compact
+     * byte 7: The number of TIME messages the Producer may write at once
+     * byte 8: The priority, 0 for normal and 1 for low. An overloaded 
+     * Producer may send fewer TIME messages to the low priority Consumers.
+     * 
+     * @param timeInterval the interval in milliseconds
+     * @param compactTime true for the compact format
+     * @param timeBatch the number of TIME messages written at once, from 1 to 
+     * MAX_TIME_BATCH
+     * @param lowPriority true for the low priority
+     * @return a new Register message packet
+     */
+    protected static byte[] newRegisterMessagePacket(int timeInterval, boolean compactTime, int timeBatch, boolean lowPriority){
+        return ByteBuffer.allocate(9).put(REGISTER.opcode()).put((byte)7).putInt(timeInterval)
+                .put((byte)(compactTime ? 1 : 0)).put((byte)timeBatch).put((byte)(lowPriority ? 1 : 0)).array();
+    }
+    
     /**
      * Construct a KeepAlive message packet to be send to Producer. The size 
-     * is 1, and the information will be encoded as follows:
+     * is 2, and the information will be encoded as follows:
      * byte 0: The Opcode of the KeepAlive message
+     * byte 1: The size of the remaining number of bytes, 0
      */
     private static final byte[] keepAliveMessagePacket;
     protected static byte[] getKeepAliveMessagePacket(){
         return keepAliveMessagePacket;
     }
     
+    /**
+     * Construct a MulticastJoined message packet to be send to Producer. The 
+     * size is 2, and the information will be encoded as follows:
+     * byte 0: The Opcode of the MulticastJoined message
+     * byte 1: The size of the remaining number of bytes, 0
+     */
+    private static final byte[] multicastJoinedMessagePacket;
+    protected static byte[] getMulticastJoinedMessagePacket(){
+        return multicastJoinedMessagePacket;
+    }
+    
+    /**
+     * Construct a reusable TimeRequest message packet to be send to Producer. 
+     * The size is 10, and the information will be encoded as follows:
+     * byte 0: The Opcode of the TimeRequest message
+     * byte 1: The size of the remaining number of bytes, 8
+     * byte 2-9: The time the request is sent, in nanoseconds since the epoch
+     * The time is patched in place on every send by putTimeRequest(byte[], 
+     * long).
+     * 
+     * @return a new TimeRequest message packet with no time set
+     */
+    protected static byte[] newTimeRequestMessagePacket(){
+        byte[] packet = new byte[TIME_REQUEST_PACKET_SIZE];
+        packet[0] = TIME_REQUEST.opcode();
+        packet[1] = (byte)8;
+        return packet;
+    }
+    
+    /**
+     * Sets the send time of a packet obtained from 
+     * newTimeRequestMessagePacket(), big-endian like ByteBuffer.putLong(long).
+     * 
+     * @param packet the packet to patch
+     * @param sendTimeNanos the time the request is sent, in nanoseconds since 
+     * the epoch
+     * @return packet
+     */
+    protected static byte[] putTimeRequest(byte[] packet, long sendTimeNanos){
+        for(int i = TIME_REQUEST_PACKET_SIZE - 1; i >= 2; i--){
+            packet[i] = (byte)sendTimeNanos;
+            sendTimeNanos >>>= 8;
+        }
+        return packet;
+    }
+    
+    /**
+     * @param ids the number of logical Consumer ids to list
+     * @return the size of the GatewayRegister or GatewayKeepAlive message 
+     * packets listing that many ids, in bytes
+     */
+    public static int gatewayPacketsSize(int ids){
+        int packets = (ids + MAX_IDS_PER_GATEWAY_PACKET - 1) / MAX_IDS_PER_GATEWAY_PACKET;
+        return packets * 2 + ids * 8;
+    }
+    
+    /**
+     * Puts the GatewayRegister message packets listing every id into buffer, 
+     * as many as needed. The information of each packet will be encoded as 
+     * follows:
+     * byte 0: The Opcode of the GatewayRegister message
+     * byte 1: The size of the remaining number of bytes, 8 per id
+     * byte 2-: Up to MAX_IDS_PER_GATEWAY_PACKET logical Consumer ids
+     * 
+     * @param buffer the buffer to put the packets into, it must have 
+     * gatewayPacketsSize(ids.length) bytes remaining
+     * @param ids the ids of the logical Consumers
+     * @return buffer
+     */
+    protected static ByteBuffer putGatewayRegisterPackets(ByteBuffer buffer, long[] ids){
+        return putGatewayPackets(buffer, GATEWAY_REGISTER, ids);
+    }
+    
+    /**
+     * Puts the GatewayKeepAlive message packets listing every id into 
+     * buffer, encoded as the GatewayRegister message packets.
+     * 
+     * @param buffer the buffer to put the packets into, it must have 
+     * gatewayPacketsSize(ids.length) bytes remaining
+     * @param ids the ids of the logical Consumers
+     * @return buffer
+     */
+    protected static ByteBuffer putGatewayKeepAlivePackets(ByteBuffer buffer, long[] ids){
+        return putGatewayPackets(buffer, GATEWAY_KEEP_ALIVE, ids);
+    }
+    
+    private static ByteBuffer putGatewayPackets(ByteBuffer buffer, ConsumerOpcode operation, long[] ids){
+        for(int i = 0; i < ids.length; i++){
+            if(i % MAX_IDS_PER_GATEWAY_PACKET == 0){
+                int count = Math.min(MAX_IDS_PER_GATEWAY_PACKET, ids.length - i);
+                buffer.put(operation.opcode()).put((byte)(count * 8));
+            }
+            buffer.putLong(ids[i]);
+        }
+        return buffer;
+    }
+    
 /*------------------------------------------------------------------------------
 START NON-STATIC
 ------------------------------------------------------------------------------*/
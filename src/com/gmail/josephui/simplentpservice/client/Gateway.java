@@ -0,0 +1,215 @@
+package com.gmail.josephui.simplentpservice.client;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.DeadlineScheduler;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeDispatcher;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeHandler;
+import static com.gmail.josephui.simplentpservice.server.Producer.DEFAULT_PORT;
+import com.gmail.josephui.simplentpservice.server.ProducerOpcode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * This class represent an edge gateway fronting many logical Consumers over a
+ * single connection to the Producer. It registers all of them with batched
+ * GATEWAY_REGISTER messages, keeps them alive with batched GATEWAY_KEEP_ALIVE
+ * messages, and receives a single TIME message per tick that it hands to all
+ * of them.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public class Gateway{
+    private static final Log log = Log.getInstance();
+
+    /**
+     * Processes the messages from the server, by Opcode. The MulticastGroup 
+     * message is ignored, a Gateway keeps receiving the TIME message over its 
+     * connection.
+     */
+    private static final OpcodeDispatcher<Gateway> dispatcher;
+    
+    static{
+        dispatcher = new OpcodeDispatcher<Gateway>();
+        dispatcher.register(ProducerOpcode.TIME.opcode(), new OpcodeHandler<Gateway>(){
+            @Override
+            public boolean process(Gateway gateway, ByteBuffer payload) throws IOException{
+                FrameDecoder.expectLength(payload, 8);
+                gateway.processTimeMessage(payload.getLong());
+                return true;
+            }
+        });
+        dispatcher.register(ProducerOpcode.MULTICAST_GROUP.opcode(), new OpcodeHandler<Gateway>(){
+            @Override
+            public boolean process(Gateway gateway, ByteBuffer payload){
+                return true;
+            }
+        });
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * This Gateway is connected to the server through this Socket
+     */
+    protected final Socket socketToServer;
+
+    /**
+     * The InputStream that accepts data from the server
+     */
+    protected final InputStream in;
+
+    /**
+     * The OutputStream that will take data to be send to the server
+     */
+    protected final OutputStream out;
+
+    /**
+     * The name of this Gateway, this is used when printing out messages to
+     * the console
+     */
+    protected final String gatewayName;
+
+    /**
+     * The ids of the logical Consumers this Gateway fronts
+     */
+    protected final long[] logicalConsumerIds;
+
+    /**
+     * The GatewayRegister message packets listing every logical Consumer,
+     * they are written with a single write
+     */
+    private final ByteBuffer registerPackets;
+
+    /**
+     * The GatewayKeepAlive message packets listing every logical Consumer,
+     * they are written with a single write every
+     * DELAY_BETWEEN_KEEP_ALIVE_MESSAGES milliseconds
+     */
+    private final ByteBuffer keepAlivePackets;
+
+    /**
+     * This Thread registers the logical Consumers, then keeps them alive for
+     * as long as the Gateway runs.
+     */
+    protected final Thread sendingServerMessagesThread;
+
+    /**
+     * This Thread listen to inputs from the server and processes them.
+     */
+    protected final Thread receivingServerMessagesThread;
+
+    /**
+     * @param _gatewayName the name of this Gateway
+     * @param firstLogicalConsumerId the id of the first logical Consumer, the
+     * others follow in sequence
+     * @param logicalConsumers the number of logical Consumers to front
+     * @param executor makes the Threads of this Gateway
+     */
+    public Gateway(String _gatewayName, long firstLogicalConsumerId, int logicalConsumers, ThreadExecutor executor) throws IOException{
+        this(_gatewayName, new InetSocketAddress(Consumer.SERVER_ADDRESS, DEFAULT_PORT), firstLogicalConsumerId, logicalConsumers, executor);
+    }
+
+    /**
+     * @param _gatewayName the name of this Gateway
+     * @param server the Producer to connect to, a Gateway is never
+     * redirected to another Producer of the cluster
+     * @param firstLogicalConsumerId the id of the first logical Consumer, the
+     * others follow in sequence
+     * @param logicalConsumers the number of logical Consumers to front
+     * @param executor makes the Threads of this Gateway
+     */
+    public Gateway(String _gatewayName, InetSocketAddress server, long firstLogicalConsumerId, int logicalConsumers, ThreadExecutor executor) throws IOException{
+        if(logicalConsumers <= 0){
+            throw new IllegalArgumentException("logicalConsumers must be positive");
+        }
+        socketToServer = new Socket(server.getAddress(), server.getPort());
+        socketToServer.setTcpNoDelay(true);
+        in = socketToServer.getInputStream();
+        out = socketToServer.getOutputStream();
+
+        gatewayName = _gatewayName;
+        logicalConsumerIds = new long[logicalConsumers];
+        for(int i = 0; i < logicalConsumers; i++){
+            logicalConsumerIds[i] = firstLogicalConsumerId + i;
+        }
+        int packetsSize = ConsumerPacketFactory.gatewayPacketsSize(logicalConsumers);
+        registerPackets = ConsumerPacketFactory.putGatewayRegisterPackets(ByteBuffer.allocate(packetsSize), logicalConsumerIds);
+        keepAlivePackets = ConsumerPacketFactory.putGatewayKeepAlivePackets(ByteBuffer.allocate(packetsSize), logicalConsumerIds);
+
+        //The thread is made on the fly because it's a single purpose thread
+        sendingServerMessagesThread = executor.newThread("sendingServerMessagesThread", new Runnable(){
+            @Override
+            public void run(){
+                DeadlineScheduler scheduler = DeadlineScheduler.getInstance();
+                ClockSource clock = ClockSource.getDefault();
+                try{
+                    sendPackets(registerPackets);
+                    while(true){
+                        long nextSendNanos = clock.nanoTime() + Consumer.DELAY_BETWEEN_KEEP_ALIVE_MESSAGES * 1000000;
+                        scheduler.sleepUntil(nextSendNanos);
+                        log.debug(gatewayName, "Sending GatewayKeepAlive Messages for {} logical Consumers", logicalConsumerIds.length);
+                        sendPackets(keepAlivePackets);
+                    }
+                }catch(InterruptedException ie){
+                    //Impossible because no other thread is calling
+                    //interrupt()
+                    throw new IllegalStateException("Impossible event.");
+                }catch(IOException ioe){
+                    log.warn(gatewayName, "Unable to send: {}", ioe);
+                }
+            }
+        });
+
+        //The thread is made on the fly because it's a single purpose thread
+        receivingServerMessagesThread = executor.newThread("receivingServerMessagesThread", new Runnable(){
+            @Override
+            public void run(){
+                FrameDecoder decoder = new FrameDecoder(in);
+                FrameDecoder.FrameHandler handler = dispatcher.bind(Gateway.this);
+                try{
+                    while(decoder.readFrames(handler)){
+                        //Every TIME message received with one read has been
+                        //processed
+                    }
+                }catch(IOException ioe){
+                    log.warn(gatewayName, "Connection lost: {}", ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts sending messages to, and receiving messages from, the server.
+     */
+    public void start(){
+        sendingServerMessagesThread.start();
+        receivingServerMessagesThread.start();
+    }
+
+    /**
+     * Called on the receiving Thread for the single TIME message each tick
+     * brings for all the logical Consumers, this prints out the time by
+     * default. A real gateway would hand it to each of its downstream
+     * Consumers.
+     *
+     * @param time the time in milliseconds since the epoch
+     */
+    protected void processTimeMessage(long time){
+        log.info(gatewayName, "CurrentTime: {} LogicalConsumers: {}", time, logicalConsumerIds.length);
+    }
+
+    private void sendPackets(ByteBuffer packets) throws IOException{
+        out.write(packets.array(), 0, packets.position());
+        out.flush();
+    }
+}
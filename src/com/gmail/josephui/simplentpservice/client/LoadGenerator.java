@@ -0,0 +1,559 @@
+package com.gmail.josephui.simplentpservice.client;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.Main;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.metrics.Histogram;
+import static com.gmail.josephui.simplentpservice.server.Producer.DEFAULT_PORT;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import com.gmail.josephui.simplentpservice.server.ProducerOpcode;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class simulates a large number of Consumers from a single process. The
+ * logical Consumers are multiplexed over non-blocking SocketChannels by a few
+ * Selector Threads instead of using a Socket and two Threads each, and their
+ * TIME messages are counted instead of printed. Like the Consumer, each
+ * logical Consumer sends REGISTER and then a random number of KEEP_ALIVE
+ * messages (see Consumer.generateTotalKeepAliveMessages()).
+ *
+ * Every second a line reports the connections, the TIME messages delivered
+ * per second, the percentiles of the delivery lag (the time of receipt minus
+ * the time carried by the message) and the number of disconnects.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class LoadGenerator{
+    private static final Log log = Log.getInstance();
+
+    /**
+     * The number of connections opened per second when none is given.
+     */
+    public static final int DEFAULT_RAMP_RATE = 5000;
+
+    /**
+     * How often the ramp Thread hands out new connections, in milliseconds.
+     */
+    private static final long RAMP_INTERVAL = 10;
+
+    /**
+     * How often the report is printed, in milliseconds.
+     */
+    private static final long REPORT_INTERVAL = 1000;
+
+    /**
+     * Runs the LoadGenerator against a Producer that is already running.
+     *
+     * @param args the number of logical Consumers, followed by the options,
+     * each given as --name=value:
+     * --host=HOST the address of the Producer, localhost by default
+     * --port=N the port of the Producer, Producer.DEFAULT_PORT by default
+     * --load-threads=N the number of Selector Threads
+     * --ramp-rate=N the number of connections opened per second
+     * --duration=N the number of seconds to run for, forever by default
+     * --bind=ADDRESS,... the local addresses to connect from in turn, as
+     * each one allows at most about 28000 connections to the same Producer
+     * --keep-alive-forever makes the logical Consumers never stop sending
+     * KEEP_ALIVE messages
+     * --clock=system|cached|virtual and --clock-speed=N set the clock as
+     * described in Main.main(String[]), a Producer running on its own
+     * virtual clock keeps the same periods but its times do not match
+     */
+    public static void main(String[] args) throws IOException, InterruptedException{
+        if(args.length == 0){
+            System.err.println("Please provide the number of Consumers to simulate");
+            return;
+        }
+        try{
+            Main.configureClock(args);
+        }catch(IllegalArgumentException iae){
+            System.err.println("Invalid option: " + iae.getMessage());
+            return;
+        }
+        LoadGenerator generator = fromArgs(Integer.parseInt(args[0]), args);
+        generator.start();
+        generator.awaitEnd();
+        System.exit(0);
+    }
+
+    /**
+     * Makes a LoadGenerator from the options described in main(String[]).
+     *
+     * @param numConsumers the number of logical Consumers
+     * @param args the command line arguments holding the options
+     * @return the LoadGenerator, not started
+     */
+    public static LoadGenerator fromArgs(int numConsumers, String[] args) throws IOException{
+        String host = Main.getOption(args, "host");
+        String port = Main.getOption(args, "port");
+        InetSocketAddress server = new InetSocketAddress(
+                (host != null) ? host : Consumer.SERVER_ADDRESS,
+                (port != null) ? Integer.parseInt(port) : DEFAULT_PORT);
+
+        String threads = Main.getOption(args, "load-threads");
+        String rampRate = Main.getOption(args, "ramp-rate");
+        String duration = Main.getOption(args, "duration");
+        List<InetAddress> bindAddresses = new ArrayList<InetAddress>();
+        String bind = Main.getOption(args, "bind");
+        if(bind != null){
+            for(String address : bind.split(",")){
+                bindAddresses.add(InetAddress.getByName(address));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(server, numConsumers,
+                (threads != null) ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors(),
+                (rampRate != null) ? Integer.parseInt(rampRate) : DEFAULT_RAMP_RATE,
+                Main.hasFlag(args, "keep-alive-forever"), bindAddresses);
+        if(duration != null){
+            generator.setDuration(Long.parseLong(duration), TimeUnit.SECONDS);
+        }
+        return generator;
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] packet){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(packet.length);
+        buffer.put(packet);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        if(channel == null){
+            return;
+        }
+        try{
+            channel.close();
+        }catch(IOException ioe){
+            //Problem closing channel..
+        }
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final InetSocketAddress server;
+
+    private final int numConsumers;
+
+    private final int rampRate;
+
+    private final boolean keepAliveForever;
+
+    /**
+     * The local addresses connections are made from in turn, the system
+     * picks one if this is empty.
+     */
+    private final List<InetAddress> bindAddresses;
+
+    private final Loop[] loops;
+
+    /**
+     * How long to run for in milliseconds, or 0 to run forever.
+     */
+    private long duration;
+
+    private final AtomicLong connectedConsumers;
+
+    private final AtomicLong failedConnects;
+
+    private final AtomicLong disconnects;
+
+    private final AtomicLong deliveredTimeMessages;
+
+    private final AtomicLong sentKeepAliveMessages;
+
+    /**
+     * The delivery lag of the TIME messages, in milliseconds.
+     */
+    private final Histogram deliveryLag;
+
+    /**
+     * The clock the ramp, the KEEP_ALIVE messages, the report and the
+     * delivery lag follow, the default ClockSource when this LoadGenerator
+     * was created. The delivery lag is only meaningful if the Producer runs
+     * on the same clock, as with Main --load-generator.
+     */
+    private final ClockSource clock;
+
+    /**
+     * Makes the Threads of this LoadGenerator. Always platform Threads, each
+     * Loop keeps its own Thread busy selecting.
+     */
+    private final ThreadExecutor executor;
+
+    /**
+     * The Thread logging the report, the LoadGenerator ends with it.
+     */
+    private Thread reportingThread;
+
+    public LoadGenerator(InetSocketAddress _server, int _numConsumers, int threads, int _rampRate,
+            boolean _keepAliveForever, List<InetAddress> _bindAddresses) throws IOException{
+        if(_numConsumers <= 0 || threads <= 0 || _rampRate <= 0){
+            throw new IllegalArgumentException("numConsumers, threads and rampRate must be positive");
+        }
+        server = _server;
+        numConsumers = _numConsumers;
+        rampRate = _rampRate;
+        keepAliveForever = _keepAliveForever;
+        bindAddresses = new ArrayList<InetAddress>(_bindAddresses);
+
+        connectedConsumers = new AtomicLong();
+        failedConnects = new AtomicLong();
+        disconnects = new AtomicLong();
+        deliveredTimeMessages = new AtomicLong();
+        sentKeepAliveMessages = new AtomicLong();
+        deliveryLag = new Histogram();
+        clock = ClockSource.getDefault();
+        executor = ThreadExecutor.getPlatformExecutor();
+
+        loops = new Loop[threads];
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new Loop();
+        }
+    }
+
+    public void setDuration(long _duration, TimeUnit unit){
+        duration = unit.toMillis(_duration);
+    }
+
+    /**
+     * Starts the Selector Threads, the ramp Thread opening the connections,
+     * and the Thread logging the report.
+     */
+    public void start(){
+        for(int i = 0; i < loops.length; i++){
+            executor.newThread("LoadGenerator " + i, loops[i]).start();
+        }
+
+        //The thread is made on the fly because it's a single purpose thread
+        Thread rampingThread = executor.newThread("LoadGenerator ramp", new Runnable(){
+            @Override
+            public void run(){
+                long start = clock.currentTimeMillis();
+                int opened = 0;
+                while(opened < numConsumers){
+                    long elapsed = clock.currentTimeMillis() - start;
+                    int due = (int)Math.min(numConsumers, (elapsed + RAMP_INTERVAL) * rampRate / 1000);
+                    while(opened < due){
+                        InetAddress bindAddress = bindAddresses.isEmpty() ? null : bindAddresses.get(opened % bindAddresses.size());
+                        loops[opened % loops.length].open(bindAddress);
+                        opened++;
+                    }
+                    try{
+                        clock.sleep(RAMP_INTERVAL);
+                    }catch(InterruptedException ie){
+                        return;
+                    }
+                }
+            }
+        });
+        rampingThread.setDaemon(true);
+        rampingThread.start();
+
+        //The thread is made on the fly because it's a single purpose thread
+        reportingThread = executor.newThread("LoadGenerator report", new Runnable(){
+            @Override
+            public void run(){
+                long start = clock.currentTimeMillis();
+                long lastDelivered = 0;
+                long nextReportTime = start + REPORT_INTERVAL;
+                while(duration == 0 || clock.currentTimeMillis() - start < duration){
+                    try{
+                        clock.sleep(nextReportTime - clock.currentTimeMillis());
+                    }catch(InterruptedException ie){
+                        return;
+                    }
+                    nextReportTime += REPORT_INTERVAL;
+                    long delivered = deliveredTimeMessages.get();
+                    log.info("LoadGenerator", report((clock.currentTimeMillis() - start) / 1000,
+                            delivered - lastDelivered, deliveryLag.snapshotAndReset()));
+                    lastDelivered = delivered;
+                }
+            }
+        });
+        reportingThread.start();
+    }
+
+    /**
+     * Waits until the duration has elapsed, this never returns if no
+     * duration is set.
+     */
+    public void awaitEnd() throws InterruptedException{
+        reportingThread.join();
+    }
+
+    private String report(long second, long timeMessagesPerSecond, Histogram.Snapshot lag){
+        return "t=" + second + "s connected=" + connectedConsumers.get() + "/" + numConsumers
+                + " TIME/s=" + timeMessagesPerSecond
+                + " lag(ms) p50=" + lag.getValueAtPercentile(50) + " p90=" + lag.getValueAtPercentile(90)
+                + " p99=" + lag.getValueAtPercentile(99) + " p99.9=" + lag.getValueAtPercentile(99.9)
+                + " max=" + lag.getMax()
+                + " keepAlives=" + sentKeepAliveMessages.get()
+                + " disconnects=" + disconnects.get() + " failedConnects=" + failedConnects.get();
+    }
+
+    /**
+     * A Selector Thread serving its share of the logical Consumers.
+     */
+    private final class Loop implements Runnable{
+        private final Selector selector;
+
+        /**
+         * The connections the ramp Thread asked this Loop to open, as the
+         * local address to bind to (or a placeholder for none).
+         */
+        private final Queue<InetSocketAddress> pendingOpens;
+
+        /**
+         * The connected logical Consumers by the time of their next
+         * KEEP_ALIVE message.
+         */
+        private final PriorityQueue<LogicalConsumer> keepAliveQueue;
+
+        /**
+         * The REGISTER and KEEP_ALIVE packets, shared by every write of this
+         * Loop.
+         */
+        private final ByteBuffer registerPacket;
+
+        private final ByteBuffer keepAlivePacket;
+
+        private Loop() throws IOException{
+            selector = Selector.open();
+            pendingOpens = new ConcurrentLinkedQueue<InetSocketAddress>();
+            keepAliveQueue = new PriorityQueue<LogicalConsumer>();
+            registerPacket = toDirectBuffer(ConsumerPacketFactory.getRegisterMessagePacket());
+            keepAlivePacket = toDirectBuffer(ConsumerPacketFactory.getKeepAliveMessagePacket());
+        }
+
+        /**
+         * Asks this Loop to open a connection, this may be called from any
+         * Thread.
+         *
+         * @param bindAddress the local address to connect from, or null
+         */
+        private void open(InetAddress bindAddress){
+            pendingOpens.add(new InetSocketAddress(bindAddress, 0));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                long timeout = 100;
+                LogicalConsumer next = keepAliveQueue.peek();
+                if(next != null){
+                    timeout = Math.max(1, Math.min(timeout, next.nextKeepAliveTime - clock.currentTimeMillis()));
+                }
+                try{
+                    selector.select(clock.toRealMillis(timeout));
+                }catch(IOException ioe){
+                    log.error("LoadGenerator", "Unable to select: {}", ioe);
+                    return;
+                }
+
+                openPendingConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    LogicalConsumer consumer = (LogicalConsumer)key.attachment();
+                    if(!key.isValid()){
+                        continue;
+                    }
+                    if(key.isConnectable()){
+                        consumer.finishConnect();
+                    }else if(key.isReadable()){
+                        consumer.read();
+                    }
+                }
+
+                sendDueKeepAlives();
+            }
+        }
+
+        private void openPendingConnections(){
+            InetSocketAddress bindAddress;
+            while((bindAddress = pendingOpens.poll()) != null){
+                SocketChannel channel = null;
+                try{
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if(!bindAddress.getAddress().isAnyLocalAddress()){
+                        channel.bind(bindAddress);
+                    }
+                    LogicalConsumer consumer = new LogicalConsumer(this, channel);
+                    consumer.key = channel.register(selector, SelectionKey.OP_CONNECT, consumer);
+                    if(channel.connect(server)){
+                        consumer.finishConnect();
+                    }
+                }catch(IOException ioe){
+                    failedConnects.incrementAndGet();
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void sendDueKeepAlives(){
+            long now = clock.currentTimeMillis();
+            LogicalConsumer consumer;
+            while((consumer = keepAliveQueue.peek()) != null && consumer.nextKeepAliveTime <= now){
+                keepAliveQueue.poll();
+                consumer.sendKeepAlive(now);
+            }
+        }
+    }
+
+    /**
+     * The state of a single simulated Consumer, only accessed from the
+     * Thread of its Loop.
+     */
+    private final class LogicalConsumer implements Comparable<LogicalConsumer>, FrameDecoder.FrameHandler{
+        private final Loop loop;
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        /**
+         * Holds the bytes received from the server until a whole message is
+         * available.
+         */
+        private final ByteBuffer inbound;
+
+        private int remainingKeepAliveMessages;
+
+        private long nextKeepAliveTime;
+
+        private boolean connected;
+
+        /**
+         * The time of the read being decoded, in milliseconds since the
+         * epoch.
+         */
+        private long readTime;
+
+        private LogicalConsumer(Loop _loop, SocketChannel _channel){
+            loop = _loop;
+            channel = _channel;
+            inbound = ByteBuffer.allocate(FrameDecoder.MAX_FRAME_SIZE);
+            remainingKeepAliveMessages = keepAliveForever ? Integer.MAX_VALUE : Consumer.generateTotalKeepAliveMessages();
+        }
+
+        private void finishConnect(){
+            try{
+                if(!channel.finishConnect()){
+                    return;
+                }
+                connected = true;
+                connectedConsumers.incrementAndGet();
+                key.interestOps(SelectionKey.OP_READ);
+                write(loop.registerPacket);
+            }catch(IOException ioe){
+                failedConnects.incrementAndGet();
+                close();
+                return;
+            }
+            scheduleKeepAlive(clock.currentTimeMillis());
+        }
+
+        private void scheduleKeepAlive(long now){
+            if(remainingKeepAliveMessages > 0){
+                nextKeepAliveTime = now + Consumer.DELAY_BETWEEN_KEEP_ALIVE_MESSAGES;
+                loop.keepAliveQueue.add(this);
+            }
+        }
+
+        private void sendKeepAlive(long now){
+            if(!connected){
+                return;
+            }
+            try{
+                write(loop.keepAlivePacket);
+            }catch(IOException ioe){
+                disconnected();
+                return;
+            }
+            sentKeepAliveMessages.incrementAndGet();
+            remainingKeepAliveMessages--;
+            scheduleKeepAlive(now);
+        }
+
+        private void write(ByteBuffer packet) throws IOException{
+            packet.clear();
+            channel.write(packet);
+        }
+
+        private void read(){
+            int read;
+            try{
+                read = channel.read(inbound);
+            }catch(IOException ioe){
+                read = -1;
+            }
+            if(read < 0){
+                disconnected();
+                return;
+            }
+            readTime = clock.currentTimeMillis();
+            inbound.flip();
+            try{
+                FrameDecoder.decode(inbound, this);
+            }catch(IOException ioe){
+                //Malformed message
+                disconnected();
+                return;
+            }
+            inbound.compact();
+        }
+
+        @Override
+        public boolean onFrame(int opcode, ByteBuffer payload){
+            if(opcode == ProducerOpcode.TIME.opcode() && payload.remaining() == 8){
+                deliveredTimeMessages.incrementAndGet();
+                deliveryLag.record(readTime - payload.getLong());
+            }
+            return true;
+        }
+
+        private void disconnected(){
+            if(connected){
+                connected = false;
+                connectedConsumers.decrementAndGet();
+                disconnects.incrementAndGet();
+            }
+            close();
+        }
+
+        private void close(){
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        @Override
+        public int compareTo(LogicalConsumer other){
+            return Long.compare(nextKeepAliveTime, other.nextKeepAliveTime);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.gmail.josephui.simplentpservice.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This singleton class is the log of the whole application, the Producer and
+ * the Consumers alike. Logging a message only copies its format and its
+ * arguments into the next entry of a lock free ring buffer, a single writing
+ * Thread formats the entries and prints them in batches, so no Thread but
+ * that one ever formats a message or waits on the lock of System.out.
+ *
+ * The arguments of a message replace the "{}" of its format in order, the
+ * long arguments are kept unboxed. A message whose level the current level
+ * does not let through is dropped before anything is copied, and the level
+ * may be changed at any time with setLevel(LogLevel). When the ring buffer is
+ * full the message is dropped rather than blocking the caller, the number of
+ * dropped messages is printed along with the next batch.
+ *
+ * The INFO messages are printed to System.out, the others to System.err for
+ * WARN and ERROR, and to System.out for DEBUG.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class Log{
+    /**
+     * The number of entries of the ring buffer, a power of two.
+     */
+    public static final int CAPACITY = 1 << 16;
+
+    /**
+     * The most nanoseconds the writing Thread stays parked while the ring
+     * buffer is empty, in case a wakeup is missed.
+     */
+    private static final long MAX_PARK_NANOS = 100000000;
+
+    /**
+     * The size a batch may grow to before it is printed, in characters.
+     */
+    private static final int MAX_BATCH_SIZE = 1 << 16;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final Log instance = new Log(CAPACITY);
+
+    /**
+     * @return the Log shared by the whole application
+     */
+    public static Log getInstance(){
+        return instance;
+    }
+
+    /**
+     * Appends a message to a batch, as [header] text for the INFO messages
+     * and as [header / LEVEL] text for the others.
+     */
+    private static void format(Entry entry, StringBuilder batch){
+        batch.append('[').append(entry.header);
+        if(entry.level != LogLevel.INFO){
+            batch.append(" / ").append(entry.level);
+        }
+        batch.append("] ");
+        String format = entry.format;
+        int from = 0;
+        for(int i = 0; i < entry.argCount; i++){
+            int at = format.indexOf("{}", from);
+            if(at < 0){
+                break;
+            }
+            batch.append(format, from, at);
+            if((entry.longArgs & (1 << i)) != 0){
+                batch.append(i == 0 ? entry.long0 : entry.long1);
+            }else{
+                batch.append(i == 0 ? entry.arg0 : entry.arg1);
+            }
+            from = at + 2;
+        }
+        batch.append(format, from, format.length()).append(LINE_SEPARATOR);
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final Entry[] entries;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next entry to be claimed by a logging
+     * Thread.
+     */
+    private final AtomicLong claimed;
+
+    /**
+     * The sequence number of the next entry the writing Thread prints, every
+     * entry before it may be claimed again.
+     */
+    private volatile long drained;
+
+    /**
+     * The messages dropped because the ring buffer was full, since start.
+     */
+    private final AtomicLong dropped;
+
+    /**
+     * The part of dropped that has been printed, only accessed while holding
+     * this Log's monitor.
+     */
+    private long reportedDropped;
+
+    private volatile LogLevel level;
+
+    /**
+     * Set while the writing Thread is about to park or parked, so that the
+     * logging Threads only unpark it when needed.
+     */
+    private volatile boolean writerParked;
+
+    /**
+     * The lines going to System.out and System.err, reused for every batch.
+     * Only accessed while holding this Log's monitor.
+     */
+    private final StringBuilder outBatch;
+
+    private final StringBuilder errBatch;
+
+    /**
+     * This Thread prints the messages, it is a daemon Thread and the
+     * messages left when the JVM exits are printed by a shutdown hook.
+     */
+    private final Thread writingLogThread;
+
+    private Log(int capacity){
+        entries = new Entry[capacity];
+        for(int i = 0; i < capacity; i++){
+            entries[i] = new Entry();
+        }
+        mask = capacity - 1;
+        claimed = new AtomicLong();
+        dropped = new AtomicLong();
+        level = LogLevel.INFO;
+        outBatch = new StringBuilder(MAX_BATCH_SIZE);
+        errBatch = new StringBuilder();
+
+        //The thread is made on the fly because it's a single purpose thread
+        writingLogThread = new Thread("writingLogThread"){
+            @Override
+            public void run(){
+                while(true){
+                    if(!drain()){
+                        writerParked = true;
+                        //Checked again, an entry may have been published
+                        //before the flag was seen
+                        if(!hasPendingEntry()){
+                            LockSupport.parkNanos(Log.this, MAX_PARK_NANOS);
+                        }
+                        writerParked = false;
+                    }
+                }
+            }
+        };
+        writingLogThread.setDaemon(true);
+        writingLogThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("flushingLogThread"){
+            @Override
+            public void run(){
+                drain();
+            }
+        });
+    }
+
+    public LogLevel getLevel(){
+        return level;
+    }
+
+    /**
+     * @param _level the least severe level printed from now on
+     */
+    public void setLevel(LogLevel _level){
+        if(_level == null){
+            throw new IllegalArgumentException("level must not be null");
+        }
+        level = _level;
+    }
+
+    /**
+     * @param messageLevel the level of a message
+     * @return true if the message would be printed
+     */
+    public boolean isEnabled(LogLevel messageLevel){
+        return level.allows(messageLevel);
+    }
+
+    /**
+     * @return the number of messages dropped because the ring buffer was
+     * full, since start
+     */
+    public long getDroppedMessages(){
+        return dropped.get();
+    }
+
+    public void error(String header, String message){
+        if(level.allows(LogLevel.ERROR)){
+            append(LogLevel.ERROR, header, message, 0, 0, null, null, 0, 0);
+        }
+    }
+
+    public void error(String header, String format, Object arg){
+        if(level.allows(LogLevel.ERROR)){
+            append(LogLevel.ERROR, header, format, 1, 0, arg, null, 0, 0);
+        }
+    }
+
+    public void warn(String header, String message){
+        if(level.allows(LogLevel.WARN)){
+            append(LogLevel.WARN, header, message, 0, 0, null, null, 0, 0);
+        }
+    }
+
+    public void warn(String header, String format, Object arg){
+        if(level.allows(LogLevel.WARN)){
+            append(LogLevel.WARN, header, format, 1, 0, arg, null, 0, 0);
+        }
+    }
+
+    public void warn(String header, String format, Object arg0, Object arg1){
+        if(level.allows(LogLevel.WARN)){
+            append(LogLevel.WARN, header, format, 2, 0, arg0, arg1, 0, 0);
+        }
+    }
+
+    public void info(String header, String message){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, message, 0, 0, null, null, 0, 0);
+        }
+    }
+
+    public void info(String header, String format, Object arg){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, format, 1, 0, arg, null, 0, 0);
+        }
+    }
+
+    public void info(String header, String format, long arg){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, format, 1, 1, null, null, arg, 0);
+        }
+    }
+
+    public void info(String header, String format, Object arg0, Object arg1){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, format, 2, 0, arg0, arg1, 0, 0);
+        }
+    }
+
+    public void info(String header, String format, long arg0, Object arg1){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, format, 2, 1, null, arg1, arg0, 0);
+        }
+    }
+
+    public void info(String header, String format, long arg0, long arg1){
+        if(level.allows(LogLevel.INFO)){
+            append(LogLevel.INFO, header, format, 2, 3, null, null, arg0, arg1);
+        }
+    }
+
+    public void debug(String header, String message){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, message, 0, 0, null, null, 0, 0);
+        }
+    }
+
+    public void debug(String header, String format, Object arg){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, format, 1, 0, arg, null, 0, 0);
+        }
+    }
+
+    public void debug(String header, String format, long arg){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, format, 1, 1, null, null, arg, 0);
+        }
+    }
+
+    public void debug(String header, String format, Object arg0, Object arg1){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, format, 2, 0, arg0, arg1, 0, 0);
+        }
+    }
+
+    public void debug(String header, String format, long arg0, Object arg1){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, format, 2, 1, null, arg1, arg0, 0);
+        }
+    }
+
+    public void debug(String header, String format, long arg0, long arg1){
+        if(level.allows(LogLevel.DEBUG)){
+            append(LogLevel.DEBUG, header, format, 2, 3, null, null, arg0, arg1);
+        }
+    }
+
+    /**
+     * Claims the next entry of the ring buffer, fills it in and publishes it
+     * to the writing Thread. This does not allocate, nor block.
+     *
+     * @param argCount the number of arguments, 0 to 2
+     * @param longArgs a bit set of the arguments given as a long, bit 0 for
+     * the first one
+     */
+    private void append(LogLevel messageLevel, String header, String format, int argCount, int longArgs,
+            Object arg0, Object arg1, long long0, long long1){
+        long sequence;
+        do{
+            sequence = claimed.get();
+            if(sequence - drained >= entries.length){
+                //The writing Thread is behind, the message is dropped
+                dropped.incrementAndGet();
+                return;
+            }
+        }while(!claimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = entries[(int)sequence & mask];
+        entry.level = messageLevel;
+        entry.header = header;
+        entry.format = format;
+        entry.argCount = argCount;
+        entry.longArgs = longArgs;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+        entry.long0 = long0;
+        entry.long1 = long1;
+        //Every field above is visible to the writing Thread once it reads
+        //this one
+        entry.published = sequence;
+        if(writerParked){
+            LockSupport.unpark(writingLogThread);
+        }
+    }
+
+    private boolean hasPendingEntry(){
+        long sequence = drained;
+        return entries[(int)sequence & mask].published == sequence;
+    }
+
+    /**
+     * Formats every published entry and prints them in batches.
+     *
+     * @return false if there was nothing to print
+     */
+    private synchronized boolean drain(){
+        long sequence = drained;
+        Entry entry = entries[(int)sequence & mask];
+        long lost = dropped.get() - reportedDropped;
+        if(entry.published != sequence && lost == 0){
+            return false;
+        }
+        if(lost > 0){
+            reportedDropped += lost;
+            errBatch.append("[Log / WARN] ").append(lost).append(" messages dropped, the ring buffer was full").append(LINE_SEPARATOR);
+        }
+        while(entry.published == sequence){
+            format(entry, (entry.level == LogLevel.ERROR || entry.level == LogLevel.WARN) ? errBatch : outBatch);
+            entry.clear();
+            sequence++;
+            //The entry may be claimed again
+            drained = sequence;
+            if(outBatch.length() >= MAX_BATCH_SIZE || errBatch.length() >= MAX_BATCH_SIZE){
+                flush();
+            }
+            entry = entries[(int)sequence & mask];
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Prints the batches with a single write each.
+     */
+    private void flush(){
+        if(errBatch.length() > 0){
+            System.err.print(errBatch);
+            System.err.flush();
+            errBatch.setLength(0);
+        }
+        if(outBatch.length() > 0){
+            System.out.print(outBatch);
+            System.out.flush();
+            outBatch.setLength(0);
+        }
+    }
+
+    /**
+     * A message waiting in the ring buffer, published once published holds
+     * its sequence number.
+     */
+    private static final class Entry{
+        private volatile long published = -1;
+
+        private LogLevel level;
+
+        private String header;
+
+        private String format;
+
+        private int argCount;
+
+        private int longArgs;
+
+        private Object arg0;
+
+        private Object arg1;
+
+        private long long0;
+
+        private long long1;
+
+        /**
+         * Drops the references to the arguments, so that they do not outlive
+         * the message.
+         */
+        private void clear(){
+            arg0 = null;
+            arg1 = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.gmail.josephui.simplentpservice.log;
+
+/**
+ * This class provides the enumerate constants for the levels of the Log,
+ * from the most to the least severe. A level lets through the messages of
+ * its own and of the more severe levels.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum LogLevel{
+    //Failures the application does not recover from on its own
+    ERROR,
+
+    //Failures that are recovered from, such as a lost connection
+    WARN,
+
+    //The output of the application, such as the TIME messages received
+    INFO,
+
+    //The detailed progress of every Thread, formerly shown in test mode
+    DEBUG;
+
+    /**
+     * @param level the level of a message
+     * @return true if this level lets the message through
+     */
+    public boolean allows(LogLevel level){
+        return level.ordinal() <= ordinal();
+    }
+
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * Looks up the level by name, ignoring case.
+     *
+     * @param name the name of the level
+     * @return the matching level, or null if there is none
+     */
+    public static LogLevel getByName(String name){
+        for(LogLevel level : values()){
+            if(level.name().equalsIgnoreCase(name)){
+                return level;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+package com.gmail.josephui.simplentpservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of non-negative long values, in the style of
+ * HdrHistogram. Values are counted exactly up to 2 * 2^precisionBits, and
+ * above that with a relative error of at most 2^-precisionBits. Recording is
+ * lock free and does not allocate, so it may be used on hot paths from any
+ * number of Threads.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class Histogram{
+    /**
+     * The default precision, which bounds the relative error to about 3%.
+     */
+    public static final int DEFAULT_PRECISION_BITS = 5;
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The number of bits of each value that are kept.
+     */
+    private final int precisionBits;
+
+    /**
+     * The number of buckets sharing each power of two, 2^precisionBits.
+     */
+    private final int subBucketCount;
+
+    private final AtomicLongArray counts;
+
+    public Histogram(){
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    public Histogram(int _precisionBits){
+        if(_precisionBits < 1 || _precisionBits > 16){
+            throw new IllegalArgumentException("precisionBits must be between 1 and 16");
+        }
+        precisionBits = _precisionBits;
+        subBucketCount = 1 << _precisionBits;
+        counts = new AtomicLongArray((64 - _precisionBits) * subBucketCount);
+    }
+
+    /**
+     * Counts the value, negative values are counted as 0.
+     *
+     * @param value the value to count
+     */
+    public void record(long value){
+        counts.incrementAndGet(indexOf(Math.max(value, 0)));
+    }
+
+    private int indexOf(long value){
+        if(value < 2 * subBucketCount){
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+        long mantissa = value >>> shift;
+        return (shift + 1) * subBucketCount + (int)(mantissa - subBucketCount);
+    }
+
+    /**
+     * @return the highest value counted in the bucket at index
+     */
+    private long highestValueAt(int index){
+        if(index < 2 * subBucketCount){
+            return index;
+        }
+        int shift = index / subBucketCount - 1;
+        long mantissa = subBucketCount + index % subBucketCount;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Copies the counts and clears them, so that each snapshot covers the
+     * values recorded since the previous one. Values recorded while the
+     * snapshot is taken end up in either this snapshot or the next one.
+     *
+     * @return the values recorded since the previous call
+     */
+    public Snapshot snapshotAndReset(){
+        long[] copy = new long[counts.length()];
+        for(int i = 0; i < copy.length; i++){
+            copy[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * @return the values recorded so far, without clearing them
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[counts.length()];
+        for(int i = 0; i < copy.length; i++){
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * An immutable copy of the counts of a Histogram.
+     */
+    public final class Snapshot{
+        private final long[] snapshotCounts;
+
+        private final long totalCount;
+
+        private Snapshot(long[] _snapshotCounts){
+            snapshotCounts = _snapshotCounts;
+            long total = 0;
+            for(long count : _snapshotCounts){
+                total += count;
+            }
+            totalCount = total;
+        }
+
+        public long getCount(){
+            return totalCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below or at which the given percentage of the
+         * values fall, or 0 if no value was recorded
+         */
+        public long getValueAtPercentile(double percentile){
+            if(totalCount == 0){
+                return 0;
+            }
+            long rank = (long)Math.ceil(percentile / 100 * totalCount);
+            rank = Math.max(1, Math.min(rank, totalCount));
+            long seen = 0;
+            for(int i = 0; i < snapshotCounts.length; i++){
+                seen += snapshotCounts[i];
+                if(seen >= rank){
+                    return highestValueAt(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * @return the highest value recorded, or 0 if no value was recorded
+         */
+        public long getMax(){
+            for(int i = snapshotCounts.length - 1; i >= 0; i--){
+                if(snapshotCounts[i] != 0){
+                    return highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the mean of the recorded values, or 0 if no value was
+         * recorded
+         */
+        public double getMean(){
+            if(totalCount == 0){
+                return 0;
+            }
+            double sum = 0;
+            for(int i = 0; i < snapshotCounts.length; i++){
+                if(snapshotCounts[i] != 0){
+                    sum += (double)highestValueAt(i) * snapshotCounts[i];
+                }
+            }
+            return sum / totalCount;
+        }
+
+        @Override
+        public String toString(){
+            return "count=" + totalCount + " p50=" + getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90)
+                    + " p99=" + getValueAtPercentile(99) + " p99.9=" + getValueAtPercentile(99.9) + " max=" + getMax();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.gmail.josephui.simplentpservice.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the messages exchanged by the Producer and the Consumers, which are
+ * all framed the same way:
+ * byte 0: The Opcode of the message
+ * byte 1: The size of the remaining number of bytes, from 0 to 255
+ * byte 2-: The content of the message
+ * Every whole frame in a buffer is decoded per read, in place, so that
+ * receiving a message neither costs a system call of its own nor allocates.
+ * An instance reads from a blocking InputStream through a buffer of its own,
+ * the static decode(ByteBuffer, FrameHandler) serves any other buffer.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class FrameDecoder{
+    /**
+     * The size of the opcode and the length of a frame, in bytes.
+     */
+    public static final int HEADER_SIZE = 2;
+
+    /**
+     * The size of the largest frame, in bytes.
+     */
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + 255;
+
+    /**
+     * The buffer size used by the blocking readers when none is given, in
+     * bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /**
+     * Receives the frames as they are decoded.
+     */
+    public interface FrameHandler{
+        /**
+         * @param opcode the Opcode of the frame, from 0 to 255
+         * @param payload the content of the frame between its position and
+         * its limit, only valid for the duration of the call
+         * @return false to stop decoding, for instance because the
+         * connection has been closed
+         * @throws IOException if the frame is malformed
+         */
+        boolean onFrame(int opcode, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Hands every whole frame between the position and the limit of buffer
+     * to handler. The position is left at the beginning of the first frame
+     * that is not whole yet, or right after the frame the handler stopped at.
+     *
+     * @return false if the handler stopped the decoding
+     */
+    public static boolean decode(ByteBuffer buffer, FrameHandler handler) throws IOException{
+        int limit = buffer.limit();
+        while(limit - buffer.position() >= HEADER_SIZE){
+            int start = buffer.position();
+            int end = start + HEADER_SIZE + (buffer.get(start + 1) & 0xFF);
+            if(end > limit){
+                //Wait for the rest of the frame
+                break;
+            }
+            buffer.limit(end);
+            buffer.position(start + HEADER_SIZE);
+            boolean proceed;
+            try{
+                proceed = handler.onFrame(buffer.get(start) & 0xFF, buffer);
+            }finally{
+                buffer.limit(limit);
+            }
+            //Whatever the handler left unread is skipped
+            buffer.position(end);
+            if(!proceed){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the size of the content of a frame.
+     *
+     * @param payload the content of the frame
+     * @param length the size the content must be, in bytes
+     * @throws ProtocolException if the content has another size
+     */
+    public static void expectLength(ByteBuffer payload, int length) throws ProtocolException{
+        if(payload.remaining() != length){
+            throw new ProtocolException("Unexpected frame length: " + payload.remaining());
+        }
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The stream the frames are read from
+     */
+    private final InputStream in;
+
+    /**
+     * Holds the bytes read but not decoded yet, in write mode between two
+     * calls to readFrames(FrameHandler)
+     */
+    private final ByteBuffer buffer;
+
+    public FrameDecoder(InputStream _in){
+        this(_in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param _in the stream the frames are read from
+     * @param bufferSize the most bytes taken from in per read, at least
+     * MAX_FRAME_SIZE so that any frame fits
+     */
+    public FrameDecoder(InputStream _in, int bufferSize){
+        if(bufferSize < MAX_FRAME_SIZE){
+            throw new IllegalArgumentException("bufferSize must be at least " + MAX_FRAME_SIZE);
+        }
+        in = _in;
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Blocks until in has bytes, reads as many of them as fit into the
+     * buffer with a single read and hands every whole frame to handler. The
+     * beginning of a frame split over two reads is kept for the next call.
+     *
+     * @return false once in has ended between two frames, or if the handler
+     * stopped the decoding
+     * @throws EOFException if in has ended within a frame
+     */
+    public boolean readFrames(FrameHandler handler) throws IOException{
+        int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if(read < 0){
+            if(buffer.position() > 0){
+                throw new EOFException("Stream ended within a frame");
+            }
+            return false;
+        }
+        buffer.position(buffer.position() + read);
+        buffer.flip();
+        try{
+            return decode(buffer, handler);
+        }finally{
+            buffer.compact();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.gmail.josephui.simplentpservice.protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Dispatches the decoded messages to the OpcodeHandler registered for their 
+ * Opcode. The handlers are kept in a table of 256 entries indexed by the 
+ * Opcode byte, so dispatching a message is a single array load, whatever the 
+ * number of message types, and does not allocate. An Opcode without a handler 
+ * is a malformed message.
+ * 
+ * The handlers are registered once, before the dispatcher is used by the 
+ * Threads reading the connections, typically from a static initializer.
+ * 
+ * @param <C> the type of the connection the messages arrive on
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class OpcodeDispatcher<C>{
+    /**
+     * The number of distinct Opcodes, one per value of a byte.
+     */
+    public static final int TABLE_SIZE = 256;
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private final OpcodeHandler<C>[] handlers;
+    
+    @SuppressWarnings("unchecked")
+    public OpcodeDispatcher(){
+        handlers = (OpcodeHandler<C>[])new OpcodeHandler<?>[TABLE_SIZE];
+    }
+    
+    /**
+     * Registers the handler of an Opcode.
+     * 
+     * @param opcode the Opcode of the messages to process
+     * @param handler processes the messages
+     * @return this OpcodeDispatcher, so that calls may be chained
+     * @throws IllegalArgumentException if a handler is already registered for 
+     * the Opcode
+     */
+    public OpcodeDispatcher<C> register(byte opcode, OpcodeHandler<C> handler){
+        if(handler == null){
+            throw new IllegalArgumentException("handler must not be null");
+        }
+        if(handlers[opcode & 0xFF] != null){
+            throw new IllegalArgumentException("A handler is already registered for opcode " + (opcode & 0xFF));
+        }
+        handlers[opcode & 0xFF] = handler;
+        return this;
+    }
+    
+    /**
+     * Hands a message to the handler of its Opcode.
+     * 
+     * @param connection the connection the message arrived on
+     * @param opcode the Opcode of the message, from 0 to 255
+     * @param payload the content of the message
+     * @return the result of the handler
+     * @throws ProtocolException if no handler is registered for the Opcode
+     */
+    public boolean dispatch(C connection, int opcode, ByteBuffer payload) throws IOException{
+        OpcodeHandler<C> handler = handlers[opcode];
+        if(handler == null){
+            throw new ProtocolException("Unknown opcode: " + opcode);
+        }
+        return handler.process(connection, payload);
+    }
+    
+    /**
+     * Makes the FrameHandler dispatching the frames decoded from a 
+     * connection, it is meant to be made once per connection.
+     * 
+     * @param connection the connection the frames are read from
+     * @return the FrameHandler
+     */
+    public FrameDecoder.FrameHandler bind(final C connection){
+        return new FrameDecoder.FrameHandler(){
+            @Override
+            public boolean onFrame(int opcode, ByteBuffer payload) throws IOException{
+                return dispatch(connection, opcode, payload);
+            }
+        };
+    }
+}
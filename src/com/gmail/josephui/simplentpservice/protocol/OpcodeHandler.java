@@ -0,0 +1,26 @@
+package com.gmail.josephui.simplentpservice.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Processes the messages of one Opcode for an OpcodeDispatcher. A new type of 
+ * message is added by registering an OpcodeHandler for its Opcode, the loop 
+ * reading the messages does not change.
+ * 
+ * @param <C> the type of the connection the messages arrive on
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public interface OpcodeHandler<C>{
+    /**
+     * @param connection the connection the message arrived on
+     * @param payload the content of the message between its position and its 
+     * limit, a view of the read buffer that is only valid for the duration of 
+     * the call
+     * @return false if the connection has been closed and no further message 
+     * should be processed
+     * @throws IOException if the message is malformed
+     */
+    boolean process(C connection, ByteBuffer payload) throws IOException;
+}
@@ -0,0 +1,73 @@
+package com.gmail.josephui.simplentpservice.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the signed numbers of the compact messages in as few bytes as their
+ * magnitude needs. A number is first zigzag mapped, so that the small
+ * negative numbers become small positive ones as well:
+ * 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...
+ * and then written 7 bits at a time from the least significant ones, every
+ * byte but the last having its most significant bit set. A number takes
+ * from 1 to 10 bytes.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class VarInt{
+    /**
+     * The size of the largest encoded number, in bytes.
+     */
+    public static final int MAX_SIZE = 10;
+
+    private VarInt(){
+    }
+
+    /**
+     * @param value the number to encode
+     * @return the number of bytes putZigZag(ByteBuffer, long) writes for
+     * value
+     */
+    public static int zigZagSize(long value){
+        long bits = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while((bits >>>= 7) != 0){
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes value at the position of buffer, which is advanced past it.
+     */
+    public static void putZigZag(ByteBuffer buffer, long value){
+        long bits = (value << 1) ^ (value >> 63);
+        while((bits & ~0x7FL) != 0){
+            buffer.put((byte)((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        buffer.put((byte)bits);
+    }
+
+    /**
+     * Reads a number at the position of buffer, which is advanced past it.
+     *
+     * @throws ProtocolException if the number does not end before the limit
+     * of buffer or takes more than MAX_SIZE bytes
+     */
+    public static long getZigZag(ByteBuffer buffer) throws ProtocolException{
+        long bits = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            if(!buffer.hasRemaining()){
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = buffer.get();
+            bits |= (long)(b & 0x7F) << shift;
+            if(b >= 0){
+                return (bits >>> 1) ^ -(bits & 1);
+            }
+        }
+        throw new ProtocolException("Varint longer than " + MAX_SIZE + " bytes");
+    }
+}
@@ -0,0 +1,279 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Instances of this class own a share of the ClientHandlers of the BLOCKING
+ * engine, with their own registry, keep-alive expiry and broadcast Thread.
+ * Every BroadcastShard is ticked at the same time by the Producer, so the
+ * TIME message is queued for the Consumers of all shards in parallel and the
+ * fan-out time scales down with the number of cores, as with the EventLoops
+ * of the EVENT_LOOP engine. On each tick only the clients whose interval is
+ * due are sent the TIME message.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class BroadcastShard implements Runnable{
+    private static final ProducerMetrics metrics = ProducerMetrics.getInstance();
+
+    private static final Log log = Log.getInstance();
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final String name;
+
+    /**
+     * Contains the ClientHandlers of this shard that have sent their
+     * REGISTER message and have not timed out yet, by the interval they
+     * receive the TIME message at. The RateSchedule needs no lock, so the
+     * broadcast iterating over it never stalls the REGISTER of other clients
+     * or the expiry.
+     */
+    private final RateSchedule<ClientHandler> listeningClients;
+
+    /**
+     * Keeps the listening clients in buckets by the time of their last
+     * KeepAlive message, so that removing the timed out clients only touches
+     * the clients that are actually due. The TimingWheel is not thread safe,
+     * it is guarded by its own monitor.
+     */
+    private final TimingWheel<ClientHandler> keepAliveWheel;
+
+    /**
+     * The clients expired by a tick, reused for every tick. Guarded by the
+     * monitor of keepAliveWheel, like the wheel it is filled from.
+     */
+    private final List<ClientHandler> expiredClients;
+
+    /**
+     * Set by the Producer's tick Thread, and cleared by this shard's Thread
+     * once the TIME message has been queued.
+     */
+    private final AtomicBoolean tickPending;
+
+    /**
+     * The clock.nanoTime() the pending tick was due, set along with
+     * tickPending.
+     */
+    private volatile long scheduledTickNanos;
+
+    /**
+     * The number of the pending tick, set along with tickPending.
+     */
+    private volatile long scheduledTick;
+
+    /**
+     * The number of the last tick handled, -1 before the first one. Only
+     * accessed by this shard's Thread.
+     */
+    private long lastTick;
+
+    /**
+     * The clock.nanoTime() the current tick started, the writing Threads of
+     * the ClientHandlers measure their delivery time from it.
+     */
+    private volatile long tickStartNanos;
+
+    private final ShardStats stats;
+
+    /**
+     * The clock of the Producer, the default ClockSource when this shard was
+     * created.
+     */
+    private final ClockSource clock;
+
+    /**
+     * Is told how long each tick took, and decides whether the low priority
+     * clients are throttled.
+     */
+    private final OverloadMonitor overloadMonitor;
+
+    private final Thread broadcastingThread;
+
+    /**
+     * @param _name the name of the shard and of its Thread
+     * @param executor makes the Thread of the shard
+     * @param _overloadMonitor tracks the duration of the ticks of the
+     * Producer
+     */
+    BroadcastShard(String _name, ThreadExecutor executor, OverloadMonitor _overloadMonitor){
+        name = _name;
+        listeningClients = new RateSchedule<ClientHandler>();
+        keepAliveWheel = new TimingWheel<ClientHandler>();
+        expiredClients = new ArrayList<ClientHandler>();
+        tickPending = new AtomicBoolean();
+        lastTick = -1;
+        stats = new ShardStats(_name);
+        clock = ClockSource.getDefault();
+        overloadMonitor = _overloadMonitor;
+        broadcastingThread = executor.newThread(_name, this);
+    }
+
+    void start(){
+        broadcastingThread.start();
+    }
+
+    /**
+     * Requests that this shard removes its timed out clients and queues the
+     * TIME message for the others that are due. This may be called from any
+     * Thread.
+     *
+     * @param scheduledNanos the clock.nanoTime() the TIME message was due,
+     * for the tick lag metric
+     * @param tick the number of the tick, counted from 0
+     */
+    void tick(long scheduledNanos, long tick){
+        scheduledTickNanos = scheduledNanos;
+        scheduledTick = tick;
+        if(tickPending.compareAndSet(false, true)){
+            LockSupport.unpark(broadcastingThread);
+        }
+    }
+
+    @Override
+    public void run(){
+        while(true){
+            while(!tickPending.getAndSet(false)){
+                LockSupport.park(this);
+            }
+            long scheduledNanos = scheduledTickNanos;
+            long tick = scheduledTick;
+            long startNanos = clock.nanoTime();
+            //Checks for timed out clients and remove them
+            removeClientsOlderThan(clock.currentTimeMillis() - Producer.KEEP_ALIVE_TIME);
+
+            //The ticks on which no client is due are not recorded
+            boolean fannedOut = listeningClients.isAnyDue(lastTick, tick);
+            if(fannedOut){
+                log.debug(name, "Sending out Time messages");
+                //Gives the active clients the time message
+                TimeBroadcastEvent event = new TimeBroadcastEvent();
+                event.begin();
+                long fanOutStartNanos = clock.nanoTime();
+                tickStartNanos = fanOutStartNanos;
+                int sent = sendTimeMessageToListeningClients(tick);
+                stats.recordFanOut(fanOutStartNanos, sent);
+                metrics.recordBroadcast(scheduledNanos, startNanos, fanOutStartNanos, sent, event);
+            }
+            overloadMonitor.recordTick(tick, scheduledNanos, clock.nanoTime(), fannedOut);
+            lastTick = tick;
+        }
+    }
+
+    /**
+     * Adds the client to the listening clients, once it has sent its REGISTER
+     * message.
+     *
+     * @param period the number of ticks between two TIME messages to the
+     * client
+     * @return true if it was not listening yet
+     */
+    boolean addListeningClient(long clientId, int period, ClientHandler client){
+        return listeningClients.add(clientId, period, client);
+    }
+
+    /**
+     * @param period the period the client was added with
+     * @return true if the client was listening
+     */
+    boolean removeListeningClient(long clientId, int period){
+        return listeningClients.remove(clientId, period) != null;
+    }
+
+    TimingWheel.Entry<ClientHandler> newKeepAliveEntry(ClientHandler client){
+        synchronized(keepAliveWheel){
+            return keepAliveWheel.newEntry(client);
+        }
+    }
+
+    /**
+     * Moves the client to the bucket of its last KeepAlive message, this is
+     * O(1).
+     */
+    void scheduleKeepAlive(TimingWheel.Entry<ClientHandler> entry, long time){
+        synchronized(keepAliveWheel){
+            keepAliveWheel.schedule(entry, time);
+        }
+    }
+
+    void cancelKeepAlive(TimingWheel.Entry<ClientHandler> entry){
+        synchronized(keepAliveWheel){
+            keepAliveWheel.cancel(entry);
+        }
+    }
+
+    /**
+     * Removes all clients of this shard that has last send their KeepAlive
+     * message before timeMinimum
+     *
+     * @param timeMinimum the time in milliseconds since the epoch
+     */
+    private void removeClientsOlderThan(long timeMinimum){
+        synchronized(keepAliveWheel){
+            keepAliveWheel.expireOlderThan(timeMinimum, expiredClients);
+            metrics.recordExpiries(expiredClients.size());
+            for(int i = 0; i < expiredClients.size(); i++){
+                expiredClients.get(i).close();
+            }
+            expiredClients.clear();
+        }
+    }
+
+    /**
+     * Queues the TIME message for every listening client of this shard that
+     * is due on the tick. Each client's own writing Thread does the blocking
+     * write, so a client that does not read its messages can not hold up the
+     * others.
+     *
+     * @param tick the number of the tick
+     * @return the number of clients the message was queued for
+     */
+    private int sendTimeMessageToListeningClients(long tick){
+        log.debug(name, "Total listening clients: {}", listeningClients.size());
+        int sent = 0;
+        int throttled = 0;
+        boolean throttling = overloadMonitor.isThrottlingLowPriority();
+        //No lock is held while queueing, clients may REGISTER or be removed
+        //during the broadcast
+        for(RateSchedule.Group<ClientHandler> group : listeningClients.groups()){
+            if(!group.isDue(lastTick, tick)){
+                continue;
+            }
+            boolean lowPriorityDue = !throttling || group.isDue(lastTick, tick, OverloadMonitor.THROTTLE_FACTOR);
+            for(ClientHandler client : group.clients()){
+                if(!lowPriorityDue && client.isLowPriority()){
+                    throttled++;
+                    continue;
+                }
+                sent++;
+                client.sendTimeMessage(clock.currentTimeMillis());
+            }
+        }
+        if(throttled > 0){
+            metrics.recordThrottledTimeMessages(throttled);
+        }
+        return sent;
+    }
+
+    /**
+     * Records that a client of this shard has written a TIME message.
+     *
+     * @param deliveredNanos the clock.nanoTime() the write returned
+     */
+    void recordDelivery(long deliveredNanos){
+        stats.recordDelivery(tickStartNanos, deliveredNanos);
+    }
+
+    ShardStats getStats(){
+        return stats;
+    }
+}
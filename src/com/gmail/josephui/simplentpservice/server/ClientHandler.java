@@ -1,16 +1,22 @@
 package com.gmail.josephui.simplentpservice.server;
 
-import com.gmail.josephui.simplentpservice.TestMod;
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
 import com.gmail.josephui.simplentpservice.client.ConsumerOpcode;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeDispatcher;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeHandler;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Instances of this class listens to clients that has been accepted by the 
@@ -19,86 +25,118 @@ import java.util.concurrent.atomic.AtomicLong;
  * @author Joseph Hui
  * @version 2015.1.17
  */
-public final class ClientHandler extends Thread{
+public final class ClientHandler implements Runnable{
     /**
-     * Contains the list of currently 'listening' Consumer connections, 
-     * 'listening' is defined to be a connection that has received a KeepAlive 
-     * message within the past alloted time. A HashSet is used for this 
-     * implementation due to fastest average performance (O(1)). However, a 
-     * TreeSet may be used instead if memory space is of concern.
+     * Contains every ClientHandler that has sent its REGISTER message, across 
+     * all the BroadcastShards, so that their outbound queues can be 
+     * inspected from any Thread.
      */
-    private static final Set<ClientHandler> listeningClients;
+    private static final ClientRegistry<ClientHandler> allClients;
     
-    static{
-        //Wrap it around with synchronizedSet for deterministic behavior
-        listeningClients = Collections.synchronizedSet(new HashSet<ClientHandler>());
-    }
-    
-    static int counter = 1;
     /**
-     * Removes all Consumers that has last send their KeepAlive message before 
-     * timeMinimum
-     * 
-     * @param timeMinimum the time in milliseconds since the epoch
-     */
-    public static void removeClientsOlderThan(long timeMinimum){
-        synchronized(listeningClients){
-            LinkedList<ClientHandler> toBeRemovedClients = new LinkedList();
-            
-            for(ClientHandler client : listeningClients){
-                if(client.lastKeepAliveReceiveTime.get() < timeMinimum){
-                    //Remove has to be done outside iterator
-                    toBeRemovedClients.add(client);
-                    
-                    //Testing code
-                    //System.out.println("[Producer] " + counter++);
+     * Processes the messages from the clients, by Opcode. A new type of 
+     * message is added by registering its OpcodeHandler here.
+     */
+    private static final OpcodeDispatcher<ClientHandler> dispatcher;
+    
+    static{
+        allClients = new ClientRegistry<ClientHandler>();
+        
+        dispatcher = new OpcodeDispatcher<ClientHandler>();
+        dispatcher.register(ConsumerOpcode.REGISTER.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload) throws IOException{
+                if(client.redirect() || client.rejectRegister()){
+                    return false;
                 }
+                RegisterRequest request = RegisterRequest.read(payload, client.config, client.config.getOutboundHighWaterMark());
+                client.register(request.period, request.timeEncoder, request.lowPriority, client.clock.currentTimeMillis());
+                return true;
             }
-            
-            for(ClientHandler client : toBeRemovedClients){
-                try{
-                    client.in.close();
-                    client.out.close();
-                    client.socket.close();
-                }catch(IOException ioe){
-                    //Problem closing stream..
-                }
-                listeningClients.remove(client);
+        });
+        dispatcher.register(ConsumerOpcode.KEEP_ALIVE.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload){
+                metrics.recordKeepAlive();
+                client.keepAlive(client.clock.currentTimeMillis());
+                return true;
             }
-        }
+        });
+        dispatcher.register(ConsumerOpcode.TIME_REQUEST.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload) throws IOException{
+                client.answerTimeRequest(payload);
+                return true;
+            }
+        });
+        dispatcher.register(ConsumerOpcode.GATEWAY_REGISTER.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload) throws IOException{
+                client.registerGateway(payload, client.clock.currentTimeMillis());
+                return true;
+            }
+        });
+        dispatcher.register(ConsumerOpcode.GATEWAY_KEEP_ALIVE.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload) throws IOException{
+                client.keepAliveGateway(payload, client.clock.currentTimeMillis());
+                return true;
+            }
+        });
+        dispatcher.register(ConsumerOpcode.MULTICAST_JOINED.opcode(), new OpcodeHandler<ClientHandler>(){
+            @Override
+            public boolean process(ClientHandler client, ByteBuffer payload){
+                client.joinedMulticastGroup();
+                return true;
+            }
+        });
     }
     
+    private static final ProducerMetrics metrics = ProducerMetrics.getInstance();
+
+    private static final Log log = Log.getInstance();
+    
     /**
-     * Sends a time sensitive packet explicitly generated for each individual 
-     * client.
+     * The size of the buffer each ClientHandler reads the messages of its 
+     * client into. The Consumer messages are a few bytes each, so this holds 
+     * dozens of them while keeping the memory per connection small.
      */
-    public static void sendTimeMessageToListeningClients(){
-        synchronized(listeningClients){
-            TestMod.printlnIfTest("static ClientHandler", "Total listening clients: " + listeningClients.size());
-            for(ClientHandler client : listeningClients){
-                try{
-                    byte[] timePacket = ProducerPacketFactory.getTimeMessagePacket(System.currentTimeMillis());
-                    client.out.write(timePacket);
-                    client.out.flush();
-                }catch(IOException ioe){
-                    client.interrupt();
-                }
-            }
+    private static final int READ_BUFFER_SIZE = 2 * FrameDecoder.MAX_FRAME_SIZE;
+    
+    /**
+     * How long a redirected client is given to close the connection, in 
+     * milliseconds, before it is closed from this end.
+     */
+    private static final int REDIRECT_LINGER_TIME = 1000;
+    
+    /**
+     * Takes a snapshot of the outbound queue of every listening client.
+     * 
+     * @return the queue depth and drop counters of each listening client
+     */
+    public static List<ClientQueueStats> getClientQueueStats(){
+        List<ClientQueueStats> stats = new ArrayList<ClientQueueStats>(allClients.size());
+        for(ClientHandler client : allClients.clients()){
+            stats.add(new ClientQueueStats(client.clientId, String.valueOf(client.socket.getRemoteSocketAddress()), client.outboundQueue));
         }
+        return stats;
     }
     
     //The following method would be used if more general (not as time 
     //sensitive) packets were to be send
     /*
     public static void sendMessageToListeningClients(byte[] packet){
-        synchronized(listeningClients){
-            for(ClientHandler client : listeningClients){
+        for(ClientHandler client : allClients.clients()){
+            try{
+                client.outLock.lock();
                 try{
                     client.out.write(packet);
                     client.out.flush();
-                }catch(IOException ioe){
-                    //
+                }finally{
+                    client.outLock.unlock();
                 }
+            }catch(IOException ioe){
+                //
             }
         }
     }
@@ -108,6 +146,18 @@ public final class ClientHandler extends Thread{
 START NON-STATIC
 ------------------------------------------------------------------------------*/
     
+    /**
+     * The id this client is registered under in the listening clients of its 
+     * BroadcastShard
+     */
+    private final long clientId;
+    
+    /**
+     * The BroadcastShard this client belongs to, which sends it the TIME 
+     * messages and expires it
+     */
+    private final BroadcastShard shard;
+    
     /**
      * This ClientHandler is connected to the client through this Socket
      */
@@ -123,6 +173,13 @@ START NON-STATIC
      */
     private final OutputStream out;
     
+    /**
+     * Guards the writes to out, which both Threads of this ClientHandler 
+     * make. A ReentrantLock rather than a monitor, so that a virtual Thread 
+     * blocked in a write while holding it does not pin its carrier.
+     */
+    private final ReentrantLock outLock;
+    
     /**
      * This keeps track of the last time a KEEP_ALIVE message has been 
      * received, the implementation uses a AtomicLong because it could be 
@@ -130,55 +187,449 @@ START NON-STATIC
      */
     private final AtomicLong lastKeepAliveReceiveTime;
     
-    public ClientHandler(Socket _socket) throws IOException{
+    /**
+     * The node of this client in the keep-alive TimingWheel of its shard, it 
+     * is rescheduled on every KEEP_ALIVE message once the client has REGISTER 
+     * itself.
+     */
+    private final TimingWheel.Entry<ClientHandler> keepAliveEntry;
+    
+    /**
+     * Set once the REGISTER message has been received, only accessed by this 
+     * ClientHandler's own Thread.
+     */
+    private boolean registered;
+    
+    /**
+     * The settings of the Producer, which clamp the interval the client asks 
+     * for in its REGISTER message.
+     */
+    private final ProducerConfig config;
+    
+    /**
+     * The clock of the Producer, which stamps the KeepAlive messages and the 
+     * TimeResponse messages.
+     */
+    private final ClockSource clock;
+    
+    /**
+     * The number of ticks between two TIME messages to the client, as asked 
+     * for by its first REGISTER message. Read by the Thread closing the 
+     * client, which may be another one.
+     */
+    private volatile int timePeriod;
+    
+    /**
+     * Encodes the TIME messages in the format asked for by the first 
+     * REGISTER message. Read by the Thread writing to the client.
+     */
+    private volatile TimeEncoder timeEncoder;
+    
+    /**
+     * Set if the first REGISTER message asked for a low priority, such a 
+     * client is throttled first when the Producer is overloaded. Read by the 
+     * Thread of the shard.
+     */
+    private volatile boolean lowPriority;
+    
+    /**
+     * The period of the clients asking for the default interval, which are 
+     * the only ones offered the multicast group.
+     */
+    private final int defaultTimePeriod;
+    
+    /**
+     * The logical Consumers of the client, when it is a gateway. It is only 
+     * allocated once a GATEWAY_REGISTER message is received, and only 
+     * accessed by this ClientHandler's own Thread.
+     */
+    private GatewayConsumers gatewayConsumers;
+    
+    /**
+     * The MulticastGroup message sent in answer to the REGISTER message, or 
+     * null if the TIME messages are not published to a multicast group.
+     */
+    private final byte[] multicastGroupPacket;
+    
+    /**
+     * Set once the client has joined the multicast group, from then on the 
+     * TIME messages are not written to it. Read by the Thread closing the 
+     * client, which may be another one.
+     */
+    private volatile boolean multicastMember;
+    
+    /**
+     * Chooses the Producer of the cluster the client is redirected to if 
+     * this one is at capacity, or null if this Producer runs alone.
+     */
+    private final ClusterMembership cluster;
+    
+    /**
+     * Decides whether the client is told to retry later instead of 
+     * registering, while the Producer is overloaded.
+     */
+    private final OverloadMonitor overloadMonitor;
+    
+    /**
+     * Set once the client has been sent to another Producer, or told to 
+     * retry later, only accessed by this ClientHandler's own Thread.
+     */
+    private boolean redirected;
+    
+    /**
+     * The TIME messages waiting to be written to the client.
+     */
+    private final OutboundQueue outboundQueue;
+    
+    /**
+     * The TimeResponse message packet, reused for every TIME_REQUEST. Only 
+     * accessed by this ClientHandler's own Thread.
+     */
+    private final ByteBuffer timeResponsePacket;
+    
+    /**
+     * This Thread takes the TIME messages from the outboundQueue and writes 
+     * them to the client. Writes to out are guarded by outLock, as this 
+     * ClientHandler's own Thread writes the TimeResponse messages.
+     */
+    private final Thread writingClientMessagesThread;
+    
+    /**
+     * @param _socket the accepted connection to the client
+     * @param _config the settings of the Producer
+     * @param executor makes the Thread writing to the client, the 
+     * ClientHandler itself is expected to run on a Thread of the same executor
+     * @param _shard the BroadcastShard the client belongs to
+     * @param _cluster chooses the Producer the client is redirected to, null 
+     * if this Producer runs alone
+     * @param _overloadMonitor decides whether the client is told to retry 
+     * later instead of registering
+     */
+    ClientHandler(Socket _socket, ProducerConfig _config, ThreadExecutor executor, BroadcastShard _shard, ClusterMembership _cluster,
+            OverloadMonitor _overloadMonitor) throws IOException{
+        clientId = ClientRegistry.newClientId();
+        shard = _shard;
+        cluster = _cluster;
+        overloadMonitor = _overloadMonitor;
+        config = _config;
+        clock = ClockSource.getDefault();
+        defaultTimePeriod = RateSchedule.periodOf((int)Producer.DELAY_BETWEEN_TIME_MESSAGES, _config);
+        timePeriod = defaultTimePeriod;
+        timeEncoder = TimeEncoder.DEFAULT;
         socket = _socket;
+        //The TIME and TIME_RESPONSE messages are small and time sensitive, 
+        //Nagle's algorithm would hold them back until the previous write is 
+        //acknowledged
+        _socket.setTcpNoDelay(true);
         in = _socket.getInputStream();
         out = _socket.getOutputStream();
+        outLock = new ReentrantLock();
         lastKeepAliveReceiveTime = new AtomicLong();
+        keepAliveEntry = _shard.newKeepAliveEntry(this);
+        outboundQueue = new OutboundQueue(_config.getOutboundHighWaterMark(), _config.getSlowConsumerPolicy());
+        timeResponsePacket = ByteBuffer.allocate(ProducerPacketFactory.TIME_RESPONSE_PACKET_SIZE);
+        if(_config.getMulticastGroup() != null){
+            multicastGroupPacket = ProducerPacketFactory.newMulticastGroupPacket(_config.getMulticastGroup());
+        }else{
+            multicastGroupPacket = null;
+        }
+        
+        //The thread is made on the fly because it's a single purpose thread
+        writingClientMessagesThread = executor.newThread("writingClientMessagesThread " + clientId, new Runnable(){
+            @Override
+            public void run(){
+                //The queued TIME messages are encoded into a buffer reused for 
+                //every write, so sending does not allocate. Whatever is 
+                //queued goes out with a single write, and a client that 
+                //asked for batching is written to once a whole batch is 
+                //queued
+                ByteBuffer timePackets = ByteBuffer.allocate(TimeEncoder.MAX_BATCH_SIZE * TimeEncoder.MAX_MESSAGE_SIZE);
+                long[] times = new long[TimeEncoder.MAX_BATCH_SIZE];
+                try{
+                    while(true){
+                        TimeEncoder encoder = timeEncoder;
+                        int count = outboundQueue.take(times, encoder.getBatchSize());
+                        timePackets.clear();
+                        for(int i = 0; i < count; i++){
+                            encoder.encode(times[i], timePackets);
+                        }
+                        outLock.lock();
+                        try{
+                            out.write(timePackets.array(), 0, timePackets.position());
+                            out.flush();
+                        }finally{
+                            outLock.unlock();
+                        }
+                        metrics.recordTimeWrite(count, timePackets.position());
+                        shard.recordDelivery(clock.nanoTime());
+                    }
+                }catch(InterruptedException ie){
+                    //The client has been closed
+                }catch(IOException ioe){
+                    metrics.recordWriteFailure();
+                    ClientHandler.this.close();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Queues the TIME message for the writing Thread, applying the 
+     * SlowConsumerPolicy if the outbound queue is full.
+     * 
+     * @param time the time in milliseconds since the epoch
+     */
+    void sendTimeMessage(long time){
+        OutboundQueue.OfferResult result = outboundQueue.offer(time);
+        switch(result){
+            case DISCONNECT:
+                log.debug("ClientHandler", "Disconnecting slow client {}", clientId);
+                close();
+                break;
+            case DEGRADED:
+            case DROPPED_STALE:
+                log.debug("ClientHandler", "Slow client {}: {}", clientId, result);
+        }
+    }
+    
+    /**
+     * Closes the connection to the client, which ends both of its Threads.
+     */
+    void close(){
+        outboundQueue.close();
+        try{
+            in.close();
+            out.close();
+            socket.close();
+        }catch(IOException ioe){
+            //Problem closing stream..
+        }
+        shard.removeListeningClient(clientId, timePeriod);
+        //Only the first close of a registered client is counted
+        if(allClients.remove(clientId) != null){
+            metrics.recordRemoved();
+            if(multicastMember){
+                metrics.recordMulticastMembers(-1);
+            }
+        }
+    }
+    
+    /**
+     * Writes a whole packet to the client from this ClientHandler's own 
+     * Thread.
+     */
+    private void sendPacket(byte[] packet) throws IOException{
+        outLock.lock();
+        try{
+            out.write(packet);
+            out.flush();
+        }finally{
+            outLock.unlock();
+        }
+    }
+    
+    /**
+     * Answers a TimeRequest message with a TimeResponse message.
+     * 
+     * @param payload the content of the TimeRequest message
+     */
+    private void answerTimeRequest(ByteBuffer payload) throws IOException{
+        FrameDecoder.expectLength(payload, 8);
+        long requestSendTimeNanos = payload.getLong();
+        long receiveTimeNanos = clock.currentTimeNanos();
+        outLock.lock();
+        try{
+            timeResponsePacket.clear();
+            //The transmit time is taken as late as possible
+            ProducerPacketFactory.putTimeResponse(timeResponsePacket, requestSendTimeNanos, receiveTimeNanos, clock.currentTimeNanos());
+            out.write(timeResponsePacket.array());
+            out.flush();
+        }finally{
+            outLock.unlock();
+        }
+    }
+    
+    /**
+     * Records the receive time of a KeepAlive message.
+     * 
+     * @param now the time in milliseconds since the epoch
+     */
+    private void keepAlive(long now){
+        lastKeepAliveReceiveTime.set(now);
+        if(registered){
+            //Moving the client to its new bucket is O(1)
+            shard.scheduleKeepAlive(keepAliveEntry, now);
+        }
+    }
+    
+    /**
+     * Adds the client to the listening clients of its shard, once it has 
+     * sent its REGISTER message. The period of the first REGISTER message 
+     * and its TIME format hold for the life of the connection.
+     * 
+     * @param period the number of ticks between two TIME messages asked for
+     * @param encoder encodes the TIME messages in the format asked for
+     * @param _lowPriority true if the client asked for a low priority
+     * @param now the time in milliseconds since the epoch
+     */
+    private void register(int period, TimeEncoder encoder, boolean _lowPriority, long now) throws IOException{
+        if(allClients.add(clientId, this)){
+            metrics.recordRegister();
+            timePeriod = period;
+            timeEncoder = encoder;
+            lowPriority = _lowPriority;
+            if(multicastGroupPacket != null && period == defaultTimePeriod){
+                //The client may join the group from now on
+                sendPacket(multicastGroupPacket);
+            }
+        }
+        if(!multicastMember){
+            shard.addListeningClient(clientId, timePeriod, this);
+        }
+        registered = true;
+        //The initial receive time is set as by a KEEP_ALIVE message
+        keepAlive(now);
+    }
+    
+    /**
+     * Sends the client to a less loaded Producer of the cluster with a 
+     * Redirect message instead of registering it, if this Producer is at 
+     * capacity. Gateways are not redirected.
+     * 
+     * @return true if the client has been redirected, in which case no more 
+     * of its messages are processed
+     */
+    private boolean redirect() throws IOException{
+        if(registered || cluster == null){
+            return false;
+        }
+        InetSocketAddress target = cluster.redirectTarget();
+        if(target == null){
+            return false;
+        }
+        log.debug("ClientHandler", "Redirecting client {} to {}", clientId, target);
+        sendPacket(ProducerPacketFactory.newRedirectPacket(target));
+        socket.shutdownOutput();
+        redirected = true;
+        return true;
+    }
+    
+    /**
+     * Tells the client to connect again later with a RetryAfter message 
+     * instead of registering it, if this Producer is overloaded and rejects 
+     * new clients. Gateways are not rejected.
+     * 
+     * @return true if the client has been rejected, in which case no more of 
+     * its messages are processed
+     */
+    private boolean rejectRegister() throws IOException{
+        if(registered || !overloadMonitor.isRejectingRegisters()){
+            return false;
+        }
+        log.debug("ClientHandler", "Telling client {} to retry later", clientId);
+        metrics.recordRejectedRegister();
+        sendPacket(ProducerPacketFactory.newRetryAfterPacket(overloadMonitor.getRetryAfter()));
+        socket.shutdownOutput();
+        redirected = true;
+        return true;
+    }
+    
+    /**
+     * @return true if the client asked for a low priority in its REGISTER 
+     * message
+     */
+    boolean isLowPriority(){
+        return lowPriority;
+    }
+    
+    /**
+     * Waits for a redirected client to close the connection, discarding 
+     * whatever it sent after its REGISTER message, so that closing this end 
+     * does not reset the connection before the Redirect message is read.
+     */
+    private void awaitClientClose() throws IOException{
+        socket.setSoTimeout(REDIRECT_LINGER_TIME);
+        byte[] discarded = new byte[READ_BUFFER_SIZE];
+        while(in.read(discarded) >= 0){
+            //Discarded
+        }
+    }
+    
+    /**
+     * Registers the logical Consumers listed in a GatewayRegister message, 
+     * the gateway connection itself is registered once.
+     * 
+     * @param payload the content of the message
+     * @param now the time in milliseconds since the epoch
+     */
+    private void registerGateway(ByteBuffer payload, long now) throws IOException{
+        if(gatewayConsumers == null){
+            gatewayConsumers = new GatewayConsumers();
+        }
+        gatewayConsumers.register(payload, now);
+        //The gateway receives the TIME message at the default interval
+        register(defaultTimePeriod, TimeEncoder.DEFAULT, false, now);
+    }
+    
+    /**
+     * Keeps alive the logical Consumers listed in a GatewayKeepAlive 
+     * message, after removing those that have timed out.
+     * 
+     * @param payload the content of the message
+     * @param now the time in milliseconds since the epoch
+     */
+    private void keepAliveGateway(ByteBuffer payload, long now) throws IOException{
+        metrics.recordKeepAlive();
+        if(gatewayConsumers != null){
+            gatewayConsumers.expireOlderThan(now - Producer.KEEP_ALIVE_TIME);
+            //The connection stays alive as long as any of its logical 
+            //Consumers does
+            if(gatewayConsumers.keepAlive(payload, now) > 0){
+                keepAlive(now);
+            }
+        }
+    }
+    
+    /**
+     * Stops sending the TIME message to the client once it has joined the 
+     * multicast group, as the message now reaches it through the group.
+     */
+    private void joinedMulticastGroup(){
+        if(registered && multicastGroupPacket != null && !multicastMember && timePeriod == defaultTimePeriod){
+            multicastMember = true;
+            metrics.recordMulticastMembers(1);
+            shard.removeListeningClient(clientId, timePeriod);
+        }
     }
     
     @Override
     public void run(){
+        writingClientMessagesThread.start();
+        //Every message received with one read is processed before the next 
+        //read, out of a buffer that is reused for the life of the connection
+        FrameDecoder decoder = new FrameDecoder(in, READ_BUFFER_SIZE);
+        FrameDecoder.FrameHandler handler = dispatcher.bind(this);
         try{
-            while(!interrupted()){
-                TestMod.printlnIfTest("ClientHandler", "Waiting on incoming Opcode");
-                //Identify the operation of the request
-                ConsumerOpcode operation = ConsumerOpcode.getByOpcode((byte)in.read());
-                //If operation is null it's not a defined operation
-                assert(operation != null);
-                TestMod.printlnIfTest("ClientHandler", "Opcode: " + operation);
-                
-                //The following code is used if more Opcodes that include 
-                //additional information are implemented
-                /*
-                int length = in.read();
-                
-                //BufferedInputStream is not used here because the read() 
-                //does not guarentee to read all the bytes before returning.
-                byte[] packet = new byte[length];
-                for(int i = 0; i < packet.length; i++){
-                    packet[i] = (byte)in.read();
-                }
-                
-                //Set up buffer to decipher the packet
-                ByteBuffer buffer = ByteBuffer.wrap(packet);
-                */
-                
-                //Process the request
-                //If more Opcodes are used, dedicated classes implementing an 
-                //interface could be used to process each instruction for
-                //clarity
-                switch(operation){
-                    case REGISTER:
-                        listeningClients.add(this);
-                        //No break here so that the initial receive time is set
-                    case KEEP_ALIVE:
-                        lastKeepAliveReceiveTime.set(System.currentTimeMillis());
+            while(!Thread.interrupted()){
+                log.debug("ClientHandler", "Waiting on incoming Opcode");
+                if(!decoder.readFrames(handler)){
+                    if(redirected){
+                        awaitClientClose();
+                    }
+                    //Connection closed by the client
+                    break;
                 }
             }
         }catch(IOException ioe){
-            //Connection severed, either by client, or closed from the static 
-            //method removeClientsOlderThan(long)
+            //Connection severed, either by client, or closed from the 
+            //method removeClientsOlderThan(long) of the BroadcastShard
+        }finally{
+            //Nothing to do if the client has already been expired
+            shard.cancelKeepAlive(keepAliveEntry);
+            close();
+            if(gatewayConsumers != null){
+                gatewayConsumers.clear();
+            }
         }
     }
 }
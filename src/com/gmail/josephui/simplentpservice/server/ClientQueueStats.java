@@ -0,0 +1,80 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A snapshot of the outbound queue of a registered Consumer, used to spot the 
+ * Consumers that do not keep up with their TIME messages.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ClientQueueStats{
+    private final long clientId;
+    
+    private final String address;
+    
+    private final int depth;
+    
+    private final int highWaterMark;
+    
+    private final long dropped;
+    
+    private final boolean degraded;
+    
+    ClientQueueStats(long _clientId, String _address, OutboundQueue queue){
+        clientId = _clientId;
+        address = _address;
+        //Read under the queue's lock so the values are consistent
+        Lock lock = queue.getLock();
+        lock.lock();
+        try{
+            depth = queue.getDepth();
+            dropped = queue.getDropped();
+            degraded = queue.isDegraded();
+        }finally{
+            lock.unlock();
+        }
+        highWaterMark = queue.getHighWaterMark();
+    }
+    
+    public long getClientId(){
+        return clientId;
+    }
+    
+    /**
+     * @return the remote address of the Consumer
+     */
+    public String getAddress(){
+        return address;
+    }
+    
+    /**
+     * @return the number of TIME messages waiting to be written
+     */
+    public int getDepth(){
+        return depth;
+    }
+    
+    public int getHighWaterMark(){
+        return highWaterMark;
+    }
+    
+    /**
+     * @return the number of TIME messages dropped because the Consumer did 
+     * not keep up
+     */
+    public long getDropped(){
+        return dropped;
+    }
+    
+    public boolean isDegraded(){
+        return degraded;
+    }
+    
+    @Override
+    public String toString(){
+        return "Client " + clientId + " (" + address + ") depth " + depth + "/" + highWaterMark
+                + ", dropped " + dropped + (degraded ? ", degraded" : "");
+    }
+}
@@ -0,0 +1,75 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the registered clients by a unique client id. The registry
+ * is backed by a ConcurrentHashMap, so registering and removing clients never
+ * wait on a Thread iterating over the clients, and the iteration itself takes
+ * no lock: it sees every client that stays registered for its whole duration
+ * and may or may not see the clients added or removed meanwhile.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class ClientRegistry<T>{
+    /**
+     * The source of the client ids, ids are never reused.
+     */
+    private static final AtomicLong nextClientId = new AtomicLong(1);
+
+    /**
+     * Reserves a new client id, the id is unique among every registry.
+     *
+     * @return the new client id
+     */
+    static long newClientId(){
+        return nextClientId.getAndIncrement();
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final ConcurrentMap<Long, T> clients;
+
+    ClientRegistry(){
+        clients = new ConcurrentHashMap<Long, T>();
+    }
+
+    /**
+     * Adds the client under the given id, nothing happens if a client is
+     * already registered under that id.
+     *
+     * @param clientId the id obtained from newClientId()
+     * @param client the client to add
+     * @return true if the client was added
+     */
+    boolean add(long clientId, T client){
+        return clients.putIfAbsent(clientId, client) == null;
+    }
+
+    /**
+     * @param clientId the id of the client to remove
+     * @return the removed client, or null if none was registered under
+     * clientId
+     */
+    T remove(long clientId){
+        return clients.remove(clientId);
+    }
+
+    /**
+     * @return a live view of the registered clients that can be iterated
+     * without locking
+     */
+    Collection<T> clients(){
+        return clients.values();
+    }
+
+    int size(){
+        return clients.size();
+    }
+}
@@ -0,0 +1,242 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the load of the other Producers of the cluster, so that a
+ * Producer at capacity can send the Consumers that REGISTER with it to a less
+ * loaded peer instead.
+ *
+ * Every Producer sends each of its peers a LoadReport message every
+ * ANNOUNCE_INTERVAL milliseconds, over UDP on the port its Consumers connect
+ * to over TCP. A peer that has not been heard from for PEER_TIMEOUT
+ * milliseconds is considered down and is not redirected to. The reports are
+ * recognized by their source address, which has to be the address the peer
+ * is configured under.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class ClusterMembership{
+    /**
+     * The milliseconds between two LoadReport messages to every peer.
+     */
+    static final long ANNOUNCE_INTERVAL = 500;
+
+    /**
+     * A peer that has not sent a LoadReport message for this many
+     * milliseconds is considered down.
+     */
+    static final long PEER_TIMEOUT = 3 * ANNOUNCE_INTERVAL;
+
+    private static final ProducerMetrics metrics = ProducerMetrics.getInstance();
+
+    private static final Log log = Log.getInstance();
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The other Producers of the cluster, as the Consumers reach them.
+     */
+    private final InetSocketAddress[] peers;
+
+    /**
+     * The number of Consumers registered with each peer, as last reported.
+     * It is also incremented for every Consumer redirected to the peer, so
+     * that the Consumers arriving between two reports are not all sent to
+     * the same one.
+     */
+    private final AtomicLongArray peerLoads;
+
+    /**
+     * The most Consumers each peer takes, as last reported, Long.MAX_VALUE
+     * for a peer that takes any number.
+     */
+    private final AtomicLongArray peerCapacities;
+
+    /**
+     * The time each peer was last heard from, in milliseconds since the
+     * epoch, 0 if it never was.
+     */
+    private final AtomicLongArray peerLastReportTimes;
+
+    /**
+     * The number of registered Consumers above which this Producer redirects
+     * the REGISTER messages, or 0 if it never does.
+     */
+    private final int maxClients;
+
+    private final DatagramChannel channel;
+
+    private final Thread announcingLoadThread;
+
+    private final Thread receivingLoadReportsThread;
+
+    /**
+     * The clock of the Producer, the announce interval and the peer timeout
+     * follow it.
+     */
+    private final ClockSource clock;
+
+    /**
+     * @param port the UDP port to receive the reports on, the TCP port of
+     * this Producer
+     * @param _peers the other Producers of the cluster
+     * @param _maxClients the number of registered Consumers above which this
+     * Producer redirects, 0 to never redirect
+     * @param executor makes the Threads exchanging the reports
+     */
+    ClusterMembership(int port, List<InetSocketAddress> _peers, int _maxClients, ThreadExecutor executor) throws IOException{
+        peers = _peers.toArray(new InetSocketAddress[_peers.size()]);
+        peerLoads = new AtomicLongArray(peers.length);
+        peerCapacities = new AtomicLongArray(peers.length);
+        peerLastReportTimes = new AtomicLongArray(peers.length);
+        maxClients = _maxClients;
+        clock = ClockSource.getDefault();
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+
+        //The thread is made on the fly because it's a single purpose thread
+        announcingLoadThread = executor.newThread("announcingLoadThread", new Runnable(){
+            @Override
+            public void run(){
+                ByteBuffer packet = ByteBuffer.allocate(ProducerPacketFactory.LOAD_REPORT_PACKET_SIZE);
+                long nextAnnounceTime = clock.currentTimeMillis();
+                while(true){
+                    try{
+                        clock.sleep(nextAnnounceTime - clock.currentTimeMillis());
+                    }catch(InterruptedException ie){
+                        return;
+                    }
+                    nextAnnounceTime += ANNOUNCE_INTERVAL;
+                    long load = metrics.getListeningClients();
+                    for(InetSocketAddress peer : peers){
+                        try{
+                            channel.send(ProducerPacketFactory.putLoadReport(packet, load, maxClients), peer);
+                        }catch(IOException ioe){
+                            //The peer is down or unreachable, it will time
+                            //out on the other end as well
+                            log.debug("announcingLoadThread", "Unable to report to {}: {}", peer, ioe);
+                        }
+                    }
+                }
+            }
+        });
+
+        //The thread is made on the fly because it's a single purpose thread
+        receivingLoadReportsThread = executor.newThread("receivingLoadReportsThread", new Runnable(){
+            @Override
+            public void run(){
+                ByteBuffer datagram = ByteBuffer.allocate(FrameDecoder.MAX_FRAME_SIZE);
+                while(true){
+                    SocketAddress source;
+                    try{
+                        datagram.clear();
+                        source = channel.receive(datagram);
+                    }catch(IOException ioe){
+                        log.error("receivingLoadReportsThread", "Unable to receive: {}", ioe);
+                        return;
+                    }
+                    datagram.flip();
+                    int peer = indexOf(source);
+                    if(peer < 0){
+                        //Not from a configured peer
+                        continue;
+                    }
+                    try{
+                        processLoadReport(peer, datagram);
+                    }catch(ProtocolException pe){
+                        //A stray datagram, not fatal
+                    }
+                }
+            }
+        });
+    }
+
+    private int indexOf(SocketAddress source){
+        for(int i = 0; i < peers.length; i++){
+            if(peers[i].equals(source)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the load a peer reported.
+     *
+     * @param peer the index of the peer
+     * @param datagram the LoadReport message
+     */
+    private void processLoadReport(int peer, ByteBuffer datagram) throws ProtocolException{
+        if(datagram.remaining() < FrameDecoder.HEADER_SIZE || datagram.get() != ProducerOpcode.LOAD_REPORT.opcode()){
+            throw new ProtocolException("Not a LoadReport message");
+        }
+        datagram.get();
+        FrameDecoder.expectLength(datagram, 16);
+        long load = datagram.getLong();
+        long capacity = datagram.getLong();
+        peerLoads.set(peer, load);
+        peerCapacities.set(peer, capacity > 0 ? capacity : Long.MAX_VALUE);
+        peerLastReportTimes.set(peer, clock.currentTimeMillis());
+    }
+
+    /**
+     * Chooses the peer a Consumer that is about to REGISTER should be sent
+     * to. This may be called from any Thread.
+     *
+     * @return the least loaded peer that is up and below its capacity, if
+     * this Producer is at capacity and that peer is less loaded than this
+     * Producer, null if the Consumer should be served here
+     */
+    InetSocketAddress redirectTarget(){
+        if(maxClients == 0){
+            return null;
+        }
+        long load = metrics.getListeningClients();
+        if(load < maxClients){
+            return null;
+        }
+        long now = clock.currentTimeMillis();
+        int target = -1;
+        long targetLoad = load;
+        for(int i = 0; i < peers.length; i++){
+            if(now - peerLastReportTimes.get(i) > PEER_TIMEOUT){
+                continue;
+            }
+            long peerLoad = peerLoads.get(i);
+            if(peerLoad < peerCapacities.get(i) && peerLoad < targetLoad){
+                target = i;
+                targetLoad = peerLoad;
+            }
+        }
+        if(target < 0){
+            //Every peer is down or as loaded, the Consumer is served here
+            return null;
+        }
+        peerLoads.incrementAndGet(target);
+        metrics.recordRedirect();
+        return peers[target];
+    }
+
+    /**
+     * Starts exchanging the LoadReport messages with the peers.
+     */
+    void start(){
+        announcingLoadThread.start();
+        receivingLoadReportsThread.start();
+    }
+}
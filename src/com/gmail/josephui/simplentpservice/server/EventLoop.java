@@ -0,0 +1,1075 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.client.ConsumerOpcode;
+import com.gmail.josephui.simplentpservice.log.Log;
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeDispatcher;
+import com.gmail.josephui.simplentpservice.protocol.OpcodeHandler;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Instances of this class serve many Consumer connections from a single
+ * Thread by multiplexing their SocketChannels through a Selector. This is the
+ * building block of the EVENT_LOOP engine, where a small fixed number of
+ * EventLoops replaces the one ClientHandler Thread per Consumer.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class EventLoop extends Thread{
+    /**
+     * The size of the buffer used when reading from the Consumers, this
+     * bounds how many messages are decoded per read.
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The number of TimeResponse messages that may wait for a Consumer's
+     * socket, further TIME_REQUEST messages are not answered until they are
+     * written.
+     */
+    private static final int MAX_PENDING_TIME_RESPONSES = 8;
+
+    /**
+     * The slot of a Session once it has been closed.
+     */
+    private static final int CLOSED = -1;
+
+    /**
+     * The sessions of every EventLoop, so that their outbound queues can be
+     * inspected from any Thread.
+     */
+    private static final ClientRegistry<Session> allSessions;
+
+    /**
+     * Processes the messages from the Consumers, by Opcode. A new type of
+     * message is added by registering its OpcodeHandler here.
+     */
+    private static final OpcodeDispatcher<Session> dispatcher;
+
+    static{
+        allSessions = new ClientRegistry<Session>();
+
+        dispatcher = new OpcodeDispatcher<Session>();
+        dispatcher.register(ConsumerOpcode.REGISTER.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload) throws IOException{
+                if(session.redirect() || session.rejectRegister()){
+                    return false;
+                }
+                RegisterRequest request = session.readRegisterRequest(payload);
+                return session.register(request.period, request.timeEncoder, request.lowPriority, session.clock().currentTimeMillis());
+            }
+        });
+        dispatcher.register(ConsumerOpcode.KEEP_ALIVE.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload){
+                metrics.recordKeepAlive();
+                session.keepAlive(session.clock().currentTimeMillis());
+                return true;
+            }
+        });
+        dispatcher.register(ConsumerOpcode.TIME_REQUEST.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload) throws IOException{
+                FrameDecoder.expectLength(payload, 8);
+                session.answerTimeRequest(payload.getLong(), session.clock().currentTimeNanos());
+                return session.key.isValid();
+            }
+        });
+        dispatcher.register(ConsumerOpcode.GATEWAY_REGISTER.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload) throws IOException{
+                return session.registerGateway(payload, session.clock().currentTimeMillis());
+            }
+        });
+        dispatcher.register(ConsumerOpcode.GATEWAY_KEEP_ALIVE.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload) throws IOException{
+                session.keepAliveGateway(payload, session.clock().currentTimeMillis());
+                return true;
+            }
+        });
+        dispatcher.register(ConsumerOpcode.MULTICAST_JOINED.opcode(), new OpcodeHandler<Session>(){
+            @Override
+            public boolean process(Session session, ByteBuffer payload){
+                session.joinedMulticastGroup();
+                return true;
+            }
+        });
+    }
+
+    private static final ProducerMetrics metrics = ProducerMetrics.getInstance();
+
+    private static final Log log = Log.getInstance();
+
+    /**
+     * Takes a snapshot of the outbound queue of every listening session of
+     * every EventLoop.
+     *
+     * @return the queue depth and drop counters of each listening session
+     */
+    static List<ClientQueueStats> getClientQueueStats(){
+        List<ClientQueueStats> stats = new ArrayList<ClientQueueStats>(allSessions.size());
+        for(Session session : allSessions.clients()){
+            stats.add(new ClientQueueStats(session.clientId, String.valueOf(session.channel.socket().getRemoteSocketAddress()), session.outboundQueue));
+        }
+        return stats;
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The Selector that multiplexes every channel owned by this EventLoop.
+     */
+    private final Selector selector;
+
+    /**
+     * Channels accepted by the acceptor that are waiting to be registered
+     * with the Selector, registration has to happen on this EventLoop's own
+     * Thread to avoid blocking on the Selector's lock.
+     */
+    private final Queue<SocketChannel> pendingChannels;
+
+    /**
+     * Set by the Producer's tick Thread, and cleared by this EventLoop once
+     * the TIME messages have been written.
+     */
+    private final AtomicBoolean tickPending;
+
+    /**
+     * The clock.nanoTime() the pending tick was due, set along with
+     * tickPending.
+     */
+    private volatile long scheduledTickNanos;
+
+    /**
+     * The number of the pending tick, set along with tickPending.
+     */
+    private volatile long scheduledTick;
+
+    /**
+     * The number of the last tick handled, -1 before the first one.
+     */
+    private long lastTick;
+
+    /**
+     * Contains the sessions owned by this EventLoop that have sent their
+     * REGISTER message, by the interval they receive the TIME message at. It
+     * is only modified from this EventLoop's Thread, but may be read from
+     * others.
+     */
+    private final RateSchedule<Session> listeningSessions;
+
+    /**
+     * The settings of the Producer, which clamp the interval a Consumer asks
+     * for in its REGISTER message.
+     */
+    private final ProducerConfig config;
+
+    /**
+     * The period of the Consumers asking for the default interval, which
+     * are the only ones offered the multicast group.
+     */
+    private final int defaultTimePeriod;
+
+    /**
+     * Keeps the state of every session in primitive arrays by slot, along
+     * with the keep-alive deadlines of the listening sessions in buckets by
+     * the time of their last KeepAlive message, so that each tick only
+     * touches the sessions that are actually due.
+     */
+    private final SessionTable<Session> sessionTable;
+
+    /**
+     * The sessions expired by a tick, reused for every tick.
+     */
+    private final List<Session> expiredSessions;
+
+    /**
+     * This buffer is shared by every read done on this EventLoop's Thread.
+     */
+    private final ByteBuffer readBuffer;
+
+    /**
+     * The TIME messages written to every session are encoded into this
+     * buffer before each write, so that sending does not allocate.
+     */
+    private final ByteBuffer timeBuffer;
+
+    /**
+     * Reused for the gathering writes of a session's partially written
+     * message followed by its next queued TIME message.
+     */
+    private final ByteBuffer[] gatherBuffers;
+
+    /**
+     * The MulticastGroup message sent in answer to the REGISTER messages, or
+     * null if the TIME messages are not published to a multicast group.
+     */
+    private final byte[] multicastGroupPacket;
+
+    /**
+     * Chooses the Producer of the cluster a Consumer is redirected to if
+     * this one is at capacity, or null if this Producer runs alone.
+     */
+    private final ClusterMembership cluster;
+
+    /**
+     * Is told how long each tick took, and decides whether new Consumers
+     * are told to retry later and whether the low priority ones are
+     * throttled.
+     */
+    private final OverloadMonitor overloadMonitor;
+
+    /**
+     * The size of the outbound queue of each session.
+     */
+    private final int outboundHighWaterMark;
+
+    /**
+     * What happens to a session whose outbound queue is full.
+     */
+    private final SlowConsumerPolicy slowConsumerPolicy;
+
+    /**
+     * The EventLoops accepted channels are handed to, only used when this
+     * EventLoop also accepts connections.
+     */
+    private EventLoop[] acceptTargets;
+
+    /**
+     * Round robin index into acceptTargets.
+     */
+    private int nextAcceptTarget;
+
+    /**
+     * The key of the channel this EventLoop accepts connections from, or
+     * null if it does not accept any.
+     */
+    private SelectionKey acceptKey;
+
+    /**
+     * Admits the accepted connections at the configured rate, or null if
+     * they are accepted as fast as they arrive. It is shared by every
+     * accepting EventLoop.
+     */
+    private TokenBucket admission;
+
+    /**
+     * Set while accepting is paused for lack of a token, the connections
+     * wait in the listen backlog meanwhile.
+     */
+    private boolean acceptPaused;
+
+    /**
+     * The clock.nanoTime() accepting was paused at, and the one it resumes
+     * at, while acceptPaused is set.
+     */
+    private long acceptPausedNanos;
+
+    private long acceptResumeNanos;
+
+    private final ShardStats stats;
+
+    /**
+     * The clock of the Producer, the default ClockSource when this EventLoop
+     * was created.
+     */
+    private final ClockSource clock;
+
+    /**
+     * @param name the name of the Thread
+     * @param _config the settings of the Producer
+     * @param _cluster chooses the Producer a Consumer is redirected to, null
+     * if this Producer runs alone
+     * @param _overloadMonitor tracks the duration of the ticks of the
+     * Producer
+     */
+    EventLoop(String name, ProducerConfig _config, ClusterMembership _cluster, OverloadMonitor _overloadMonitor) throws IOException{
+        super(name);
+        cluster = _cluster;
+        overloadMonitor = _overloadMonitor;
+        config = _config;
+        defaultTimePeriod = RateSchedule.periodOf((int)Producer.DELAY_BETWEEN_TIME_MESSAGES, _config);
+        outboundHighWaterMark = _config.getOutboundHighWaterMark();
+        slowConsumerPolicy = _config.getSlowConsumerPolicy();
+        if(_config.getMulticastGroup() != null){
+            multicastGroupPacket = ProducerPacketFactory.newMulticastGroupPacket(_config.getMulticastGroup());
+        }else{
+            multicastGroupPacket = null;
+        }
+        selector = Selector.open();
+        pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        tickPending = new AtomicBoolean();
+        listeningSessions = new RateSchedule<Session>();
+        lastTick = -1;
+        sessionTable = new SessionTable<Session>();
+        expiredSessions = new ArrayList<Session>();
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        timeBuffer = ByteBuffer.allocateDirect(TimeEncoder.MAX_BATCH_SIZE * TimeEncoder.MAX_MESSAGE_SIZE);
+        gatherBuffers = new ByteBuffer[2];
+        stats = new ShardStats(name);
+        clock = ClockSource.getDefault();
+    }
+
+    /**
+     * Makes this EventLoop accept the connections arriving on serverChannel,
+     * handing them to the given EventLoops in round robin order. This has to
+     * be called before the EventLoop is started.
+     *
+     * @param serverChannel the channel listening for Consumer connections
+     * @param targets the EventLoops that will own the accepted connections
+     * @param _admission admits the accepted connections at the configured
+     * rate, null to accept them as fast as they arrive
+     */
+    void acceptFrom(ServerSocketChannel serverChannel, EventLoop[] targets, TokenBucket _admission) throws IOException{
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        acceptTargets = targets;
+        admission = _admission;
+    }
+
+    /**
+     * Hands an accepted channel to this EventLoop. This may be called from
+     * any Thread.
+     *
+     * @param channel the accepted channel
+     */
+    void addChannel(SocketChannel channel){
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Requests that this EventLoop removes its timed out Consumers and sends
+     * the TIME message to the others that are due. This may be called from
+     * any Thread.
+     *
+     * @param scheduledNanos the clock.nanoTime() the TIME message was due,
+     * for the tick lag metric
+     * @param tick the number of the tick, counted from 0
+     */
+    void tick(long scheduledNanos, long tick){
+        scheduledTick = tick;
+        scheduledTickNanos = scheduledNanos;
+        if(tickPending.compareAndSet(false, true)){
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run(){
+        while(selector.isOpen()){
+            try{
+                if(acceptPaused){
+                    //Wakes up in time to resume accepting
+                    selector.select(clock.toRealMillis(Math.max(1, (acceptResumeNanos - clock.nanoTime() + 999999) / 1000000)));
+                }else{
+                    selector.select();
+                }
+            }catch(IOException ioe){
+                log.error(getName(), "Unable to select: {}", ioe);
+                return;
+            }
+
+            if(acceptPaused && clock.nanoTime() - acceptResumeNanos >= 0){
+                acceptPaused = false;
+                metrics.recordAdmissionWait(clock.nanoTime() - acceptPausedNanos);
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+
+            registerPendingChannels();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(!key.isValid()){
+                    continue;
+                }
+                if(key.isAcceptable()){
+                    acceptChannels((ServerSocketChannel)key.channel());
+                    continue;
+                }
+                Session session = (Session)key.attachment();
+                if(key.isReadable()){
+                    session.read();
+                }
+                if(key.isValid() && key.isWritable()){
+                    session.flush();
+                }
+            }
+
+            if(tickPending.getAndSet(false)){
+                long scheduledNanos = scheduledTickNanos;
+                long tick = scheduledTick;
+                long startNanos = clock.nanoTime();
+                //Checks for timed out clients and remove them
+                removeSessionsOlderThan(clock.currentTimeMillis() - Producer.KEEP_ALIVE_TIME);
+
+                //The ticks on which no session is due are not recorded
+                boolean fannedOut = listeningSessions.isAnyDue(lastTick, tick);
+                if(fannedOut){
+                    log.debug(getName(), "Sending out Time messages");
+                    //Gives the active clients the time message
+                    TimeBroadcastEvent event = new TimeBroadcastEvent();
+                    event.begin();
+                    long fanOutStartNanos = clock.nanoTime();
+                    int sent = sendTimeMessageToListeningSessions(fanOutStartNanos, tick);
+                    stats.recordFanOut(fanOutStartNanos, sent);
+                    metrics.recordBroadcast(scheduledNanos, startNanos, fanOutStartNanos, sent, event);
+                }
+                overloadMonitor.recordTick(tick, scheduledNanos, clock.nanoTime(), fannedOut);
+                stats.recordSessionTable(sessionTable.size(), sessionTable.capacity(), sessionTable.getFootprint());
+                lastTick = tick;
+            }
+        }
+    }
+
+    private void registerPendingChannels(){
+        SocketChannel channel;
+        while((channel = pendingChannels.poll()) != null){
+            Session session = null;
+            try{
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                session = new Session(channel);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            }catch(IOException ioe){
+                if(session != null){
+                    sessionTable.release(session.slot);
+                }
+                closeQuietly(channel);
+            }
+            stats.recordSessionTable(sessionTable.size(), sessionTable.capacity(), sessionTable.getFootprint());
+        }
+    }
+
+    private void acceptChannels(ServerSocketChannel serverChannel){
+        while(true){
+            if(admission != null && !admission.tryAcquire()){
+                //The connections wait in the listen backlog until the next
+                //token
+                acceptPaused = true;
+                acceptPausedNanos = clock.nanoTime();
+                acceptResumeNanos = acceptPausedNanos + admission.nanosUntilNextToken();
+                acceptKey.interestOps(0);
+                return;
+            }
+            SocketChannel channel;
+            try{
+                channel = serverChannel.accept();
+            }catch(IOException ioe){
+                log.warn(getName(), "Unable to accept: {}", ioe);
+                return;
+            }
+            if(channel == null){
+                //Another EventLoop accepted it, or there was none left
+                if(admission != null){
+                    admission.refund();
+                }
+                return;
+            }
+            metrics.recordAccept();
+            log.debug(getName(), "Accepted a Consumer connection");
+
+            //When the target is this EventLoop the wakeup makes the next
+            //select() return at once so the channel is registered promptly
+            acceptTargets[nextAcceptTarget].addChannel(channel);
+            nextAcceptTarget = (nextAcceptTarget + 1) % acceptTargets.length;
+        }
+    }
+
+    /**
+     * Removes all sessions that has last send their KeepAlive message before
+     * timeMinimum
+     *
+     * @param timeMinimum the time in milliseconds since the epoch
+     */
+    private void removeSessionsOlderThan(long timeMinimum){
+        sessionTable.expireOlderThan(timeMinimum, expiredSessions);
+        metrics.recordExpiries(expiredSessions.size());
+        for(int i = 0; i < expiredSessions.size(); i++){
+            expiredSessions.get(i).close();
+        }
+        expiredSessions.clear();
+    }
+
+    /**
+     * @param startNanos the clock.nanoTime() the broadcast started, the
+     * delivery time of each session is measured from it
+     * @param tick the number of the tick, only the sessions due on it are
+     * sent the TIME message
+     * @return the number of sessions the TIME message was sent to
+     */
+    private int sendTimeMessageToListeningSessions(long startNanos, long tick){
+        log.debug(getName(), "Total listening clients: {}", listeningSessions.size());
+        int sent = 0;
+        int throttled = 0;
+        boolean throttling = overloadMonitor.isThrottlingLowPriority();
+        //The RateSchedule allows sessions to be closed while iterating
+        for(RateSchedule.Group<Session> group : listeningSessions.groups()){
+            if(!group.isDue(lastTick, tick)){
+                continue;
+            }
+            boolean lowPriorityDue = !throttling || group.isDue(lastTick, tick, OverloadMonitor.THROTTLE_FACTOR);
+            for(Session session : group.clients()){
+                if(!lowPriorityDue && session.isLowPriority()){
+                    throttled++;
+                    continue;
+                }
+                session.sendTimeMessage(clock.currentTimeMillis());
+                stats.recordDelivery(startNanos, clock.nanoTime());
+                sent++;
+            }
+        }
+        if(throttled > 0){
+            metrics.recordThrottledTimeMessages(throttled);
+        }
+        return sent;
+    }
+
+    ShardStats getStats(){
+        return stats;
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        try{
+            channel.close();
+        }catch(IOException ioe){
+            //Problem closing channel..
+        }
+    }
+
+    /**
+     * The objects this EventLoop keeps for each of its Consumer connections,
+     * this takes the role of the ClientHandler in the BLOCKING engine. The
+     * scalar state of the session, whether it has registered, redirected or
+     * joined the multicast group, its period and its keep-alive deadline, is
+     * kept in the sessionTable under its slot.
+     */
+    private final class Session implements FrameDecoder.FrameHandler{
+        /**
+         * Read by the Threads taking the queue statistics.
+         */
+        private final long clientId;
+
+        /**
+         * The slot of the session in the sessionTable, CLOSED once the
+         * session has been closed and its slot released.
+         */
+        private int slot;
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        /**
+         * Encodes the TIME messages in the format asked for by the first
+         * REGISTER message.
+         */
+        private TimeEncoder timeEncoder = TimeEncoder.DEFAULT;
+
+        /**
+         * The logical Consumers of the session, when it is a gateway. It is
+         * only allocated once a GATEWAY_REGISTER message is received.
+         */
+        private GatewayConsumers gatewayConsumers;
+
+        /**
+         * The TIME messages waiting for the socket to take them.
+         */
+        private final OutboundQueue outboundQueue;
+
+        /**
+         * The rest of the TIME messages the socket could not take at once. It
+         * is only allocated once a write comes up short, and then reused.
+         */
+        private ByteBuffer inFlight;
+
+        /**
+         * The beginning of a message that was split over two reads, it is
+         * put back in front of the next read. It is only allocated once a
+         * message is split, and then reused.
+         */
+        private ByteBuffer partialFrame;
+
+        /**
+         * The TimeResponse and MulticastGroup messages waiting for the socket
+         * to take them, they are written before the next TIME message. It is
+         * only allocated once one of them is sent, and then reused.
+         */
+        private ByteBuffer controlMessages;
+
+        private Session(SocketChannel _channel){
+            clientId = ClientRegistry.newClientId();
+            slot = sessionTable.allocate(this);
+            channel = _channel;
+            outboundQueue = new OutboundQueue(outboundHighWaterMark, slowConsumerPolicy);
+        }
+
+        private ClockSource clock(){
+            return clock;
+        }
+
+        private boolean isRegistered(){
+            return sessionTable.hasFlag(slot, SessionTable.REGISTERED);
+        }
+
+        /**
+         * @return true once the Consumer has joined the multicast group, from
+         * then on the TIME messages are not written to it
+         */
+        private boolean isMulticastMember(){
+            return sessionTable.hasFlag(slot, SessionTable.MULTICAST_MEMBER);
+        }
+
+        /**
+         * @return true if the Consumer asked for a low priority in its
+         * REGISTER message
+         */
+        private boolean isLowPriority(){
+            return sessionTable.hasFlag(slot, SessionTable.LOW_PRIORITY);
+        }
+
+        /**
+         * @return the number of ticks between two TIME messages to the
+         * Consumer, as asked for by its first REGISTER message
+         */
+        private int timePeriod(){
+            return sessionTable.getTimePeriod(slot);
+        }
+
+        private void read(){
+            readBuffer.clear();
+            //Once the Consumer has been sent to another Producer, whatever it
+            //sends is discarded until it closes the connection
+            if(sessionTable.hasFlag(slot, SessionTable.REDIRECTED)){
+                discard();
+                return;
+            }
+            if(partialFrame != null && partialFrame.position() > 0){
+                //The message split over the previous read is decoded along
+                //with its rest
+                partialFrame.flip();
+                readBuffer.put(partialFrame);
+                partialFrame.clear();
+            }
+            int read;
+            try{
+                read = channel.read(readBuffer);
+            }catch(IOException ioe){
+                read = -1;
+            }
+            if(read < 0){
+                //Connection severed by the client
+                close();
+                return;
+            }
+            readBuffer.flip();
+            try{
+                if(!FrameDecoder.decode(readBuffer, this)){
+                    return;
+                }
+            }catch(IOException ioe){
+                //Malformed message, the stream can not be trusted anymore
+                close();
+                return;
+            }
+            if(readBuffer.hasRemaining()){
+                if(partialFrame == null){
+                    partialFrame = ByteBuffer.allocate(FrameDecoder.MAX_FRAME_SIZE);
+                }
+                partialFrame.put(readBuffer);
+            }
+        }
+
+        /**
+         * Reads and drops what a redirected Consumer sent, and closes the
+         * session once the Consumer has closed the connection.
+         */
+        private void discard(){
+            int read;
+            try{
+                read = channel.read(readBuffer);
+            }catch(IOException ioe){
+                read = -1;
+            }
+            if(read < 0){
+                close();
+            }
+        }
+
+        /**
+         * Hands one message from the Consumer to the OpcodeHandler of its
+         * Opcode.
+         *
+         * @param payload the content of the message
+         * @return false if the session has been closed
+         */
+        @Override
+        public boolean onFrame(int opcode, ByteBuffer payload) throws IOException{
+            if(slot == CLOSED){
+                //Closed by a previous message of the same read
+                return false;
+            }
+            return dispatcher.dispatch(this, opcode, payload);
+        }
+
+        /**
+         * Sends the Consumer to a less loaded Producer of the cluster with a
+         * Redirect message instead of registering it, if this Producer is at
+         * capacity. Gateways are not redirected.
+         *
+         * @return true if the Consumer has been redirected, in which case no
+         * more of its messages are processed
+         */
+        private boolean redirect(){
+            if(isRegistered() || cluster == null){
+                return false;
+            }
+            InetSocketAddress target = cluster.redirectTarget();
+            if(target == null){
+                return false;
+            }
+            log.debug(getName(), "Redirecting client {} to {}", clientId, target);
+            try{
+                //Nothing else has been written to a session that has not
+                //registered, so the socket takes the whole message
+                channel.write(ByteBuffer.wrap(ProducerPacketFactory.newRedirectPacket(target)));
+                channel.shutdownOutput();
+            }catch(IOException ioe){
+                close();
+                return true;
+            }
+            sessionTable.setFlag(slot, SessionTable.REDIRECTED);
+            //The session is expired if the Consumer does not close it
+            sessionTable.scheduleKeepAlive(slot, clock.currentTimeMillis());
+            return true;
+        }
+
+        /**
+         * Tells the Consumer to connect again later with a RETRY_AFTER
+         * message instead of registering it, if this Producer is overloaded
+         * and rejects new Consumers. Gateways are not rejected.
+         *
+         * @return true if the Consumer has been rejected, in which case no
+         * more of its messages are processed
+         */
+        private boolean rejectRegister(){
+            if(isRegistered() || !overloadMonitor.isRejectingRegisters()){
+                return false;
+            }
+            log.debug(getName(), "Telling client {} to retry later", clientId);
+            metrics.recordRejectedRegister();
+            try{
+                //Nothing else has been written to a session that has not
+                //registered, so the socket takes the whole message
+                channel.write(ByteBuffer.wrap(ProducerPacketFactory.newRetryAfterPacket(overloadMonitor.getRetryAfter())));
+                channel.shutdownOutput();
+            }catch(IOException ioe){
+                close();
+                return true;
+            }
+            sessionTable.setFlag(slot, SessionTable.REDIRECTED);
+            //The session is expired if the Consumer does not close it
+            sessionTable.scheduleKeepAlive(slot, clock.currentTimeMillis());
+            return true;
+        }
+
+        /**
+         * @param payload the trailer of a REGISTER message
+         * @return the period, the TIME format and the priority asked for
+         */
+        private RegisterRequest readRegisterRequest(ByteBuffer payload) throws IOException{
+            return RegisterRequest.read(payload, config, outboundQueue.getHighWaterMark());
+        }
+
+        /**
+         * Adds the session to the listening sessions, once it has sent its
+         * REGISTER message. The period and the TIME format of the first
+         * REGISTER message hold for the life of the session.
+         *
+         * @param period the number of ticks between two TIME messages asked
+         * for
+         * @param encoder encodes the TIME messages in the format asked for
+         * @param lowPriority true if the Consumer asked for a low priority
+         * @param now the time in milliseconds since the epoch
+         * @return false if the session has been closed
+         */
+        private boolean register(int period, TimeEncoder encoder, boolean lowPriority, long now){
+            if(allSessions.add(clientId, this)){
+                metrics.recordRegister();
+                sessionTable.setTimePeriod(slot, period);
+                timeEncoder = encoder;
+                if(lowPriority){
+                    sessionTable.setFlag(slot, SessionTable.LOW_PRIORITY);
+                }
+                if(multicastGroupPacket != null && period == defaultTimePeriod){
+                    //The Consumer may join the group from now on
+                    sendMulticastGroup();
+                    if(!key.isValid()){
+                        return false;
+                    }
+                }
+            }
+            if(!isMulticastMember()){
+                listeningSessions.add(clientId, timePeriod(), this);
+            }
+            sessionTable.setFlag(slot, SessionTable.REGISTERED);
+            //The initial receive time is set as by a KEEP_ALIVE message
+            keepAlive(now);
+            return true;
+        }
+
+        /**
+         * @param now the time in milliseconds since the epoch
+         */
+        private void keepAlive(long now){
+            if(isRegistered()){
+                //Moving the session to its new bucket is O(1)
+                sessionTable.scheduleKeepAlive(slot, now);
+            }
+        }
+
+        /**
+         * Registers the logical Consumers listed in a GatewayRegister
+         * message, the gateway session itself is registered once.
+         *
+         * @param payload the content of the message
+         * @param now the time in milliseconds since the epoch
+         * @return false if the session has been closed
+         */
+        private boolean registerGateway(ByteBuffer payload, long now) throws IOException{
+            if(gatewayConsumers == null){
+                gatewayConsumers = new GatewayConsumers();
+            }
+            gatewayConsumers.register(payload, now);
+            //The gateway receives the TIME message at the default interval
+            return register(defaultTimePeriod, TimeEncoder.DEFAULT, false, now);
+        }
+
+        /**
+         * Keeps alive the logical Consumers listed in a GatewayKeepAlive
+         * message, after removing those that have timed out.
+         *
+         * @param payload the content of the message
+         * @param now the time in milliseconds since the epoch
+         */
+        private void keepAliveGateway(ByteBuffer payload, long now) throws IOException{
+            metrics.recordKeepAlive();
+            if(gatewayConsumers != null){
+                gatewayConsumers.expireOlderThan(now - Producer.KEEP_ALIVE_TIME);
+                //The session stays alive as long as any of its logical
+                //Consumers does
+                if(gatewayConsumers.keepAlive(payload, now) > 0){
+                    keepAlive(now);
+                }
+            }
+        }
+
+        /**
+         * Stops sending the TIME message to the Consumer once it has joined
+         * the multicast group, as the message now reaches it through the
+         * group.
+         */
+        private void joinedMulticastGroup(){
+            if(isRegistered() && multicastGroupPacket != null && !isMulticastMember() && timePeriod() == defaultTimePeriod){
+                sessionTable.setFlag(slot, SessionTable.MULTICAST_MEMBER);
+                metrics.recordMulticastMembers(1);
+                listeningSessions.remove(clientId, timePeriod());
+            }
+        }
+
+        /**
+         * Queues the TimeResponse message and writes it if the socket takes
+         * it, the request is not answered if too many responses are already
+         * waiting.
+         */
+        private void answerTimeRequest(long requestSendTimeNanos, long receiveTimeNanos){
+            ByteBuffer controlMessages = controlMessages();
+            if(controlMessages.remaining() < ProducerPacketFactory.TIME_RESPONSE_PACKET_SIZE){
+                return;
+            }
+            //The transmit time is taken as the response is queued, which is
+            //right before it is written unless the socket is full
+            ProducerPacketFactory.putTimeResponse(controlMessages, requestSendTimeNanos, receiveTimeNanos, clock.currentTimeNanos());
+            flush();
+        }
+
+        /**
+         * Queues the MulticastGroup message and writes it if the socket takes
+         * it.
+         */
+        private void sendMulticastGroup(){
+            //There is always room for it, as it is only sent once
+            controlMessages().put(multicastGroupPacket);
+            flush();
+        }
+
+        private ByteBuffer controlMessages(){
+            if(controlMessages == null){
+                controlMessages = ByteBuffer.allocate(ProducerPacketFactory.TIME_RESPONSE_PACKET_SIZE * MAX_PENDING_TIME_RESPONSES
+                        + ProducerPacketFactory.MAX_MULTICAST_GROUP_PACKET_SIZE);
+            }
+            return controlMessages;
+        }
+
+        /**
+         * Queues the TIME message and writes as much of the queue as the
+         * socket takes without blocking, the rest is written once the channel
+         * becomes writable.
+         *
+         * @param time the time in milliseconds since the epoch
+         */
+        private void sendTimeMessage(long time){
+            OutboundQueue.OfferResult result = outboundQueue.offer(time);
+            switch(result){
+                case DISCONNECT:
+                    log.debug(getName(), "Disconnecting slow client {}", clientId);
+                    close();
+                    return;
+                case DEGRADED:
+                case DROPPED_STALE:
+                    log.debug(getName(), "Slow client {}: {}", clientId, result);
+            }
+            flush();
+        }
+
+        private boolean hasInFlight(){
+            return inFlight != null && inFlight.hasRemaining();
+        }
+
+        /**
+         * Writes the partially written message, if any, followed by the
+         * queued TIME messages until the socket stops taking them. Whatever
+         * is queued goes out with a single write, and a session that asked
+         * for batching is written to once a whole batch is queued.
+         */
+        private void flush(){
+            try{
+                if(controlMessages != null && controlMessages.position() > 0){
+                    //The TimeResponse messages go out between two TIME
+                    //messages, so a partially written one is completed first
+                    if(hasInFlight()){
+                        channel.write(inFlight);
+                    }
+                    if(!hasInFlight()){
+                        controlMessages.flip();
+                        channel.write(controlMessages);
+                        controlMessages.compact();
+                    }
+                    if(hasInFlight() || controlMessages.position() > 0){
+                        //The socket is full
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                while(true){
+                    ByteBuffer packet = null;
+                    int count = 0;
+                    if(outboundQueue.isReady(timeEncoder.getBatchSize())){
+                        count = Math.min(outboundQueue.getDepth(), TimeEncoder.MAX_BATCH_SIZE);
+                        timeBuffer.clear();
+                        //Rolled back if the socket takes none of it
+                        timeEncoder.mark();
+                        for(int i = 0; i < count; i++){
+                            timeEncoder.encode(outboundQueue.peek(i), timeBuffer);
+                        }
+                        timeBuffer.flip();
+                        packet = timeBuffer;
+                    }
+                    if(packet == null){
+                        if(hasInFlight()){
+                            channel.write(inFlight);
+                        }
+                    }else if(hasInFlight()){
+                        //Completes the partially written message and sends the
+                        //next one with a single gathering write
+                        gatherBuffers[0] = inFlight;
+                        gatherBuffers[1] = packet;
+                        channel.write(gatherBuffers);
+                    }else{
+                        channel.write(packet);
+                    }
+
+                    if(packet != null && packet.position() > 0){
+                        for(int i = 0; i < count; i++){
+                            outboundQueue.poll();
+                        }
+                        metrics.recordTimeWrite(count, packet.limit());
+                        if(packet.hasRemaining()){
+                            keepInFlight(packet);
+                        }
+                    }else if(packet != null){
+                        timeEncoder.reset();
+                    }
+                    if(hasInFlight() || (packet != null && packet.position() == 0)){
+                        //The socket is full
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if(!outboundQueue.isReady(timeEncoder.getBatchSize())){
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                }
+            }catch(IOException ioe){
+                metrics.recordWriteFailure();
+                close();
+            }
+        }
+
+        /**
+         * Copies what is left of packet so that the shared timeBuffer can be
+         * reused for the next session.
+         */
+        private void keepInFlight(ByteBuffer packet){
+            if(inFlight == null){
+                inFlight = ByteBuffer.allocate(TimeEncoder.MAX_BATCH_SIZE * TimeEncoder.MAX_MESSAGE_SIZE);
+            }
+            inFlight.clear();
+            inFlight.put(packet);
+            inFlight.flip();
+        }
+
+        private void close(){
+            if(slot == CLOSED){
+                return;
+            }
+            listeningSessions.remove(clientId, timePeriod());
+            //Only the close of a registered session is counted
+            if(allSessions.remove(clientId) != null){
+                metrics.recordRemoved();
+                if(isMulticastMember()){
+                    metrics.recordMulticastMembers(-1);
+                }
+            }
+            //The slot is recycled for the next session
+            sessionTable.release(slot);
+            slot = CLOSED;
+            if(gatewayConsumers != null){
+                gatewayConsumers.clear();
+            }
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
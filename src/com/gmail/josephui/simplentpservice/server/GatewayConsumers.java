@@ -0,0 +1,152 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The logical Consumers carried by a gateway connection. A gateway sends one
+ * GATEWAY_REGISTER and one GATEWAY_KEEP_ALIVE message per batch of logical
+ * Consumer ids instead of a connection per Consumer, and receives a single
+ * TIME message per tick that it hands to all of them. Each logical Consumer
+ * times out on its own, the connection itself is kept alive by the latest
+ * KeepAlive of any of them.
+ *
+ * This class is not thread safe, it is only accessed by the Thread reading
+ * the connection.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class GatewayConsumers{
+    /**
+     * The size of a logical Consumer id in a message, in bytes.
+     */
+    static final int ID_SIZE = 8;
+
+    private static final ProducerMetrics metrics = ProducerMetrics.getInstance();
+
+    /**
+     * Checks that the content of a gateway message is a non empty list of
+     * ids.
+     *
+     * @param payload the content of the message
+     * @throws ProtocolException if it is not
+     */
+    private static void checkIds(ByteBuffer payload) throws ProtocolException{
+        if(payload.remaining() == 0 || payload.remaining() % ID_SIZE != 0){
+            throw new ProtocolException("Unexpected frame length: " + payload.remaining());
+        }
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The keep-alive entry of each logical Consumer, by id.
+     */
+    private final Map<Long, TimingWheel.Entry<Long>> consumers;
+
+    /**
+     * Keeps the logical Consumers in buckets by the time of their last
+     * KeepAlive, so that each expiry pass only touches the ones that are due.
+     */
+    private final TimingWheel<Long> keepAliveWheel;
+
+    /**
+     * Reused by every expiry pass.
+     */
+    private final List<Long> expired;
+
+    GatewayConsumers(){
+        consumers = new HashMap<Long, TimingWheel.Entry<Long>>();
+        keepAliveWheel = new TimingWheel<Long>();
+        expired = new ArrayList<Long>();
+    }
+
+    /**
+     * Registers every id listed in the content of a GATEWAY_REGISTER message,
+     * an id that is already registered is kept alive instead.
+     *
+     * @param payload the content of the message
+     * @param now the time in milliseconds since the epoch
+     * @return the number of ids that were not registered yet
+     */
+    int register(ByteBuffer payload, long now) throws ProtocolException{
+        checkIds(payload);
+        int added = 0;
+        while(payload.hasRemaining()){
+            Long id = payload.getLong();
+            TimingWheel.Entry<Long> entry = consumers.get(id);
+            if(entry == null){
+                entry = keepAliveWheel.newEntry(id);
+                consumers.put(id, entry);
+                added++;
+            }
+            keepAliveWheel.schedule(entry, now);
+        }
+        metrics.recordLogicalConsumers(added);
+        return added;
+    }
+
+    /**
+     * Keeps alive every id listed in the content of a GATEWAY_KEEP_ALIVE
+     * message, the ids that are not registered are ignored.
+     *
+     * @param payload the content of the message
+     * @param now the time in milliseconds since the epoch
+     * @return the number of ids that were registered
+     */
+    int keepAlive(ByteBuffer payload, long now) throws ProtocolException{
+        checkIds(payload);
+        int kept = 0;
+        while(payload.hasRemaining()){
+            TimingWheel.Entry<Long> entry = consumers.get(payload.getLong());
+            if(entry != null){
+                //Moving the logical Consumer to its new bucket is O(1)
+                keepAliveWheel.schedule(entry, now);
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Removes the logical Consumers that have last been kept alive before
+     * timeMinimum.
+     *
+     * @param timeMinimum the time in milliseconds since the epoch
+     * @return the number of removed logical Consumers
+     */
+    int expireOlderThan(long timeMinimum){
+        int removed = keepAliveWheel.expireOlderThan(timeMinimum, expired);
+        for(Long id : expired){
+            consumers.remove(id);
+        }
+        expired.clear();
+        if(removed > 0){
+            metrics.recordExpiries(removed);
+            metrics.recordLogicalConsumers(-removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every logical Consumer, once the connection is closed.
+     */
+    void clear(){
+        metrics.recordLogicalConsumers(-consumers.size());
+        consumers.clear();
+    }
+
+    /**
+     * @return the number of logical Consumers registered
+     */
+    int size(){
+        return consumers.size();
+    }
+}
@@ -0,0 +1,16 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * This class provides the enumerate constants for the load of the Producer,
+ * as decided by the OverloadMonitor from the duration of the ticks.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum LoadState{
+    //The ticks end within their budget
+    NORMAL,
+
+    //The ticks run over their budget, the OverloadPolicies apply
+    OVERLOADED
+}
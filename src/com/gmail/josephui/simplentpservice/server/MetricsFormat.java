@@ -0,0 +1,35 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * This class provides the enumerate constants for the formats the periodic
+ * ProducerMetrics snapshot can be printed in.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum MetricsFormat{
+    //A single line of name=value pairs, meant to be read by people
+    TEXT,
+
+    //A single line JSON object, meant to be collected by other programs
+    JSON;
+
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * Looks up the format by name, ignoring case.
+     *
+     * @param name the name of the format
+     * @return the matching format, or null if there is none
+     */
+    public static MetricsFormat getByName(String name){
+        for(MetricsFormat format : values()){
+            if(format.name().equalsIgnoreCase(name)){
+                return format;
+            }
+        }
+        return null;
+    }
+}
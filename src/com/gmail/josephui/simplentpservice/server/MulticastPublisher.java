@@ -0,0 +1,77 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Publishes the TIME message once per tick to a multicast group, so that the
+ * cost of a tick no longer depends on the number of Consumers that have
+ * joined the group. Each MulticastTime message carries a sequence number
+ * increasing by one per tick, from which the Consumers tell how many ticks
+ * they have missed, as UDP does not retransmit lost datagrams.
+ *
+ * The Consumer connections remain the membership control: a Consumer is told
+ * the group in answer to its REGISTER message, and its connection stops
+ * carrying the TIME message once it reports having joined the group.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class MulticastPublisher{
+    private final InetSocketAddress group;
+
+    private final DatagramChannel channel;
+
+    /**
+     * The MulticastTime message, its sequence number and time are patched in
+     * place before each send so that publishing does not allocate.
+     */
+    private final ByteBuffer packet;
+
+    /**
+     * The sequence number of the last published tick, only accessed by the
+     * tick Thread.
+     */
+    private long sequence;
+
+    /**
+     * @param _group the multicast group and UDP port to publish to
+     * @param interfaceName the name of the network interface to publish on,
+     * or null to let the operating system choose
+     */
+    MulticastPublisher(InetSocketAddress _group, String interfaceName) throws IOException{
+        group = _group;
+        channel = DatagramChannel.open(_group.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        //The Consumers running on this host receive the group as well
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if(interfaceName != null){
+            NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+            if(networkInterface == null){
+                channel.close();
+                throw new IOException("Unknown network interface: " + interfaceName);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        packet = ProducerPacketFactory.newMulticastTimeBuffer();
+    }
+
+    /**
+     * Publishes the TIME message of the next tick.
+     *
+     * @param time the time in milliseconds since the epoch
+     */
+    void publish(long time) throws IOException{
+        sequence++;
+        channel.send(ProducerPacketFactory.putMulticastTime(packet, sequence, time), group);
+    }
+
+    InetSocketAddress getGroup(){
+        return group;
+    }
+}
@@ -0,0 +1,262 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class answers standard NTP client requests (RFC 5905, mode 3) over UDP
+ * with server replies (mode 4), so that real NTP clients can use the service.
+ * Unlike the Producer it keeps no state about its clients, every request is
+ * answered from the request alone.
+ *
+ * Each worker Thread owns a DatagramChannel and a reusable direct buffer. When
+ * the platform supports SO_REUSEPORT every worker binds its own channel to the
+ * port and the kernel spreads the requests over them, otherwise the workers
+ * share a single channel.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class NtpResponder{
+    private static final Log log = Log.getInstance();
+
+    /**
+     * The size of an NTP packet without extension fields or MAC.
+     */
+    public static final int NTP_PACKET_SIZE = 48;
+
+    /**
+     * The mode of an NTP client request.
+     */
+    private static final int MODE_CLIENT = 3;
+
+    /**
+     * The mode of an NTP server reply.
+     */
+    private static final int MODE_SERVER = 4;
+
+    /**
+     * The stratum this server claims. It serves the host clock as its own
+     * reference clock, which RFC 5905 makes a stratum 1 server, named by
+     * REFERENCE_ID.
+     */
+    private static final int STRATUM = 1;
+
+    /**
+     * The precision of the clock as a power of two in seconds, 2^-20 is
+     * about one microsecond.
+     */
+    private static final int PRECISION = -20;
+
+    /**
+     * The reference id sent in the replies, "LOCL" for the local clock. At
+     * stratum 1 it names the kind of reference clock, an upstream server is
+     * only named by its address from stratum 2 on.
+     */
+    private static final int REFERENCE_ID = ('L' << 24) | ('O' << 16) | ('C' << 8) | 'L';
+
+    /**
+     * The seconds between the NTP era epoch (1900) and the Unix epoch (1970).
+     */
+    private static final long SECONDS_FROM_1900_TO_1970 = 2208988800L;
+
+    /**
+     * Converts a time to the 64 bit NTP timestamp format: the seconds since
+     * 1900 in the high 32 bits (wrapping at the end of each era), and the
+     * fraction of a second in the low 32 bits.
+     *
+     * @param epochSecond the seconds since the Unix epoch
+     * @param nanos the nanoseconds within the second
+     * @return the NTP timestamp
+     */
+    static long toNtpTimestamp(long epochSecond, int nanos){
+        long seconds = (epochSecond + SECONDS_FROM_1900_TO_1970) & 0xFFFFFFFFL;
+        long fraction = ((long)nanos << 32) / 1000000000L;
+        return (seconds << 32) | fraction;
+    }
+
+    /**
+     * @return the current time as an NTP timestamp
+     */
+    static long currentNtpTimestamp(){
+        Instant now = Instant.now();
+        return toNtpTimestamp(now.getEpochSecond(), now.getNano());
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final ThreadExecutor executor;
+
+    /**
+     * The channel of each worker, several entries may refer to the same
+     * channel when SO_REUSEPORT is not supported.
+     */
+    private final DatagramChannel[] channels;
+
+    /**
+     * The number of requests answered.
+     */
+    private final AtomicLong answeredRequests;
+
+    /**
+     * The number of datagrams that were not valid client requests.
+     */
+    private final AtomicLong droppedRequests;
+
+    /**
+     * @param port the UDP port to answer on
+     * @param workers the number of worker Threads
+     * @param _executor makes the worker Threads
+     */
+    public NtpResponder(int port, int workers, ThreadExecutor _executor) throws IOException{
+        if(workers <= 0){
+            throw new IllegalArgumentException("workers must be positive");
+        }
+        executor = _executor;
+        answeredRequests = new AtomicLong();
+        droppedRequests = new AtomicLong();
+
+        channels = new DatagramChannel[workers];
+        boolean reusePort = workers > 1 && isReusePortSupported();
+        for(int i = 0; i < workers; i++){
+            if(i > 0 && !reusePort){
+                channels[i] = channels[0];
+                continue;
+            }
+            DatagramChannel channel = DatagramChannel.open();
+            if(reusePort){
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channels[i] = channel;
+        }
+    }
+
+    private static boolean isReusePortSupported(){
+        try{
+            DatagramChannel probe = DatagramChannel.open();
+            try{
+                return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }finally{
+                probe.close();
+            }
+        }catch(IOException ioe){
+            return false;
+        }
+    }
+
+    /**
+     * Starts answering requests, one worker Thread per channel entry.
+     */
+    public void start(){
+        for(int i = 0; i < channels.length; i++){
+            final DatagramChannel channel = channels[i];
+            executor.newThread("NtpResponder " + i, new Runnable(){
+                @Override
+                public void run(){
+                    serve(channel);
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Receives requests on the channel and answers them in place, until the
+     * channel is closed.
+     */
+    private void serve(DatagramChannel channel){
+        //Requests may carry extension fields, those are ignored
+        ByteBuffer packet = ByteBuffer.allocateDirect(512);
+        while(true){
+            SocketAddress client;
+            long receiveTimestamp;
+            try{
+                packet.clear();
+                client = channel.receive(packet);
+                receiveTimestamp = currentNtpTimestamp();
+            }catch(IOException ioe){
+                log.error("NtpResponder", "Unable to receive: {}", ioe);
+                return;
+            }
+            packet.flip();
+            if(!toReply(packet, receiveTimestamp)){
+                droppedRequests.incrementAndGet();
+                continue;
+            }
+            try{
+                channel.send(packet, client);
+                answeredRequests.incrementAndGet();
+            }catch(IOException ioe){
+                //The reply could not be sent, the client will retry
+                log.debug("NtpResponder", "Unable to reply: {}", ioe);
+            }
+        }
+    }
+
+    /**
+     * Turns the client request held by packet into the server reply, the
+     * reply is ready to be sent from position 0 to NTP_PACKET_SIZE.
+     *
+     * @param packet the received datagram, from position 0 to its limit
+     * @param receiveTimestamp the NTP timestamp at which it was received
+     * @return false if the datagram is not a valid client request
+     */
+    static boolean toReply(ByteBuffer packet, long receiveTimestamp){
+        if(packet.remaining() < NTP_PACKET_SIZE){
+            return false;
+        }
+        int header = packet.get(0) & 0xFF;
+        int version = (header >> 3) & 0x07;
+        int mode = header & 0x07;
+        if(mode != MODE_CLIENT || version < 1 || version > 4){
+            return false;
+        }
+        //The client's transmit timestamp becomes the origin timestamp of
+        //the reply, it is read before being overwritten
+        long originTimestamp = packet.getLong(40);
+        int poll = packet.get(2);
+
+        //Leap indicator 0 (no warning), the client's version, server mode
+        packet.put(0, (byte)((version << 3) | MODE_SERVER));
+        packet.put(1, (byte)STRATUM);
+        packet.put(2, (byte)poll);
+        packet.put(3, (byte)PRECISION);
+        //Root delay and root dispersion
+        packet.putInt(4, 0);
+        packet.putInt(8, 0);
+        packet.putInt(12, REFERENCE_ID);
+        packet.putLong(16, receiveTimestamp);
+        packet.putLong(24, originTimestamp);
+        packet.putLong(32, receiveTimestamp);
+        //Set as late as possible so that the client sees the real delay
+        packet.putLong(40, currentNtpTimestamp());
+
+        packet.position(0);
+        packet.limit(NTP_PACKET_SIZE);
+        return true;
+    }
+
+    /**
+     * @return the number of requests answered since start
+     */
+    public long getAnsweredRequests(){
+        return answeredRequests.get();
+    }
+
+    /**
+     * @return the number of datagrams that were not valid client requests
+     */
+    public long getDroppedRequests(){
+        return droppedRequests.get();
+    }
+}
@@ -0,0 +1,286 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of the TIME messages waiting to be written to a Consumer. 
+ * Only the time of each message is kept, in a ring of longs, so queueing a 
+ * message does not allocate. Once highWaterMark messages are queued the 
+ * SlowConsumerPolicy decides what happens to the next one.
+ * 
+ * The queue is thread safe, the Thread writing to the Consumer may wait on it 
+ * through take(long[], int). It is guarded by a ReentrantLock rather than its 
+ * monitor, so that a virtual writing Thread waiting in take() unmounts from 
+ * its carrier instead of pinning it.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class OutboundQueue{
+    /**
+     * The outcome of offering a TIME message to the queue.
+     */
+    enum OfferResult{
+        //The message was queued
+        QUEUED,
+        
+        //The message was queued, older messages were dropped to make room
+        DROPPED_STALE,
+        
+        //The Consumer has been marked degraded
+        DEGRADED,
+        
+        //The message was not queued, the Consumer has to be disconnected
+        DISCONNECT
+    }
+    
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+    
+    private final SlowConsumerPolicy policy;
+    
+    /**
+     * Guards every field below.
+     */
+    private final ReentrantLock lock;
+    
+    /**
+     * Signalled whenever a time is queued or the queue is closed.
+     */
+    private final Condition changed;
+    
+    /**
+     * The queued times, from head (the oldest) to head + depth - 1.
+     */
+    private final long[] times;
+    
+    private int head;
+    
+    private int depth;
+    
+    /**
+     * The number of TIME messages dropped since the queue was created.
+     */
+    private long dropped;
+    
+    /**
+     * Set while the Consumer is degraded, see SlowConsumerPolicy.DEGRADE.
+     */
+    private boolean degraded;
+    
+    /**
+     * Set once close() is called, take() then returns at once.
+     */
+    private boolean closed;
+    
+    OutboundQueue(int highWaterMark, SlowConsumerPolicy _policy){
+        if(highWaterMark <= 0){
+            throw new IllegalArgumentException("highWaterMark must be positive");
+        }
+        policy = _policy;
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+        times = new long[highWaterMark];
+    }
+    
+    /**
+     * Queues the TIME message, applying the SlowConsumerPolicy if the queue 
+     * is at its high-water mark. This never blocks.
+     * 
+     * @param time the time in milliseconds since the epoch
+     * @return the outcome, DISCONNECT when the Consumer has to be 
+     * disconnected
+     */
+    OfferResult offer(long time){
+        lock.lock();
+        try{
+            if(degraded){
+                //Only the newest TIME message is kept for a degraded Consumer
+                dropped += depth;
+                head = 0;
+                depth = 0;
+                add(time);
+                return OfferResult.DEGRADED;
+            }
+            if(depth < times.length){
+                add(time);
+                return OfferResult.QUEUED;
+            }
+            switch(policy){
+                case DISCONNECT:
+                    return OfferResult.DISCONNECT;
+                case DEGRADE:
+                    degraded = true;
+                    dropped += depth;
+                    head = 0;
+                    depth = 0;
+                    add(time);
+                    return OfferResult.DEGRADED;
+                default:
+                    //Drop the oldest message to make room for the newest
+                    head = (head + 1) % times.length;
+                    depth--;
+                    dropped++;
+                    add(time);
+                    return OfferResult.DROPPED_STALE;
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    private void add(long time){
+        times[(head + depth) % times.length] = time;
+        depth++;
+        changed.signalAll();
+    }
+    
+    /**
+     * @return the oldest queued time, the queue must not be empty
+     */
+    long peek(){
+        lock.lock();
+        try{
+            if(depth == 0){
+                throw new IllegalStateException("The queue is empty");
+            }
+            return times[head];
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @param index the position of the time from the oldest one, which is 0
+     * @return the queued time at index, which must be less than the depth
+     */
+    long peek(int index){
+        lock.lock();
+        try{
+            if(index >= depth){
+                throw new IllegalStateException("Only " + depth + " times are queued");
+            }
+            return times[(head + index) % times.length];
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @param batchSize the number of TIME messages written at once
+     * @return true if a whole batch is queued, or if the Consumer is degraded 
+     * and a TIME message is queued, as a degraded queue never holds more
+     */
+    boolean isReady(int batchSize){
+        lock.lock();
+        try{
+            return depth >= batchSize || (degraded && depth > 0);
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes the oldest queued time, the queue must not be empty. A degraded 
+     * Consumer stops being degraded once it has caught up.
+     * 
+     * @return the removed time
+     */
+    long poll(){
+        lock.lock();
+        try{
+            long time = peek();
+            head = (head + 1) % times.length;
+            depth--;
+            if(depth == 0){
+                degraded = false;
+            }
+            return time;
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits until isReady(batchSize) and removes up to batch.length times.
+     * 
+     * @param batch receives the removed times, from the oldest
+     * @param batchSize the number of times waited for
+     * @return the number of removed times
+     * @throws InterruptedException if the queue is closed, or the Thread is 
+     * interrupted while waiting
+     */
+    int take(long[] batch, int batchSize) throws InterruptedException{
+        lock.lock();
+        try{
+            while(!isReady(batchSize)){
+                if(closed){
+                    throw new InterruptedException("The queue is closed");
+                }
+                changed.await();
+            }
+            int count = Math.min(depth, batch.length);
+            for(int i = 0; i < count; i++){
+                batch[i] = poll();
+            }
+            return count;
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wakes up the Thread waiting in take(), which will not wait again.
+     */
+    void close(){
+        lock.lock();
+        try{
+            closed = true;
+            changed.signalAll();
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return the lock guarding this queue, which a caller reading several of 
+     * its values holds so that they are consistent
+     */
+    Lock getLock(){
+        return lock;
+    }
+    
+    int getDepth(){
+        lock.lock();
+        try{
+            return depth;
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    int getHighWaterMark(){
+        return times.length;
+    }
+    
+    long getDropped(){
+        lock.lock();
+        try{
+            return dropped;
+        }finally{
+            lock.unlock();
+        }
+    }
+    
+    boolean isDegraded(){
+        lock.lock();
+        try{
+            return degraded;
+        }finally{
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.log.Log;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Tracks how long the ticks of the Producer take against their budget, a
+ * share of the tick interval, and decides whether the Producer is overloaded.
+ * Each shard reports the time from when its tick was due until its fan-out
+ * ended, the slowest shard of each tick is averaged over the last few ticks,
+ * and the Producer is OVERLOADED once that average is over the budget. It is
+ * NORMAL again once the average is back under RECOVERY_PERCENT of the
+ * budget, so that the state does not flap around the budget.
+ *
+ * Only the ticks on which a shard sent TIME messages are averaged, as the
+ * near zero ticks on which no client is due would otherwise dilute an overrun
+ * of the busy ones. A Producer that has sent no TIME message for
+ * IDLE_RESET_MILLIS is idle, its average is forgotten and it is NORMAL.
+ *
+ * While overloaded, the OverloadPolicies of the ProducerConfig apply: new
+ * Consumers are told to retry later and low priority Consumers receive fewer
+ * TIME messages. SKIP_STALE_TICKS applies whenever the tick Thread falls a
+ * whole tick behind, which is itself a sign of overload.
+ *
+ * The state is exposed through ProducerMetrics.getLoadState() and
+ * Producer.getLoadState().
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class OverloadMonitor{
+    private static final Log log = Log.getInstance();
+
+    /**
+     * The priorities a Consumer may register with, in the byte following the
+     * TIME format of its REGISTER message.
+     */
+    private static final byte NORMAL_PRIORITY = 0;
+
+    private static final byte LOW_PRIORITY = 1;
+
+    /**
+     * While THROTTLE_LOW_PRIORITY applies, the low priority Consumers receive
+     * one in this many of their TIME messages.
+     */
+    static final int THROTTLE_FACTOR = 4;
+
+    /**
+     * The weight of the previous average against the slowest shard of a new
+     * tick, the average follows a sudden change within a few ticks.
+     */
+    private static final int SMOOTHING = 4;
+
+    /**
+     * The share of the budget the average has to fall under for an
+     * overloaded Producer to be NORMAL again, in percent.
+     */
+    private static final int RECOVERY_PERCENT = 75;
+
+    /**
+     * How long no shard may have sent a TIME message for the Producer to be
+     * considered idle, in milliseconds.
+     */
+    private static final long IDLE_RESET_MILLIS = Producer.DELAY_BETWEEN_TIME_MESSAGES;
+
+    /**
+     * Reads the priority byte that may follow the TIME format of a REGISTER
+     * message.
+     *
+     * @param payload the rest of the REGISTER message, 1 byte
+     * @return true if the Consumer registers as low priority
+     * @throws ProtocolException if the priority is unknown
+     */
+    static boolean readLowPriority(ByteBuffer payload) throws ProtocolException{
+        byte priority = payload.get();
+        if(priority != NORMAL_PRIORITY && priority != LOW_PRIORITY){
+            throw new ProtocolException("Unknown priority: " + priority);
+        }
+        return priority == LOW_PRIORITY;
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final ProducerMetrics metrics;
+
+    private final Set<OverloadPolicy> policies;
+
+    /**
+     * The interval between two ticks, in nanoseconds.
+     */
+    private final long tickIntervalNanos;
+
+    /**
+     * How long a tick may take from when it was due until its fan-out ends,
+     * in nanoseconds.
+     */
+    private final long budgetNanos;
+
+    /**
+     * How long to tell a rejected Consumer to wait, in milliseconds.
+     */
+    private final int retryAfter;
+
+    private volatile LoadState loadState;
+
+    /**
+     * The tick being reported by the shards, and the longest any of them that
+     * sent TIME messages has taken on it so far, in nanoseconds, or -1 if
+     * none has. Guarded by this OverloadMonitor's monitor, as are idleTicks
+     * and averageNanos.
+     */
+    private long currentTick;
+
+    private long currentTickNanos;
+
+    /**
+     * The number of ticks in a row on which no shard sent a TIME message.
+     */
+    private long idleTicks;
+
+    /**
+     * The moving average of the slowest shard of each tick, in nanoseconds,
+     * or -1 before the first tick.
+     */
+    private long averageNanos;
+
+    /**
+     * @param config sets the tick interval, the share of it the ticks may
+     * take, the policies and the retry delay
+     */
+    OverloadMonitor(ProducerConfig config){
+        metrics = ProducerMetrics.getInstance();
+        policies = EnumSet.noneOf(OverloadPolicy.class);
+        policies.addAll(config.getOverloadPolicies());
+        tickIntervalNanos = config.getMinTimeInterval() * 1000000L;
+        budgetNanos = tickIntervalNanos * config.getOverloadThreshold() / 100;
+        retryAfter = config.getRetryAfter();
+        loadState = LoadState.NORMAL;
+        currentTick = -1;
+        averageNanos = -1;
+    }
+
+    /**
+     * Records how long a shard took on a tick. This may be called from any
+     * Thread.
+     *
+     * @param tick the number of the tick
+     * @param scheduledNanos the time the tick was due
+     * @param endNanos the time the shard ended its fan-out
+     * @param fannedOut false if no client of the shard was due on the tick,
+     * in which case its duration is not averaged
+     */
+    synchronized void recordTick(long tick, long scheduledNanos, long endNanos, boolean fannedOut){
+        long tickNanos = fannedOut ? endNanos - scheduledNanos : -1;
+        if(tick > currentTick){
+            if(currentTick >= 0){
+                update(currentTickNanos);
+            }
+            currentTick = tick;
+            currentTickNanos = tickNanos;
+        }else{
+            //A late report of the current tick, or of one already averaged
+            currentTickNanos = Math.max(currentTickNanos, tickNanos);
+        }
+    }
+
+    private void update(long tickNanos){
+        if(tickNanos < 0){
+            idleTicks++;
+            if(averageNanos >= 0 && idleTicks * tickIntervalNanos >= IDLE_RESET_MILLIS * 1000000){
+                averageNanos = -1;
+                if(loadState == LoadState.OVERLOADED){
+                    setLoadState(LoadState.NORMAL);
+                    log.info("OverloadMonitor", "Back to normal, no TIME message sent for {}ms", IDLE_RESET_MILLIS);
+                }
+            }
+            return;
+        }
+        idleTicks = 0;
+        if(averageNanos < 0){
+            averageNanos = tickNanos;
+        }else{
+            averageNanos += (tickNanos - averageNanos) / SMOOTHING;
+        }
+        if(loadState == LoadState.NORMAL && averageNanos > budgetNanos){
+            setLoadState(LoadState.OVERLOADED);
+            log.warn("OverloadMonitor", "Overloaded, the ticks take {}us against a budget of {}us",
+                    averageNanos / 1000, budgetNanos / 1000);
+        }else if(loadState == LoadState.OVERLOADED && averageNanos < budgetNanos * RECOVERY_PERCENT / 100){
+            setLoadState(LoadState.NORMAL);
+            log.info("OverloadMonitor", "Back to normal, the ticks take {}us against a budget of {}us",
+                    averageNanos / 1000, budgetNanos / 1000);
+        }
+    }
+
+    private void setLoadState(LoadState _loadState){
+        loadState = _loadState;
+        metrics.recordLoadState(_loadState);
+    }
+
+    LoadState getLoadState(){
+        return loadState;
+    }
+
+    /**
+     * @return true if a REGISTER message should be answered with a
+     * RETRY_AFTER message
+     */
+    boolean isRejectingRegisters(){
+        return loadState == LoadState.OVERLOADED && policies.contains(OverloadPolicy.REJECT_REGISTER);
+    }
+
+    /**
+     * @return true if the low priority Consumers should only receive one in
+     * THROTTLE_FACTOR of their TIME messages
+     */
+    boolean isThrottlingLowPriority(){
+        return loadState == LoadState.OVERLOADED && policies.contains(OverloadPolicy.THROTTLE_LOW_PRIORITY);
+    }
+
+    /**
+     * @return true if the tick Thread should skip the ticks it is a whole
+     * tick interval late for
+     */
+    boolean isSkippingStaleTicks(){
+        return policies.contains(OverloadPolicy.SKIP_STALE_TICKS);
+    }
+
+    /**
+     * @return how long a rejected Consumer is told to wait, in milliseconds
+     */
+    int getRetryAfter(){
+        return retryAfter;
+    }
+
+    long getTickIntervalNanos(){
+        return tickIntervalNanos;
+    }
+}
@@ -0,0 +1,44 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * This class provides the enumerate constants for what the Producer does to
+ * shed load when the TIME broadcast runs over its budget, see
+ * OverloadMonitor. Any number of them may be enabled at once.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum OverloadPolicy{
+    //The REGISTER messages are answered with a RETRY_AFTER message while the
+    //Producer is overloaded, the Consumer connects again once it has passed
+    REJECT_REGISTER,
+
+    //The Consumers that registered as low priority only receive one in
+    //OverloadMonitor.THROTTLE_FACTOR of their TIME messages while the
+    //Producer is overloaded
+    THROTTLE_LOW_PRIORITY,
+
+    //A tick that is already a tick interval late is skipped, along with any
+    //other tick missed, rather than fired back to back with the next one
+    SKIP_STALE_TICKS;
+
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * Looks up the policy by name, ignoring case and allowing '-' in place of
+     * '_' so that "reject-register" may be given on the command line.
+     *
+     * @param name the name of the policy
+     * @return the matching policy, or null if there is none
+     */
+    public static OverloadPolicy getByName(String name){
+        for(OverloadPolicy policy : values()){
+            if(policy.name().equalsIgnoreCase(name.replace('-', '_'))){
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -1,9 +1,18 @@
 package com.gmail.josephui.simplentpservice.server;
 
-import com.gmail.josephui.simplentpservice.TestMod;
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.DeadlineScheduler;
+import com.gmail.josephui.simplentpservice.ThreadExecutor;
+import com.gmail.josephui.simplentpservice.log.Log;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This singleton class represent the Producer as specified in the 
@@ -12,15 +21,19 @@ import java.net.Socket;
  * @author Joseph Hui
  * @version 2015.1.17
  */
-public final class Producer extends Thread{
+public final class Producer{
+    private static final Log log = Log.getInstance();
+
     /**
-     * The default port to use for the ServerSocket.
+     * The default port to use for the ServerSocket, when the ProducerConfig 
+     * does not set another.
      */
     public static final int DEFAULT_PORT = 29999;
     
     /**
      * Every DELAY_BETWEEN_TIME_MESSAGES milliseconds, the Producer will send a 
-     * TIME message to all registered Consumers.
+     * TIME message to all registered Consumers, unless they asked for another 
+     * interval in their REGISTER message.
      */
     public static final long DELAY_BETWEEN_TIME_MESSAGES = 1000;
     
@@ -40,106 +53,469 @@ public final class Producer extends Thread{
     private static Producer instance;
     
     /**
-     * This method returns the singleton instance of the Producer class.
+     * This method returns the singleton instance of the Producer class, 
+     * creating it with the default ProducerConfig if needed.
      * 
      * @return the singleton instance of the Producer class
      */
     public static Producer getInstance() throws IOException{
+        return getInstance(new ProducerConfig());
+    }
+    
+    /**
+     * This method returns the singleton instance of the Producer class. The 
+     * given config is only used if the instance has not been created yet.
+     * 
+     * @param config the settings to create the Producer with
+     * @return the singleton instance of the Producer class
+     */
+    public static Producer getInstance(ProducerConfig config) throws IOException{
         if(instance == null){
-            instance = new Producer();
+            instance = new Producer(config);
         }
         return instance;
     }
     
+    /**
+     * @return true if several listening sockets may be bound to the same 
+     * port, the kernel then spreads the incoming connections over them
+     */
+    private static boolean isReusePortSupported(){
+        try{
+            ServerSocketChannel probe = ServerSocketChannel.open();
+            try{
+                return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }finally{
+                probe.close();
+            }
+        }catch(IOException ioe){
+            return false;
+        }
+    }
+    
 /*------------------------------------------------------------------------------
 START NON-STATIC
 ------------------------------------------------------------------------------*/
     
     /**
-     * This thread listens to the server port and wait for connecting clients 
-     * (Consumers).
+     * The networking engine this Producer serves the Consumers with.
      */
-    private final Thread acceptingClientsThread;
+    private final ProducerEngine engine;
     
     /**
-     * Every DELAY_BETWEEN_TIME_MESSAGES milliseconds, this thread sends TIME 
-     * messages to clients (Consumers) that has both (1) REGISTER itself with 
-     * the server, and (2) has send a KEEP_ALIVE message to the server within
-     * the past KEEP_ALIVE_TIME milliseconds.
+     * Every Thread of the BLOCKING engine, including the ClientHandlers, is 
+     * started through this ThreadExecutor.
+     */
+    private final ThreadExecutor executor;
+    
+    /**
+     * The clock the ticks, the TIME messages and the metrics reports follow, 
+     * the default ClockSource when this Producer was created.
+     */
+    private final ClockSource clock;
+    
+    /**
+     * These threads listen to the server port and wait for connecting 
+     * clients (Consumers), one per ServerSocket entry. Only used by the 
+     * BLOCKING engine.
+     */
+    private final Thread[] acceptingClientsThreads;
+    
+    /**
+     * Every minimum time interval of the ProducerConfig, this thread ticks 
+     * the shards, which send TIME messages to the clients (Consumers) that 
+     * are due on that tick and that has both (1) REGISTER itself with the 
+     * server, and (2) has send a KEEP_ALIVE message to the server within the 
+     * past KEEP_ALIVE_TIME milliseconds.
      */
     private final Thread sendingClientsTimeMessagesThread;
     
     /**
-     * The ServerSocket that will listen for incoming client connection.
+     * The ServerSocket of each accepting thread that will listen for incoming 
+     * client connection. When SO_REUSEPORT is supported each one is bound to 
+     * the port and the kernel spreads the connections over them, otherwise 
+     * every entry refers to the same ServerSocket. Only used by the BLOCKING 
+     * engine.
      */
-    private final ServerSocket serverSocket;
+    private final ServerSocket[] serverSockets;
+    
+    /**
+     * Admits the accepted connections at the configured rate, or null if 
+     * they are accepted as fast as they arrive.
+     */
+    private final TokenBucket admission;
+    
+    /**
+     * Round robin index into broadcastShards, shared by the accepting 
+     * threads. Only used by the BLOCKING engine.
+     */
+    private final AtomicInteger nextShard;
+    
+    /**
+     * The EventLoops serving the Consumers, the first of which also accepts 
+     * the incoming client connection. Only used by the EVENT_LOOP engine.
+     */
+    private final EventLoop[] eventLoops;
+    
+    /**
+     * The shards the ClientHandlers are partitioned into, each expiring its 
+     * clients and sending them the TIME message on its own Thread. Only used 
+     * by the BLOCKING engine.
+     */
+    private final BroadcastShard[] broadcastShards;
+    
+    /**
+     * Answers standard NTP requests over UDP alongside the TCP protocol, or 
+     * null if no NTP port is configured.
+     */
+    private final NtpResponder ntpResponder;
+    
+    /**
+     * Publishes the TIME message to the multicast group once per tick, or 
+     * null if no multicast group is configured.
+     */
+    private final MulticastPublisher multicastPublisher;
+    
+    /**
+     * Exchanges the load with the other Producers of the cluster, and 
+     * chooses the peer a REGISTER is redirected to, or null if this Producer 
+     * runs alone.
+     */
+    private final ClusterMembership cluster;
+    
+    /**
+     * Is told how long each tick took, and decides whether this Producer is 
+     * overloaded and which OverloadPolicies apply.
+     */
+    private final OverloadMonitor overloadMonitor;
+    
+    /**
+     * Logs a ProducerMetrics snapshot every metrics interval, or null if no 
+     * metrics interval is configured.
+     */
+    private final Thread reportingMetricsThread;
     
     //Not used, but could potentially be of use if increased functionality are 
     //implemented
     //private final Set<ClientHandler> clients;
     
-    private Producer() throws IOException{
-        serverSocket = new ServerSocket(DEFAULT_PORT);
+    private Producer(ProducerConfig config) throws IOException{
+        engine = config.getEngine();
+        executor = new ThreadExecutor(config.getThreadMode());
+        clock = ClockSource.getDefault();
+        if(!config.getPeers().isEmpty()){
+            cluster = new ClusterMembership(config.getPort(), config.getPeers(), config.getMaxClients(), executor);
+        }else{
+            cluster = null;
+        }
+        overloadMonitor = new OverloadMonitor(config);
+        if(config.getAdmissionRate() > 0){
+            admission = new TokenBucket(config.getAdmissionRate(), config.getAdmissionBurst());
+        }else{
+            admission = null;
+        }
+        InetSocketAddress address = new InetSocketAddress(config.getPort());
+        if(engine == ProducerEngine.EVENT_LOOP){
+            serverSockets = null;
+            acceptingClientsThreads = null;
+            broadcastShards = null;
+            nextShard = null;
+            
+            eventLoops = new EventLoop[config.getEventLoopThreads()];
+            for(int i = 0; i < eventLoops.length; i++){
+                eventLoops[i] = new EventLoop("EventLoop " + i, config, cluster, overloadMonitor);
+            }
+            //The first EventLoops also accept the connections
+            ServerSocketChannel[] serverChannels = new ServerSocketChannel[Math.min(config.getAcceptorThreads(), eventLoops.length)];
+            boolean reusePort = serverChannels.length > 1 && isReusePortSupported();
+            for(int i = 0; i < serverChannels.length; i++){
+                if(i > 0 && !reusePort){
+                    //A channel may be registered with several Selectors
+                    serverChannels[i] = serverChannels[0];
+                }else{
+                    serverChannels[i] = ServerSocketChannel.open();
+                    if(reusePort){
+                        serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    serverChannels[i].bind(address, config.getAcceptBacklog());
+                }
+                eventLoops[i].acceptFrom(serverChannels[i], eventLoops, admission);
+            }
+        }else{
+            serverSockets = new ServerSocket[config.getAcceptorThreads()];
+            boolean reusePort = serverSockets.length > 1 && isReusePortSupported();
+            for(int i = 0; i < serverSockets.length; i++){
+                if(i > 0 && !reusePort){
+                    serverSockets[i] = serverSockets[0];
+                }else{
+                    serverSockets[i] = new ServerSocket();
+                    if(reusePort){
+                        serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    serverSockets[i].bind(address, config.getAcceptBacklog());
+                }
+            }
+            eventLoops = null;
+            broadcastShards = new BroadcastShard[config.getBroadcastShards()];
+            for(int i = 0; i < broadcastShards.length; i++){
+                broadcastShards[i] = new BroadcastShard("BroadcastShard " + i, executor, overloadMonitor);
+            }
+            nextShard = new AtomicInteger();
+            acceptingClientsThreads = new Thread[serverSockets.length];
+            for(int i = 0; i < acceptingClientsThreads.length; i++){
+                acceptingClientsThreads[i] = createAcceptingClientsThread(config, serverSockets[i], i);
+            }
+        }
+        if(config.getNtpPort() > 0){
+            ntpResponder = new NtpResponder(config.getNtpPort(), config.getNtpWorkers(), executor);
+        }else{
+            ntpResponder = null;
+        }
+        if(config.getMulticastGroup() != null){
+            multicastPublisher = new MulticastPublisher(config.getMulticastGroup(), config.getMulticastInterface());
+        }else{
+            multicastPublisher = null;
+        }
+        if(config.getMetricsInterval() > 0){
+            reportingMetricsThread = createReportingMetricsThread(config);
+        }else{
+            reportingMetricsThread = null;
+        }
         //clients = Collections.synchronizedSet(new HashSet<ClientHandler>());
         
+        //The clients asking for the default interval, and the multicast group, 
+        //are due every defaultPeriod ticks
+        final long tickIntervalNanos = overloadMonitor.getTickIntervalNanos();
+        final int defaultPeriod = RateSchedule.periodOf((int)DELAY_BETWEEN_TIME_MESSAGES, config);
+        
         //The thread is made on the fly because it's a single purpose thread
-        acceptingClientsThread = new Thread(){
+        sendingClientsTimeMessagesThread = executor.newThread("sendingClientsTimeMessagesThread", new Runnable(){
+            long nextSendNanos;
+            long tick;
+            long previousTick = -1;
             @Override
             public void run(){
+                DeadlineScheduler scheduler = DeadlineScheduler.getInstance();
+                ProducerMetrics metrics = ProducerMetrics.getInstance();
+                nextSendNanos = clock.nanoTime();
                 while(true){
                     try{
-                        TestMod.printlnIfTest("acceptingClientsThread", "Listening for Consumer connection");
+                        scheduler.sleepUntil(nextSendNanos);
+                    }catch(InterruptedException ie){
+                        //Impossible because no other thread is calling 
+                        //interrupt()
+                        throw new IllegalStateException("Impossible event.");
+                    }
+                    //A tick that is already a whole tick interval late is 
+                    //stale, the TIME message it would send is outdated and 
+                    //catching up on it only makes the next ticks later still
+                    if(overloadMonitor.isSkippingStaleTicks()){
+                        long staleTicks = (clock.nanoTime() - nextSendNanos) / tickIntervalNanos;
+                        if(staleTicks > 0){
+                            nextSendNanos += staleTicks * tickIntervalNanos;
+                            tick += staleTicks;
+                            metrics.recordSkippedTicks(staleTicks);
+                        }
+                    }
+                    long scheduledNanos = nextSendNanos;
+                    //This method of counting time is more accurate in the long 
+                    //run than simply making the Thread sleep for 
+                    //tickInterval milliseconds.
+                    nextSendNanos += tickIntervalNanos;
+                    
+                    //The Consumers that have joined the multicast group get 
+                    //the time message from a single datagram, once per 
+                    //defaultPeriod ticks even if the due tick was skipped
+                    if(multicastPublisher != null && Math.floorDiv(tick, defaultPeriod) != Math.floorDiv(previousTick, defaultPeriod)){
+                        publishMulticastTime(scheduledNanos);
+                    }
+                    
+                    //Each shard removes its own timed out clients and sends 
+                    //the time message to its clients due on this tick on its 
+                    //own Thread
+                    if(eventLoops != null){
+                        for(EventLoop eventLoop : eventLoops){
+                            eventLoop.tick(scheduledNanos, tick);
+                        }
+                    }else{
+                        for(BroadcastShard shard : broadcastShards){
+                            shard.tick(scheduledNanos, tick);
+                        }
+                    }
+                    previousTick = tick;
+                    tick++;
+                }
+            }
+        });
+    }
+    
+    /**
+     * Publishes the TIME message to the multicast group, a failed send is 
+     * counted as a write failure and the tick is not retried.
+     * 
+     * @param scheduledNanos the clock.nanoTime() the TIME message was due
+     */
+    private void publishMulticastTime(long scheduledNanos){
+        ProducerMetrics metrics = ProducerMetrics.getInstance();
+        long startNanos = clock.nanoTime();
+        TimeBroadcastEvent event = new TimeBroadcastEvent();
+        event.begin();
+        try{
+            multicastPublisher.publish(clock.currentTimeMillis());
+        }catch(IOException ioe){
+            metrics.recordWriteFailure();
+        }
+        metrics.recordBroadcast(scheduledNanos, startNanos, startNanos, metrics.getMulticastMembers(), event);
+    }
+    
+    private Thread createAcceptingClientsThread(final ProducerConfig config, final ServerSocket serverSocket, int index){
+        final ProducerMetrics metrics = ProducerMetrics.getInstance();
+        //The thread is made on the fly because it's a single purpose thread
+        return executor.newThread("acceptingClientsThread " + index, new Runnable(){
+            @Override
+            public void run(){
+                while(true){
+                    try{
+                        if(admission != null){
+                            //The connections wait in the listen backlog 
+                            //until there is a token
+                            long waitNanos = admission.acquire();
+                            if(waitNanos > 0){
+                                metrics.recordAdmissionWait(waitNanos);
+                            }
+                        }
+                        log.debug("acceptingClientsThread", "Listening for Consumer connection");
                         Socket client = serverSocket.accept();
-                        TestMod.printlnIfTest("acceptingClientsThread", "Accepted a Consumer connection");
+                        metrics.recordAccept();
+                        log.debug("acceptingClientsThread", "Accepted a Consumer connection");
                         
                         //The ClientHandler Thread listens to inputs that the 
                         //client sends to the server and processes them
-                        ClientHandler handler = new ClientHandler(client);
+                        //The clients are spread over the shards in round 
+                        //robin order
+                        BroadcastShard shard = broadcastShards[Math.floorMod(nextShard.getAndIncrement(), broadcastShards.length)];
+                        ClientHandler handler = new ClientHandler(client, config, executor, shard, cluster, overloadMonitor);
                         //clients.add(handler);
-                        handler.start();
+                        executor.execute(handler);
                     }catch(IOException ioe){
-                        System.out.println(ioe);
+                        log.error("acceptingClientsThread", "Unable to accept: {}", ioe);
                         return;
                     }
                 }
             }
-        };
-        
+        });
+    }
+    
+    private Thread createReportingMetricsThread(ProducerConfig config){
+        final long interval = config.getMetricsInterval() * 1000;
+        final MetricsFormat format = config.getMetricsFormat();
         //The thread is made on the fly because it's a single purpose thread
-        sendingClientsTimeMessagesThread = new Thread(){
-            long nextSendTime;
+        Thread thread = executor.newThread("reportingMetricsThread", new Runnable(){
             @Override
             public void run(){
-                nextSendTime = System.currentTimeMillis();
+                long nextReportTime = clock.currentTimeMillis() + interval;
                 while(true){
-                    while(System.currentTimeMillis() < nextSendTime){
-                        try{
-                            Thread.sleep(10);
-                        }catch(InterruptedException ie){
-                            //Impossible because no other thread is calling 
-                            //interrupt()
-                            throw new IllegalStateException("Impossible event.");
-                        }
+                    try{
+                        clock.sleep(nextReportTime - clock.currentTimeMillis());
+                    }catch(InterruptedException ie){
+                        return;
+                    }
+                    nextReportTime += interval;
+                    //Printed by the Log like every other message, as 
+                    //[ProducerMetrics] or [shard name] followed by the snapshot
+                    log.info("ProducerMetrics", "{}", ProducerMetrics.getInstance().snapshotAndReset().format(format));
+                    for(ShardStats stats : getShardStats()){
+                        ShardStats.Snapshot snapshot = stats.snapshotAndReset();
+                        log.info(snapshot.getName(), "{}", snapshot.format(format));
                     }
-                    //This method of counting time is more accurate in the long 
-                    //run than simply making the Thread sleep for 
-                    //DELAY_BETWEEN_TIME_MESSAGES milliseconds.
-                    nextSendTime += DELAY_BETWEEN_TIME_MESSAGES;
-                    
-                    //Checks for timed out clients and remove them
-                    ClientHandler.removeClientsOlderThan(System.currentTimeMillis() - KEEP_ALIVE_TIME);
-                    
-                    TestMod.printlnIfTest("sendingClientsTimeMessagesThread", "Sending out Time messages");
-                    //Gives the active clients the time message
-                    ClientHandler.sendTimeMessageToListeningClients();
                 }
             }
-        };
+        });
+        thread.setDaemon(true);
+        return thread;
     }
     
-    @Override
-    public void run(){
-        acceptingClientsThread.start();
+    /**
+     * @return the hot path metrics of this Producer
+     */
+    public ProducerMetrics getMetrics(){
+        return ProducerMetrics.getInstance();
+    }
+    
+    /**
+     * @return whether this Producer is currently overloaded, see 
+     * OverloadMonitor
+     */
+    public LoadState getLoadState(){
+        return overloadMonitor.getLoadState();
+    }
+    
+    /**
+     * @return the broadcast statistics of each shard of the Consumers, the 
+     * EventLoops or the BroadcastShards depending on the engine
+     */
+    public List<ShardStats> getShardStats(){
+        List<ShardStats> stats = new ArrayList<ShardStats>();
+        if(eventLoops != null){
+            for(EventLoop eventLoop : eventLoops){
+                stats.add(eventLoop.getStats());
+            }
+        }else{
+            for(BroadcastShard shard : broadcastShards){
+                stats.add(shard.getStats());
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * Takes a snapshot of the outbound queue of every registered Consumer, 
+     * this is how the Consumers that do not keep up with their TIME messages 
+     * can be spotted.
+     * 
+     * @return the queue depth and drop counters of each registered Consumer
+     */
+    public List<ClientQueueStats> getClientQueueStats(){
+        if(eventLoops != null){
+            return EventLoop.getClientQueueStats();
+        }
+        return ClientHandler.getClientQueueStats();
+    }
+    
+    /**
+     * @return the NtpResponder answering on the configured NTP port, or null 
+     * if there is none
+     */
+    public NtpResponder getNtpResponder(){
+        return ntpResponder;
+    }
+    
+    /**
+     * Starts serving the Consumers.
+     */
+    public void start(){
+        log.debug("Producer", "Using the {} engine on {} threads", engine, executor.getMode());
+        if(eventLoops != null){
+            for(EventLoop eventLoop : eventLoops){
+                eventLoop.start();
+            }
+        }else{
+            for(BroadcastShard shard : broadcastShards){
+                shard.start();
+            }
+            for(Thread acceptingClientsThread : acceptingClientsThreads){
+                acceptingClientsThread.start();
+            }
+        }
         sendingClientsTimeMessagesThread.start();
+        if(cluster != null){
+            cluster.start();
+        }
+        if(ntpResponder != null){
+            ntpResponder.start();
+        }
+        if(reportingMetricsThread != null){
+            reportingMetricsThread.start();
+        }
     }
 }
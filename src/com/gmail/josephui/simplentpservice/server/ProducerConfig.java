@@ -0,0 +1,544 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ThreadMode;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class holds the settings the Producer is started with. The setters
+ * return this ProducerConfig so that calls may be chained.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ProducerConfig{
+    /**
+     * The TCP port the Consumers connect to, which is also the UDP port the
+     * cluster peers exchange their load on.
+     */
+    private int port;
+
+    /**
+     * The other Producers of the cluster, empty if this Producer runs alone.
+     */
+    private List<InetSocketAddress> peers;
+
+    /**
+     * The number of registered Consumers above which a REGISTER is
+     * redirected to a less loaded peer, or 0 if this Producer takes any
+     * number.
+     */
+    private int maxClients;
+
+    /**
+     * The length of the listen backlog, in which the connections wait to be
+     * accepted.
+     */
+    private int acceptBacklog;
+
+    /**
+     * The number of Threads accepting the connections.
+     */
+    private int acceptorThreads;
+
+    /**
+     * The connections accepted per second, or 0 if they are accepted as fast
+     * as they arrive.
+     */
+    private int admissionRate;
+
+    /**
+     * The most connections accepted at once at the admissionRate.
+     */
+    private int admissionBurst;
+
+    /**
+     * The shortest interval a Consumer may receive the TIME message at, in
+     * milliseconds, which is also the interval between two ticks.
+     */
+    private int minTimeInterval;
+
+    /**
+     * The longest interval a Consumer may receive the TIME message at, in
+     * milliseconds.
+     */
+    private int maxTimeInterval;
+
+    /**
+     * The networking engine used to serve the Consumers.
+     */
+    private ProducerEngine engine;
+
+    /**
+     * The number of EventLoop Threads, only used by the EVENT_LOOP engine.
+     */
+    private int eventLoopThreads;
+
+    /**
+     * The number of BroadcastShards, only used by the BLOCKING engine.
+     */
+    private int broadcastShards;
+
+    /**
+     * The number of TIME messages that may wait to be written to a Consumer
+     * before the slowConsumerPolicy applies.
+     */
+    private int outboundHighWaterMark;
+
+    /**
+     * What happens to a Consumer whose outbound queue is full.
+     */
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    /**
+     * The kind of Threads the BLOCKING engine runs on.
+     */
+    private ThreadMode threadMode;
+
+    /**
+     * The UDP port the NtpResponder answers on, or 0 if it is not started.
+     */
+    private int ntpPort;
+
+    /**
+     * The number of NtpResponder worker Threads.
+     */
+    private int ntpWorkers;
+
+    /**
+     * The seconds between two printed ProducerMetrics snapshots, or 0 if
+     * they are not printed.
+     */
+    private int metricsInterval;
+
+    /**
+     * The format the ProducerMetrics snapshots are printed in.
+     */
+    private MetricsFormat metricsFormat;
+
+    /**
+     * The multicast group the TIME messages are published to, or null if
+     * they are only sent over the Consumer connections.
+     */
+    private InetSocketAddress multicastGroup;
+
+    /**
+     * The name of the network interface the TIME messages are published on,
+     * or null to let the operating system choose.
+     */
+    private String multicastInterface;
+
+    /**
+     * What the Producer does to shed load once its ticks run over budget.
+     */
+    private Set<OverloadPolicy> overloadPolicies;
+
+    /**
+     * The share of the tick interval a tick may take before the Producer is
+     * overloaded, in percent.
+     */
+    private int overloadThreshold;
+
+    /**
+     * How long a Consumer rejected by REJECT_REGISTER is told to wait before
+     * connecting again, in milliseconds.
+     */
+    private int retryAfter;
+
+    public ProducerConfig(){
+        port = Producer.DEFAULT_PORT;
+        peers = Collections.emptyList();
+        maxClients = 0;
+        acceptBacklog = 1024;
+        acceptorThreads = 1;
+        admissionRate = 0;
+        admissionBurst = 1000;
+        minTimeInterval = 100;
+        maxTimeInterval = 60000;
+        engine = ProducerEngine.BLOCKING;
+        eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        broadcastShards = Runtime.getRuntime().availableProcessors();
+        outboundHighWaterMark = 4;
+        slowConsumerPolicy = SlowConsumerPolicy.DROP_STALE;
+        threadMode = ThreadMode.PLATFORM;
+        ntpPort = 0;
+        ntpWorkers = Runtime.getRuntime().availableProcessors();
+        metricsInterval = 0;
+        metricsFormat = MetricsFormat.TEXT;
+        multicastGroup = null;
+        multicastInterface = null;
+        overloadPolicies = Collections.unmodifiableSet(EnumSet.of(OverloadPolicy.SKIP_STALE_TICKS));
+        overloadThreshold = 80;
+        retryAfter = 5000;
+    }
+
+    public int getPort(){
+        return port;
+    }
+
+    public ProducerConfig setPort(int _port){
+        if(_port <= 0 || _port > 65535){
+            throw new IllegalArgumentException("port must be between 1 and 65535");
+        }
+        port = _port;
+        return this;
+    }
+
+    public List<InetSocketAddress> getPeers(){
+        return peers;
+    }
+
+    /**
+     * @param _peers the address and port of every other Producer of the
+     * cluster, as the Consumers reach them, an empty list to run alone
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setPeers(List<InetSocketAddress> _peers){
+        if(_peers == null){
+            throw new IllegalArgumentException("peers must not be null");
+        }
+        for(InetSocketAddress peer : _peers){
+            if(peer.isUnresolved()){
+                throw new IllegalArgumentException("Unknown peer: " + peer.getHostString());
+            }
+        }
+        peers = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(_peers));
+        return this;
+    }
+
+    public int getMaxClients(){
+        return maxClients;
+    }
+
+    /**
+     * @param _maxClients the number of registered Consumers above which a
+     * REGISTER is redirected to a less loaded peer, 0 to take any number
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMaxClients(int _maxClients){
+        if(_maxClients < 0){
+            throw new IllegalArgumentException("maxClients must not be negative");
+        }
+        maxClients = _maxClients;
+        return this;
+    }
+
+    public int getAcceptBacklog(){
+        return acceptBacklog;
+    }
+
+    /**
+     * @param _acceptBacklog the length of the listen backlog, the operating
+     * system may cap it (net.core.somaxconn on Linux)
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setAcceptBacklog(int _acceptBacklog){
+        if(_acceptBacklog <= 0){
+            throw new IllegalArgumentException("acceptBacklog must be positive");
+        }
+        acceptBacklog = _acceptBacklog;
+        return this;
+    }
+
+    public int getAcceptorThreads(){
+        return acceptorThreads;
+    }
+
+    /**
+     * @param _acceptorThreads the number of Threads accepting the
+     * connections, with the EVENT_LOOP engine these are the first EventLoops
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setAcceptorThreads(int _acceptorThreads){
+        if(_acceptorThreads <= 0){
+            throw new IllegalArgumentException("acceptorThreads must be positive");
+        }
+        acceptorThreads = _acceptorThreads;
+        return this;
+    }
+
+    public int getAdmissionRate(){
+        return admissionRate;
+    }
+
+    /**
+     * @param _admissionRate the connections accepted per second, 0 to accept
+     * them as fast as they arrive
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setAdmissionRate(int _admissionRate){
+        if(_admissionRate < 0){
+            throw new IllegalArgumentException("admissionRate must not be negative");
+        }
+        admissionRate = _admissionRate;
+        return this;
+    }
+
+    public int getAdmissionBurst(){
+        return admissionBurst;
+    }
+
+    public ProducerConfig setAdmissionBurst(int _admissionBurst){
+        if(_admissionBurst <= 0){
+            throw new IllegalArgumentException("admissionBurst must be positive");
+        }
+        admissionBurst = _admissionBurst;
+        return this;
+    }
+
+    public int getMinTimeInterval(){
+        return minTimeInterval;
+    }
+
+    /**
+     * @param _minTimeInterval the shortest interval a Consumer may receive
+     * the TIME message at, in milliseconds, up to the default
+     * Producer.DELAY_BETWEEN_TIME_MESSAGES. The Producer ticks at this
+     * interval and the intervals asked for are rounded to a multiple of it.
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMinTimeInterval(int _minTimeInterval){
+        if(_minTimeInterval <= 0 || _minTimeInterval > Producer.DELAY_BETWEEN_TIME_MESSAGES){
+            throw new IllegalArgumentException("minTimeInterval must be between 1 and " + Producer.DELAY_BETWEEN_TIME_MESSAGES);
+        }
+        minTimeInterval = _minTimeInterval;
+        return this;
+    }
+
+    public int getMaxTimeInterval(){
+        return maxTimeInterval;
+    }
+
+    /**
+     * @param _maxTimeInterval the longest interval a Consumer may receive the
+     * TIME message at, in milliseconds, from the default
+     * Producer.DELAY_BETWEEN_TIME_MESSAGES
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMaxTimeInterval(int _maxTimeInterval){
+        if(_maxTimeInterval < Producer.DELAY_BETWEEN_TIME_MESSAGES){
+            throw new IllegalArgumentException("maxTimeInterval must be at least " + Producer.DELAY_BETWEEN_TIME_MESSAGES);
+        }
+        maxTimeInterval = _maxTimeInterval;
+        return this;
+    }
+
+    public ProducerEngine getEngine(){
+        return engine;
+    }
+
+    public ProducerConfig setEngine(ProducerEngine _engine){
+        if(_engine == null){
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        engine = _engine;
+        return this;
+    }
+
+    public int getEventLoopThreads(){
+        return eventLoopThreads;
+    }
+
+    public ProducerConfig setEventLoopThreads(int _eventLoopThreads){
+        if(_eventLoopThreads <= 0){
+            throw new IllegalArgumentException("eventLoopThreads must be positive");
+        }
+        eventLoopThreads = _eventLoopThreads;
+        return this;
+    }
+
+    public int getBroadcastShards(){
+        return broadcastShards;
+    }
+
+    public ProducerConfig setBroadcastShards(int _broadcastShards){
+        if(_broadcastShards <= 0){
+            throw new IllegalArgumentException("broadcastShards must be positive");
+        }
+        broadcastShards = _broadcastShards;
+        return this;
+    }
+
+    public int getOutboundHighWaterMark(){
+        return outboundHighWaterMark;
+    }
+
+    public ProducerConfig setOutboundHighWaterMark(int _outboundHighWaterMark){
+        if(_outboundHighWaterMark <= 0){
+            throw new IllegalArgumentException("outboundHighWaterMark must be positive");
+        }
+        outboundHighWaterMark = _outboundHighWaterMark;
+        return this;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy(){
+        return slowConsumerPolicy;
+    }
+
+    public ProducerConfig setSlowConsumerPolicy(SlowConsumerPolicy _slowConsumerPolicy){
+        if(_slowConsumerPolicy == null){
+            throw new IllegalArgumentException("slowConsumerPolicy must not be null");
+        }
+        slowConsumerPolicy = _slowConsumerPolicy;
+        return this;
+    }
+
+    public ThreadMode getThreadMode(){
+        return threadMode;
+    }
+
+    public ProducerConfig setThreadMode(ThreadMode _threadMode){
+        if(_threadMode == null){
+            throw new IllegalArgumentException("threadMode must not be null");
+        }
+        threadMode = _threadMode;
+        return this;
+    }
+
+    public int getNtpPort(){
+        return ntpPort;
+    }
+
+    /**
+     * @param _ntpPort the UDP port to answer NTP requests on, 0 to not answer
+     * NTP requests
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setNtpPort(int _ntpPort){
+        if(_ntpPort < 0 || _ntpPort > 65535){
+            throw new IllegalArgumentException("ntpPort must be between 0 and 65535");
+        }
+        ntpPort = _ntpPort;
+        return this;
+    }
+
+    public int getNtpWorkers(){
+        return ntpWorkers;
+    }
+
+    public ProducerConfig setNtpWorkers(int _ntpWorkers){
+        if(_ntpWorkers <= 0){
+            throw new IllegalArgumentException("ntpWorkers must be positive");
+        }
+        ntpWorkers = _ntpWorkers;
+        return this;
+    }
+
+    public int getMetricsInterval(){
+        return metricsInterval;
+    }
+
+    /**
+     * @param _metricsInterval the seconds between two printed ProducerMetrics
+     * snapshots, 0 to not print them
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMetricsInterval(int _metricsInterval){
+        if(_metricsInterval < 0){
+            throw new IllegalArgumentException("metricsInterval must not be negative");
+        }
+        metricsInterval = _metricsInterval;
+        return this;
+    }
+
+    public MetricsFormat getMetricsFormat(){
+        return metricsFormat;
+    }
+
+    public ProducerConfig setMetricsFormat(MetricsFormat _metricsFormat){
+        if(_metricsFormat == null){
+            throw new IllegalArgumentException("metricsFormat must not be null");
+        }
+        metricsFormat = _metricsFormat;
+        return this;
+    }
+
+    public InetSocketAddress getMulticastGroup(){
+        return multicastGroup;
+    }
+
+    /**
+     * @param _multicastGroup the multicast group and UDP port to publish the
+     * TIME messages to, null to only send them over the Consumer connections
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMulticastGroup(InetSocketAddress _multicastGroup){
+        if(_multicastGroup != null && (_multicastGroup.isUnresolved() || !_multicastGroup.getAddress().isMulticastAddress())){
+            throw new IllegalArgumentException("multicastGroup must be a multicast address");
+        }
+        multicastGroup = _multicastGroup;
+        return this;
+    }
+
+    public String getMulticastInterface(){
+        return multicastInterface;
+    }
+
+    /**
+     * @param _multicastInterface the name of the network interface to publish
+     * the TIME messages on, such as "lo", null to let the operating system
+     * choose
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setMulticastInterface(String _multicastInterface){
+        multicastInterface = _multicastInterface;
+        return this;
+    }
+
+    public Set<OverloadPolicy> getOverloadPolicies(){
+        return overloadPolicies;
+    }
+
+    /**
+     * @param _overloadPolicies the policies applied once the ticks run over
+     * budget, an empty set to only track the LoadState
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setOverloadPolicies(Set<OverloadPolicy> _overloadPolicies){
+        if(_overloadPolicies == null){
+            throw new IllegalArgumentException("overloadPolicies must not be null");
+        }
+        EnumSet<OverloadPolicy> copy = EnumSet.noneOf(OverloadPolicy.class);
+        copy.addAll(_overloadPolicies);
+        overloadPolicies = Collections.unmodifiableSet(copy);
+        return this;
+    }
+
+    public int getOverloadThreshold(){
+        return overloadThreshold;
+    }
+
+    /**
+     * @param _overloadThreshold the share of the tick interval a tick may
+     * take, from when it was due until its fan-out ends, in percent
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setOverloadThreshold(int _overloadThreshold){
+        if(_overloadThreshold < 1 || _overloadThreshold > 100){
+            throw new IllegalArgumentException("overloadThreshold must be between 1 and 100");
+        }
+        overloadThreshold = _overloadThreshold;
+        return this;
+    }
+
+    public int getRetryAfter(){
+        return retryAfter;
+    }
+
+    /**
+     * @param _retryAfter how long a rejected Consumer waits before connecting
+     * again, in milliseconds
+     * @return this ProducerConfig
+     */
+    public ProducerConfig setRetryAfter(int _retryAfter){
+        if(_retryAfter <= 0){
+            throw new IllegalArgumentException("retryAfter must be positive");
+        }
+        retryAfter = _retryAfter;
+        return this;
+    }
+}
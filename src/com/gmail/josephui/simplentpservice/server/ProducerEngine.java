@@ -0,0 +1,38 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * This class provides the enumerate constants for the networking engines the
+ * Producer can be started with.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum ProducerEngine{
+    //One ClientHandler Thread per accepted java.net.Socket, this is the
+    //original implementation
+    BLOCKING,
+
+    //A small fixed number of EventLoop Threads multiplexing every
+    //java.nio.channels.SocketChannel through a java.nio.channels.Selector
+    EVENT_LOOP;
+
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * Looks up the engine by name, ignoring case and allowing '-' in place of
+     * '_' so that "event-loop" may be given on the command line.
+     *
+     * @param name the name of the engine
+     * @return the matching engine, or null if there is none
+     */
+    public static ProducerEngine getByName(String name){
+        for(ProducerEngine engine : values()){
+            if(engine.name().equalsIgnoreCase(name.replace('-', '_'))){
+                return engine;
+            }
+        }
+        return null;
+    }
+}
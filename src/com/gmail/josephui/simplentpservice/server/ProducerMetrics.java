@@ -0,0 +1,561 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.DeadlineScheduler;
+import com.gmail.josephui.simplentpservice.metrics.Histogram;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * This singleton class holds the hot path metrics of the Producer: the
+ * duration of each TIME broadcast, how late each broadcast starts, the
+ * counters of the accepted connections, the Consumer messages, expiries,
+ * redirects and write failures, of the TIME messages written with the writes
+ * and bytes they took, how long the acceptors waited for admission, the load
+ * shedding of the OverloadMonitor and its LoadState, and the number of
+ * listening Consumers. Recording only increments striped counters and lock
+ * free histograms, nothing is formatted or printed on the hot path, so the
+ * metrics are always on.
+ *
+ * The metrics are read through snapshot(), printed periodically by the
+ * Producer when a metrics interval is configured, and exported to JFR as the
+ * TimeBroadcastEvent and ProducerMetricsEvent.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ProducerMetrics{
+    private static final ProducerMetrics instance = new ProducerMetrics();
+
+    /**
+     * @return the metrics of the Producer
+     */
+    public static ProducerMetrics getInstance(){
+        return instance;
+    }
+
+    /**
+     * @param histogram the histogram to print
+     * @return the count and the percentiles of histogram as a JSON object
+     */
+    static String toJson(Histogram.Snapshot histogram){
+        return "{\"count\":" + histogram.getCount() + ",\"p50\":" + histogram.getValueAtPercentile(50)
+                + ",\"p90\":" + histogram.getValueAtPercentile(90) + ",\"p99\":" + histogram.getValueAtPercentile(99)
+                + ",\"p999\":" + histogram.getValueAtPercentile(99.9) + ",\"max\":" + histogram.getMax() + "}";
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The time each Thread took to hand the TIME message to all of its
+     * listening Consumers, in microseconds.
+     */
+    private final Histogram fanOutMicros;
+
+    /**
+     * How late each broadcast started after its scheduled send time, in
+     * microseconds.
+     */
+    private final Histogram tickLagMicros;
+
+    /**
+     * How long an acceptor waited for the TokenBucket before accepting more
+     * connections, in microseconds. The connections wait in the listen
+     * backlog meanwhile.
+     */
+    private final Histogram admissionWaitMicros;
+
+    /**
+     * The connections accepted.
+     */
+    private final LongAdder accepts;
+
+    /**
+     * The times an acceptor had to wait for the TokenBucket.
+     */
+    private final LongAdder admissionWaits;
+
+    private final LongAdder registers;
+
+    private final LongAdder keepAlives;
+
+    /**
+     * The Consumers removed because their KeepAlive message was late.
+     */
+    private final LongAdder expiries;
+
+    /**
+     * The writes to a Consumer that failed and closed its connection.
+     */
+    private final LongAdder writeFailures;
+
+    /**
+     * The REGISTER messages answered with a REDIRECT to a less loaded peer,
+     * as this Producer was at capacity.
+     */
+    private final LongAdder redirects;
+
+    /**
+     * The TIME messages written over the Consumer connections, and the
+     * writes and bytes they took. A batch of TIME messages takes a single
+     * write, and a compact TIME message fewer bytes.
+     */
+    private final LongAdder timeMessages;
+
+    private final LongAdder timeWrites;
+
+    private final LongAdder timeBytes;
+
+    /**
+     * The REGISTER messages answered with a RETRY_AFTER as this Producer was
+     * overloaded, the TIME messages held back from the low priority
+     * Consumers, and the stale ticks skipped, see OverloadPolicy.
+     */
+    private final LongAdder rejectedRegisters;
+
+    private final LongAdder throttledTimeMessages;
+
+    private final LongAdder skippedTicks;
+
+    /**
+     * Whether the TIME broadcast keeps within its budget, as last decided by
+     * the OverloadMonitor.
+     */
+    private volatile LoadState loadState;
+
+    /**
+     * Incremented on REGISTER and decremented when a registered Consumer is
+     * removed, for whatever reason.
+     */
+    private final LongAdder listeningClients;
+
+    /**
+     * The logical Consumers registered through the gateway connections, each
+     * gateway connection is also counted once in listeningClients.
+     */
+    private final LongAdder logicalConsumers;
+
+    /**
+     * The listening Consumers that have joined the multicast group, and
+     * receive the TIME message from it instead of over their connection.
+     */
+    private final LongAdder multicastMembers;
+
+    private ProducerMetrics(){
+        fanOutMicros = new Histogram();
+        tickLagMicros = new Histogram();
+        admissionWaitMicros = new Histogram();
+        accepts = new LongAdder();
+        admissionWaits = new LongAdder();
+        registers = new LongAdder();
+        keepAlives = new LongAdder();
+        expiries = new LongAdder();
+        writeFailures = new LongAdder();
+        redirects = new LongAdder();
+        timeMessages = new LongAdder();
+        timeWrites = new LongAdder();
+        timeBytes = new LongAdder();
+        rejectedRegisters = new LongAdder();
+        throttledTimeMessages = new LongAdder();
+        skippedTicks = new LongAdder();
+        loadState = LoadState.NORMAL;
+        listeningClients = new LongAdder();
+        logicalConsumers = new LongAdder();
+        multicastMembers = new LongAdder();
+
+        FlightRecorder.addPeriodicEvent(ProducerMetricsEvent.class, new Runnable(){
+            @Override
+            public void run(){
+                ProducerMetricsEvent event = new ProducerMetricsEvent();
+                event.accepts = accepts.sum();
+                event.admissionWaits = admissionWaits.sum();
+                event.registers = registers.sum();
+                event.keepAlives = keepAlives.sum();
+                event.expiries = expiries.sum();
+                event.writeFailures = writeFailures.sum();
+                event.redirects = redirects.sum();
+                event.timeMessages = timeMessages.sum();
+                event.timeWrites = timeWrites.sum();
+                event.timeBytes = timeBytes.sum();
+                event.rejectedRegisters = rejectedRegisters.sum();
+                event.throttledTimeMessages = throttledTimeMessages.sum();
+                event.skippedTicks = skippedTicks.sum();
+                event.loadState = loadState.name();
+                event.listeningClients = listeningClients.sum();
+                event.logicalConsumers = logicalConsumers.sum();
+                event.multicastMembers = multicastMembers.sum();
+                event.commit();
+            }
+        });
+    }
+
+    /**
+     * Records a broadcast that just ended. Every time is a nanoTime() of the
+     * default ClockSource.
+     *
+     * @param scheduledNanos the time the tick was due
+     * @param startNanos the time the tick started
+     * @param fanOutStartNanos the time the TIME message started being sent
+     * @param clients the number of listening Consumers it was sent to
+     * @param event the JFR event begun at fanOutStartNanos
+     */
+    void recordBroadcast(long scheduledNanos, long startNanos, long fanOutStartNanos, int clients, TimeBroadcastEvent event){
+        fanOutMicros.record((ClockSource.getDefault().nanoTime() - fanOutStartNanos) / 1000);
+        tickLagMicros.record((startNanos - scheduledNanos) / 1000);
+        if(event.shouldCommit()){
+            event.listeningClients = clients;
+            event.tickLag = startNanos - scheduledNanos;
+            event.commit();
+        }
+    }
+
+    void recordAccept(){
+        accepts.increment();
+    }
+
+    /**
+     * @param waitNanos how long an acceptor waited for the TokenBucket
+     */
+    void recordAdmissionWait(long waitNanos){
+        admissionWaits.increment();
+        admissionWaitMicros.record(waitNanos / 1000);
+    }
+
+    void recordRegister(){
+        registers.increment();
+        listeningClients.increment();
+    }
+
+    void recordKeepAlive(){
+        keepAlives.increment();
+    }
+
+    void recordExpiries(int count){
+        expiries.add(count);
+    }
+
+    void recordWriteFailure(){
+        writeFailures.increment();
+    }
+
+    void recordRedirect(){
+        redirects.increment();
+    }
+
+    /**
+     * @param messages the number of TIME messages written with a single
+     * write
+     * @param bytes the number of bytes written
+     */
+    void recordTimeWrite(int messages, int bytes){
+        timeMessages.add(messages);
+        timeWrites.increment();
+        timeBytes.add(bytes);
+    }
+
+    void recordRejectedRegister(){
+        rejectedRegisters.increment();
+    }
+
+    /**
+     * @param count the number of TIME messages held back from low priority
+     * Consumers on a tick
+     */
+    void recordThrottledTimeMessages(int count){
+        throttledTimeMessages.add(count);
+    }
+
+    /**
+     * @param count the number of stale ticks skipped at once
+     */
+    void recordSkippedTicks(long count){
+        skippedTicks.add(count);
+    }
+
+    void recordLoadState(LoadState _loadState){
+        loadState = _loadState;
+    }
+
+    /**
+     * @return whether the TIME broadcast currently keeps within its budget
+     */
+    public LoadState getLoadState(){
+        return loadState;
+    }
+
+    /**
+     * Records that a Consumer that had sent its REGISTER message was removed.
+     */
+    void recordRemoved(){
+        listeningClients.decrement();
+    }
+
+    /**
+     * @param delta the number of logical Consumers added to, or removed from
+     * if negative, the gateway connections
+     */
+    void recordLogicalConsumers(int delta){
+        logicalConsumers.add(delta);
+    }
+
+    /**
+     * @param delta the number of Consumers that joined the multicast group,
+     * or left it if negative
+     */
+    void recordMulticastMembers(int delta){
+        multicastMembers.add(delta);
+    }
+
+    /**
+     * @return the number of Consumers currently registered, which is the
+     * load this Producer reports to its cluster peers
+     */
+    long getListeningClients(){
+        return listeningClients.sum();
+    }
+
+    /**
+     * @return the number of Consumers currently in the multicast group
+     */
+    int getMulticastMembers(){
+        return (int)multicastMembers.sum();
+    }
+
+    /**
+     * @return the counters and the histograms recorded since start
+     */
+    public Snapshot snapshot(){
+        return new Snapshot(fanOutMicros.snapshot(), tickLagMicros.snapshot(), admissionWaitMicros.snapshot(),
+                DeadlineScheduler.getInstance().getJitterMicros().snapshot());
+    }
+
+    /**
+     * Clears the histograms, so that each snapshot covers the broadcasts
+     * since the previous one. The counters are not cleared.
+     *
+     * @return the counters since start, and the histograms since the previous
+     * call
+     */
+    public Snapshot snapshotAndReset(){
+        return new Snapshot(fanOutMicros.snapshotAndReset(), tickLagMicros.snapshotAndReset(), admissionWaitMicros.snapshotAndReset(),
+                DeadlineScheduler.getInstance().getJitterMicros().snapshotAndReset());
+    }
+
+    /**
+     * An immutable copy of the ProducerMetrics.
+     */
+    public final class Snapshot{
+        private final long time;
+
+        private final Histogram.Snapshot fanOutMicrosSnapshot;
+
+        private final Histogram.Snapshot tickLagMicrosSnapshot;
+
+        private final Histogram.Snapshot admissionWaitMicrosSnapshot;
+
+        private final Histogram.Snapshot schedulerJitterMicrosSnapshot;
+
+        private final long acceptsCount;
+
+        private final long admissionWaitsCount;
+
+        private final long registersCount;
+
+        private final long keepAlivesCount;
+
+        private final long expiriesCount;
+
+        private final long writeFailuresCount;
+
+        private final long redirectsCount;
+
+        private final long timeMessagesCount;
+
+        private final long timeWritesCount;
+
+        private final long timeBytesCount;
+
+        private final long rejectedRegistersCount;
+
+        private final long throttledTimeMessagesCount;
+
+        private final long skippedTicksCount;
+
+        private final LoadState loadStateValue;
+
+        private final long listeningClientsCount;
+
+        private final long logicalConsumersCount;
+
+        private final long multicastMembersCount;
+
+        private Snapshot(Histogram.Snapshot _fanOutMicrosSnapshot, Histogram.Snapshot _tickLagMicrosSnapshot,
+                Histogram.Snapshot _admissionWaitMicrosSnapshot, Histogram.Snapshot _schedulerJitterMicrosSnapshot){
+            time = ClockSource.getDefault().currentTimeMillis();
+            fanOutMicrosSnapshot = _fanOutMicrosSnapshot;
+            tickLagMicrosSnapshot = _tickLagMicrosSnapshot;
+            admissionWaitMicrosSnapshot = _admissionWaitMicrosSnapshot;
+            schedulerJitterMicrosSnapshot = _schedulerJitterMicrosSnapshot;
+            acceptsCount = accepts.sum();
+            admissionWaitsCount = admissionWaits.sum();
+            registersCount = registers.sum();
+            keepAlivesCount = keepAlives.sum();
+            expiriesCount = expiries.sum();
+            writeFailuresCount = writeFailures.sum();
+            redirectsCount = redirects.sum();
+            timeMessagesCount = timeMessages.sum();
+            timeWritesCount = timeWrites.sum();
+            timeBytesCount = timeBytes.sum();
+            rejectedRegistersCount = rejectedRegisters.sum();
+            throttledTimeMessagesCount = throttledTimeMessages.sum();
+            skippedTicksCount = skippedTicks.sum();
+            loadStateValue = loadState;
+            listeningClientsCount = listeningClients.sum();
+            logicalConsumersCount = logicalConsumers.sum();
+            multicastMembersCount = multicastMembers.sum();
+        }
+
+        public Histogram.Snapshot getFanOutMicros(){
+            return fanOutMicrosSnapshot;
+        }
+
+        public Histogram.Snapshot getTickLagMicros(){
+            return tickLagMicrosSnapshot;
+        }
+
+        /**
+         * @return how long the acceptors waited for admission each time they
+         * ran out of tokens, in microseconds
+         */
+        public Histogram.Snapshot getAdmissionWaitMicros(){
+            return admissionWaitMicrosSnapshot;
+        }
+
+        /**
+         * @return how late the Threads sleeping in the DeadlineScheduler, the
+         * tick Thread and the in-process Consumers, woke up after their
+         * deadline, in microseconds
+         */
+        public Histogram.Snapshot getSchedulerJitterMicros(){
+            return schedulerJitterMicrosSnapshot;
+        }
+
+        public long getAccepts(){
+            return acceptsCount;
+        }
+
+        public long getAdmissionWaits(){
+            return admissionWaitsCount;
+        }
+
+        public long getRegisters(){
+            return registersCount;
+        }
+
+        public long getKeepAlives(){
+            return keepAlivesCount;
+        }
+
+        public long getExpiries(){
+            return expiriesCount;
+        }
+
+        public long getWriteFailures(){
+            return writeFailuresCount;
+        }
+
+        public long getRedirects(){
+            return redirectsCount;
+        }
+
+        public long getTimeMessages(){
+            return timeMessagesCount;
+        }
+
+        public long getTimeWrites(){
+            return timeWritesCount;
+        }
+
+        public long getTimeBytes(){
+            return timeBytesCount;
+        }
+
+        public long getRejectedRegisters(){
+            return rejectedRegistersCount;
+        }
+
+        public long getThrottledTimeMessages(){
+            return throttledTimeMessagesCount;
+        }
+
+        public long getSkippedTicks(){
+            return skippedTicksCount;
+        }
+
+        public LoadState getLoadState(){
+            return loadStateValue;
+        }
+
+        public long getListeningClients(){
+            return listeningClientsCount;
+        }
+
+        public long getLogicalConsumers(){
+            return logicalConsumersCount;
+        }
+
+        public long getMulticastMembers(){
+            return multicastMembersCount;
+        }
+
+        /**
+         * @param format the format to print this Snapshot in
+         * @return this Snapshot on a single line, without the
+         * [ProducerMetrics] header of toString(), which the Log adds
+         */
+        public String format(MetricsFormat format){
+            return format == MetricsFormat.JSON ? toJson() : toText();
+        }
+
+        public String toJson(){
+            return "{\"time\":" + time
+                    + ",\"accepts\":" + acceptsCount + ",\"admissionWaits\":" + admissionWaitsCount
+                    + ",\"registers\":" + registersCount + ",\"keepAlives\":" + keepAlivesCount
+                    + ",\"expiries\":" + expiriesCount + ",\"writeFailures\":" + writeFailuresCount
+                    + ",\"redirects\":" + redirectsCount
+                    + ",\"timeMessages\":" + timeMessagesCount + ",\"timeWrites\":" + timeWritesCount
+                    + ",\"timeBytes\":" + timeBytesCount
+                    + ",\"loadState\":\"" + loadStateValue + "\",\"rejectedRegisters\":" + rejectedRegistersCount
+                    + ",\"throttledTimeMessages\":" + throttledTimeMessagesCount + ",\"skippedTicks\":" + skippedTicksCount
+                    + ",\"listeningClients\":" + listeningClientsCount + ",\"logicalConsumers\":" + logicalConsumersCount
+                    + ",\"multicastMembers\":" + multicastMembersCount
+                    + ",\"fanOutMicros\":" + ProducerMetrics.toJson(fanOutMicrosSnapshot)
+                    + ",\"tickLagMicros\":" + ProducerMetrics.toJson(tickLagMicrosSnapshot)
+                    + ",\"admissionWaitMicros\":" + ProducerMetrics.toJson(admissionWaitMicrosSnapshot)
+                    + ",\"schedulerJitterMicros\":" + ProducerMetrics.toJson(schedulerJitterMicrosSnapshot) + "}";
+        }
+
+        @Override
+        public String toString(){
+            return "[ProducerMetrics] " + toText();
+        }
+
+        private String toText(){
+            return "accepts=" + acceptsCount + " admissionWaits=" + admissionWaitsCount
+                    + " registers=" + registersCount + " keepAlives=" + keepAlivesCount
+                    + " expiries=" + expiriesCount + " writeFailures=" + writeFailuresCount
+                    + " redirects=" + redirectsCount
+                    + " timeMessages=" + timeMessagesCount + " timeWrites=" + timeWritesCount
+                    + " timeBytes=" + timeBytesCount
+                    + " loadState=" + loadStateValue + " rejectedRegisters=" + rejectedRegistersCount
+                    + " throttledTimeMessages=" + throttledTimeMessagesCount + " skippedTicks=" + skippedTicksCount
+                    + " listeningClients=" + listeningClientsCount + " logicalConsumers=" + logicalConsumersCount
+                    + " multicastMembers=" + multicastMembersCount
+                    + " fanOut(us) " + fanOutMicrosSnapshot + " tickLag(us) " + tickLagMicrosSnapshot
+                    + " admissionWait(us) " + admissionWaitMicrosSnapshot
+                    + " schedulerJitter(us) " + schedulerJitterMicrosSnapshot;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR event carrying the ProducerMetrics counters, emitted periodically
+ * while a recording enables it.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@Name("com.gmail.josephui.simplentpservice.ProducerMetrics")
+@Label("Producer Metrics")
+@Category("SimpleNtpService")
+@Description("The Producer counters and the number of listening Consumers")
+@Period("1 s")
+@StackTrace(false)
+final class ProducerMetricsEvent extends Event{
+    @Label("Accepts")
+    long accepts;
+
+    @Label("Admission Waits")
+    long admissionWaits;
+
+    @Label("Registers")
+    long registers;
+
+    @Label("Keep Alives")
+    long keepAlives;
+
+    @Label("Expiries")
+    long expiries;
+
+    @Label("Write Failures")
+    long writeFailures;
+
+    @Label("Redirects")
+    long redirects;
+
+    @Label("Time Messages")
+    long timeMessages;
+
+    @Label("Time Writes")
+    long timeWrites;
+
+    @Label("Time Bytes")
+    long timeBytes;
+
+    @Label("Load State")
+    String loadState;
+
+    @Label("Rejected Registers")
+    long rejectedRegisters;
+
+    @Label("Throttled Time Messages")
+    long throttledTimeMessages;
+
+    @Label("Skipped Ticks")
+    long skippedTicks;
+
+    @Label("Listening Clients")
+    long listeningClients;
+
+    @Label("Logical Consumers")
+    long logicalConsumers;
+
+    @Label("Multicast Members")
+    long multicastMembers;
+}
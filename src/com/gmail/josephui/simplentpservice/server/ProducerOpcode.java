@@ -9,7 +9,36 @@ package com.gmail.josephui.simplentpservice.server;
  */
 public enum ProducerOpcode{
     //This Opcode represent the operations to send the TIME message
-    TIME;
+    TIME,
+    
+    //This Opcode represent the operation to answer a TIME_REQUEST message
+    TIME_RESPONSE,
+    
+    //This Opcode represent the operation to tell a Consumer which multicast 
+    //group the TIME messages are published to, in answer to its REGISTER
+    MULTICAST_GROUP,
+    
+    //This Opcode represent the operation to publish the TIME message to the 
+    //multicast group, along with its sequence number
+    MULTICAST_TIME,
+    
+    //This Opcode represent the operation to send a Consumer to a less loaded 
+    //Producer of the cluster, in answer to its REGISTER
+    REDIRECT,
+    
+    //This Opcode represent the operation to tell the other Producers of the 
+    //cluster how many Consumers this one serves, it is exchanged between the 
+    //Producers only
+    LOAD_REPORT,
+    
+    //This Opcode represent the operation to send the TIME message in the 
+    //compact format, as the difference with the previous TIME message
+    TIME_DELTA,
+    
+    //This Opcode represent the operation to tell a Consumer that the 
+    //Producer is overloaded and how long to wait before connecting again, in 
+    //answer to its REGISTER
+    RETRY_AFTER;
     
     //Using byte representation, this allows for up to 256 opcodes
     public byte opcode(){
@@ -20,7 +49,18 @@ public enum ProducerOpcode{
 START STATIC
 ------------------------------------------------------------------------------*/
     
+    /**
+     * The operations by Opcode. values() clones the array on every call, so 
+     * it is only called once.
+     */
+    private static final ProducerOpcode[] byOpcode = values();
+    
+    /**
+     * @param opcode the first byte of a message
+     * @return the matching operation, or null if it is not a defined 
+     * operation, which includes the bytes above 127 that are negative
+     */
     public static ProducerOpcode getByOpcode(byte opcode){
-        return (opcode < values().length) ? values()[opcode] : null;
+        return (opcode >= 0 && opcode < byOpcode.length) ? byOpcode[opcode] : null;
     }
 }
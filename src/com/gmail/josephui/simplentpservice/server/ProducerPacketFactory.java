@@ -1,6 +1,8 @@
 package com.gmail.josephui.simplentpservice.server;
 
 import static com.gmail.josephui.simplentpservice.server.ProducerOpcode.*;
+import com.gmail.josephui.simplentpservice.protocol.VarInt;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 
 /**
@@ -11,6 +13,37 @@ import java.nio.ByteBuffer;
  * @version 2015.1.17
  */
 public final class ProducerPacketFactory{
+    /**
+     * The size of the Time message packet, in bytes.
+     */
+    public static final int TIME_MESSAGE_PACKET_SIZE = 10;
+    
+    /**
+     * The offset of the time within the Time message packet.
+     */
+    private static final int TIME_OFFSET = 2;
+    
+    /**
+     * The size of the TimeResponse message packet, in bytes.
+     */
+    public static final int TIME_RESPONSE_PACKET_SIZE = 26;
+    
+    /**
+     * The size of the MulticastTime message packet, in bytes.
+     */
+    public static final int MULTICAST_TIME_PACKET_SIZE = 18;
+    
+    /**
+     * The size of the largest MulticastGroup message packet, the one 
+     * carrying an IPv6 address, in bytes.
+     */
+    public static final int MAX_MULTICAST_GROUP_PACKET_SIZE = 20;
+    
+    /**
+     * The size of the LoadReport message packet, in bytes.
+     */
+    public static final int LOAD_REPORT_PACKET_SIZE = 18;
+    
     protected static byte[] getTimeMessagePacket(long time){
         /**
          * Construct a ByteBuffer that will pack the information packet to be 
@@ -20,13 +53,256 @@ public final class ProducerPacketFactory{
          * byte 1: The size of the remaining number of bytes, 9
          * byte 2-9: The time specified encoded into a series of bytes
          */
-        ByteBuffer buffer = ByteBuffer.allocate(10);
+        ByteBuffer buffer = ByteBuffer.allocate(TIME_MESSAGE_PACKET_SIZE);
+        buffer.put(TIME.opcode());
+        buffer.put((byte)8);
+        buffer.putLong(time);
+        return buffer.array();
+    }
+    
+    /**
+     * Construct a reusable Time message packet backed by a direct 
+     * ByteBuffer, so that it can be written to a channel without being 
+     * copied first. The header is filled in once, the time is patched in 
+     * place on every send by putTime(ByteBuffer, long).
+     * 
+     * @return a new Time message packet with no time set
+     */
+    protected static ByteBuffer newTimeMessageBuffer(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TIME_MESSAGE_PACKET_SIZE);
+        buffer.put(TIME.opcode());
+        buffer.put((byte)8);
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Sets the time of a packet obtained from newTimeMessageBuffer(), and 
+     * rewinds it so that the whole packet is ready to be written. This does 
+     * not allocate.
+     * 
+     * @param packet the packet to patch
+     * @param time the time to send
+     * @return packet
+     */
+    protected static ByteBuffer putTime(ByteBuffer packet, long time){
+        packet.putLong(TIME_OFFSET, time);
+        packet.clear();
+        return packet;
+    }
+    
+    /**
+     * Construct a reusable Time message packet for OutputStreams, the time 
+     * is patched in place on every send by putTime(byte[], long).
+     * 
+     * @return a new Time message packet with no time set
+     */
+    protected static byte[] newTimeMessagePacket(){
+        byte[] packet = new byte[TIME_MESSAGE_PACKET_SIZE];
+        packet[0] = TIME.opcode();
+        packet[1] = (byte)8;
+        return packet;
+    }
+    
+    /**
+     * Sets the time of a packet obtained from newTimeMessagePacket(), using 
+     * the same big-endian encoding as ByteBuffer.putLong(long). This does not 
+     * allocate.
+     * 
+     * @param packet the packet to patch
+     * @param time the time to send
+     * @return packet
+     */
+    protected static byte[] putTime(byte[] packet, long time){
+        for(int i = TIME_MESSAGE_PACKET_SIZE - 1; i >= TIME_OFFSET; i--){
+            packet[i] = (byte)time;
+            time >>>= 8;
+        }
+        return packet;
+    }
+    
+    /**
+     * Appends a Time message packet to buffer, encoded as by 
+     * getTimeMessagePacket(long). This does not allocate.
+     * 
+     * @param buffer the buffer to append to, with at least 
+     * TIME_MESSAGE_PACKET_SIZE bytes remaining
+     * @param time the time to send
+     * @return buffer
+     */
+    protected static ByteBuffer putTimeMessage(ByteBuffer buffer, long time){
         buffer.put(TIME.opcode());
         buffer.put((byte)8);
         buffer.putLong(time);
+        return buffer;
+    }
+    
+    /**
+     * Appends a TimeDelta message packet to buffer. The size is 3 to 12, and 
+     * the information will be encoded as follows:
+     * byte 0: The Opcode of the TimeDelta message
+     * byte 1: The size of the remaining number of bytes, 1 to 10
+     * byte 2-: The time minus the time of the previous Time or TimeDelta 
+     * message, as a zigzag varint
+     * This does not allocate.
+     * 
+     * @param buffer the buffer to append to
+     * @param delta the difference with the previous time
+     * @return buffer
+     */
+    protected static ByteBuffer putTimeDeltaMessage(ByteBuffer buffer, long delta){
+        buffer.put(TIME_DELTA.opcode());
+        buffer.put((byte)VarInt.zigZagSize(delta));
+        VarInt.putZigZag(buffer, delta);
+        return buffer;
+    }
+    
+    /**
+     * Appends a TimeResponse message packet to buffer. The size is 26, and 
+     * the information will be encoded as follows:
+     * byte 0: The Opcode of the TimeResponse message
+     * byte 1: The size of the remaining number of bytes, 24
+     * byte 2-9: The send time of the TimeRequest, as given by the Consumer
+     * byte 10-17: The time the Producer received the TimeRequest
+     * byte 18-25: The time the Producer sent this TimeResponse
+     * Every time is in nanoseconds since the epoch. This does not allocate.
+     * 
+     * @param buffer the buffer to append to, with at least 
+     * TIME_RESPONSE_PACKET_SIZE bytes remaining
+     * @param requestSendTimeNanos the send time of the TimeRequest
+     * @param receiveTimeNanos the time the TimeRequest was received
+     * @param transmitTimeNanos the time this TimeResponse is sent
+     * @return buffer
+     */
+    protected static ByteBuffer putTimeResponse(ByteBuffer buffer, long requestSendTimeNanos, long receiveTimeNanos, long transmitTimeNanos){
+        buffer.put(TIME_RESPONSE.opcode());
+        buffer.put((byte)24);
+        buffer.putLong(requestSendTimeNanos);
+        buffer.putLong(receiveTimeNanos);
+        buffer.putLong(transmitTimeNanos);
+        return buffer;
+    }
+    
+    /**
+     * Construct a MulticastGroup message packet to be send to Consumer. The 
+     * size is 8 for an IPv4 group and 20 for an IPv6 group, and the 
+     * information will be encoded as follows:
+     * byte 0: The Opcode of the MulticastGroup message
+     * byte 1: The size of the remaining number of bytes, 6 or 18
+     * byte 2-3: The UDP port of the group
+     * byte 4-: The address of the group, 4 or 16 bytes
+     * 
+     * @param group the multicast group the TIME messages are published to
+     * @return the packet
+     */
+    protected static byte[] newMulticastGroupPacket(InetSocketAddress group){
+        return newAddressPacket(MULTICAST_GROUP, group);
+    }
+    
+    /**
+     * Construct a Redirect message packet to be send to Consumer, encoded as 
+     * the MulticastGroup message:
+     * byte 0: The Opcode of the Redirect message
+     * byte 1: The size of the remaining number of bytes, 6 or 18
+     * byte 2-3: The TCP port of the Producer to connect to instead
+     * byte 4-: The address of that Producer, 4 or 16 bytes
+     * 
+     * @param producer the Producer the Consumer should REGISTER with
+     * @return the packet
+     */
+    protected static byte[] newRedirectPacket(InetSocketAddress producer){
+        return newAddressPacket(REDIRECT, producer);
+    }
+    
+    /**
+     * Construct a RetryAfter message packet to be send to Consumer. The size 
+     * is 6, and the information will be encoded as follows:
+     * byte 0: The Opcode of the RetryAfter message
+     * byte 1: The size of the remaining number of bytes, 4
+     * byte 2-5: How long to wait before connecting again, in milliseconds
+     * 
+     * @param retryAfter the delay in milliseconds
+     * @return the packet
+     */
+    protected static byte[] newRetryAfterPacket(int retryAfter){
+        return ByteBuffer.allocate(6).put(RETRY_AFTER.opcode()).put((byte)4).putInt(retryAfter).array();
+    }
+    
+    private static byte[] newAddressPacket(ProducerOpcode opcode, InetSocketAddress socketAddress){
+        byte[] address = socketAddress.getAddress().getAddress();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + address.length);
+        buffer.put(opcode.opcode());
+        buffer.put((byte)(2 + address.length));
+        buffer.putShort((short)socketAddress.getPort());
+        buffer.put(address);
         return buffer.array();
     }
     
+    /**
+     * Writes a LoadReport message packet to be send to the other Producers 
+     * of the cluster into buffer, and flips it so that the whole packet is 
+     * ready to be sent. The size is 18, and the information will be 
+     * encoded as follows:
+     * byte 0: The Opcode of the LoadReport message
+     * byte 1: The size of the remaining number of bytes, 16
+     * byte 2-9: The number of Consumers registered with the Producer
+     * byte 10-17: The most Consumers the Producer takes before it redirects 
+     * them, 0 if it takes any number
+     * 
+     * @param buffer the buffer to write to, reused for every report
+     * @param load the number of Consumers registered
+     * @param capacity the most Consumers taken
+     * @return buffer
+     */
+    protected static ByteBuffer putLoadReport(ByteBuffer buffer, long load, long capacity){
+        buffer.clear();
+        buffer.put(LOAD_REPORT.opcode());
+        buffer.put((byte)16);
+        buffer.putLong(load);
+        buffer.putLong(capacity);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Construct a reusable MulticastTime message packet backed by a direct 
+     * ByteBuffer. The size is 18, and the information will be encoded as 
+     * follows:
+     * byte 0: The Opcode of the MulticastTime message
+     * byte 1: The size of the remaining number of bytes, 16
+     * byte 2-9: The sequence number of the tick, which increases by one on 
+     * every tick so that a Consumer can tell how many it has missed
+     * byte 10-17: The time in milliseconds since the epoch
+     * The sequence number and the time are patched in place on every tick by 
+     * putMulticastTime(ByteBuffer, long, long).
+     * 
+     * @return a new MulticastTime message packet with no time set
+     */
+    protected static ByteBuffer newMulticastTimeBuffer(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MULTICAST_TIME_PACKET_SIZE);
+        buffer.put(MULTICAST_TIME.opcode());
+        buffer.put((byte)16);
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Sets the sequence number and the time of a packet obtained from 
+     * newMulticastTimeBuffer(), and rewinds it so that the whole packet is 
+     * ready to be sent. This does not allocate.
+     * 
+     * @param packet the packet to patch
+     * @param sequence the sequence number of the tick
+     * @param time the time to send
+     * @return packet
+     */
+    protected static ByteBuffer putMulticastTime(ByteBuffer packet, long sequence, long time){
+        packet.putLong(TIME_OFFSET, sequence);
+        packet.putLong(TIME_OFFSET + 8, time);
+        packet.clear();
+        return packet;
+    }
+    
 /*------------------------------------------------------------------------------
 START NON-STATIC
 ------------------------------------------------------------------------------*/
@@ -0,0 +1,212 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * Keeps the listening clients in groups by the interval they asked to
+ * receive the TIME message at, so that each tick of the Producer only visits
+ * the clients due at that tick. The interval of a group is a whole number of
+ * ticks, its period, and each client is also given a phase within its
+ * period, its id modulo the period. A group holds the clients of one period
+ * and phase, and is due on the ticks whose remainder by the period is the
+ * phase, so that the clients of a period are spread over all of its ticks
+ * rather than all sent their TIME message on the same one.
+ *
+ * Each group is a ClientRegistry, so registering and removing clients never
+ * wait on a Thread iterating over them. The groups themselves are created on
+ * the first client of each period and phase and kept in a copy on write
+ * array, there are at most as many as the ticks of all the periods allowed
+ * between the minimum and maximum intervals.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class RateSchedule<T>{
+    /**
+     * Clamps the interval a client asked for to the interval allowed by the
+     * Producer, and rounds it to a whole number of ticks.
+     *
+     * @param requestedInterval the interval asked for, in milliseconds
+     * @param config sets the minimum interval, which is also the interval
+     * between two ticks, and the maximum interval
+     * @return the number of ticks between two TIME messages to the client
+     */
+    static int periodOf(int requestedInterval, ProducerConfig config){
+        long interval = Math.max(config.getMinTimeInterval(), Math.min(config.getMaxTimeInterval(), requestedInterval));
+        return (int)Math.max(1, (interval + config.getMinTimeInterval() / 2) / config.getMinTimeInterval());
+    }
+
+    /**
+     * @param clientId the id of a client
+     * @param period the number of ticks between two TIME messages to the
+     * client
+     * @return the tick within each period the client is due on
+     */
+    static int phaseOf(long clientId, int period){
+        return (int)Math.floorMod(clientId, (long)period);
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The groups by increasing period then phase, replaced as a whole when a
+     * group is added.
+     */
+    private volatile Group<T>[] groups;
+
+    @SuppressWarnings("unchecked")
+    RateSchedule(){
+        groups = (Group<T>[])new Group<?>[0];
+    }
+
+    /**
+     * Adds the client to the group of the given period and of its phase,
+     * nothing happens if a client is already registered under that id in
+     * that group.
+     *
+     * @param clientId the id obtained from ClientRegistry.newClientId()
+     * @param period the number of ticks between two TIME messages
+     * @param client the client to add
+     * @return true if the client was added
+     */
+    boolean add(long clientId, int period, T client){
+        return groupOf(period, phaseOf(clientId, period)).clients.add(clientId, client);
+    }
+
+    /**
+     * @param clientId the id of the client to remove
+     * @param period the period the client was added with
+     * @return the removed client, or null if none was registered under
+     * clientId in that group
+     */
+    T remove(long clientId, int period){
+        //A client that never registered is removed with a period of 0, which
+        //no group has
+        for(Group<T> group : groups){
+            if(group.period == period && group.phase == phaseOf(clientId, period)){
+                return group.clients.remove(clientId);
+            }
+        }
+        return null;
+    }
+
+    private Group<T> groupOf(int period, int phase){
+        for(Group<T> group : groups){
+            if(group.period == period && group.phase == phase){
+                return group;
+            }
+        }
+        synchronized(this){
+            Group<T>[] current = groups;
+            int index = 0;
+            while(index < current.length && (current[index].period < period
+                    || (current[index].period == period && current[index].phase < phase))){
+                index++;
+            }
+            if(index < current.length && current[index].period == period && current[index].phase == phase){
+                //Added by another Thread meanwhile
+                return current[index];
+            }
+            @SuppressWarnings("unchecked")
+            Group<T>[] updated = (Group<T>[])new Group<?>[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            updated[index] = new Group<T>(period, phase);
+            System.arraycopy(current, index, updated, index + 1, current.length - index);
+            groups = updated;
+            return updated[index];
+        }
+    }
+
+    /**
+     * @return the groups, which may be iterated without locking
+     */
+    Group<T>[] groups(){
+        return groups;
+    }
+
+    /**
+     * @param previousTick the last tick the schedule was visited on, -1 if
+     * it never was
+     * @param tick the tick the schedule is visited on
+     * @return true if any client is due on a tick after previousTick up to
+     * tick
+     */
+    boolean isAnyDue(long previousTick, long tick){
+        for(Group<T> group : groups){
+            if(group.isDue(previousTick, tick) && group.clients.size() > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size(){
+        int size = 0;
+        for(Group<T> group : groups){
+            size += group.clients.size();
+        }
+        return size;
+    }
+
+    /**
+     * The clients of a single period and phase.
+     */
+    static final class Group<T>{
+        private final int period;
+
+        /**
+         * The remainder by the period of the ticks the group is due on.
+         */
+        private final int phase;
+
+        private final ClientRegistry<T> clients;
+
+        private Group(int _period, int _phase){
+            period = _period;
+            phase = _phase;
+            clients = new ClientRegistry<T>();
+        }
+
+        /**
+         * A tick that was skipped, because the Thread visiting the schedule
+         * fell behind, is caught up on the next one rather than missed, as
+         * the clients of a long period would otherwise wait for another full
+         * period.
+         *
+         * @param previousTick the last tick the group was visited on, -1 if
+         * it never was
+         * @param tick the tick the group is visited on
+         * @return true if a tick of the group's phase lies after
+         * previousTick up to tick
+         */
+        boolean isDue(long previousTick, long tick){
+            return Math.floorDiv(tick - phase, period) != Math.floorDiv(previousTick - phase, period);
+        }
+
+        /**
+         * As isDue(long, long), for the clients of this group slowed down to
+         * one in factor of their TIME messages.
+         *
+         * @param previousTick the last tick the group was visited on, -1 if
+         * it never was
+         * @param tick the tick the group is visited on
+         * @param factor how many times longer than the period the interval
+         * of the slowed down clients is
+         * @return true if a tick of the group's phase, and a multiple of
+         * factor periods from the first one, lies after previousTick up to
+         * tick
+         */
+        boolean isDue(long previousTick, long tick, int factor){
+            long slowPeriod = (long)period * factor;
+            return Math.floorDiv(tick - phase, slowPeriod) != Math.floorDiv(previousTick - phase, slowPeriod);
+        }
+
+        /**
+         * @return a live view of the clients of this group that can be
+         * iterated without locking
+         */
+        Iterable<T> clients(){
+            return clients.clients();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.protocol.FrameDecoder;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * What a client asked for in its REGISTER message, read the same way by the
+ * thread per client engine and by the EventLoop. Everything following the
+ * opcode is optional, a client sends one of the trailers built by
+ * ConsumerPacketFactory:
+ * no byte for the defaults,
+ * bytes 0-3: the interval in milliseconds, 0 for the default interval,
+ * byte 4: the format of the TIME messages, see TimeEncoder.read(),
+ * byte 5: the number of TIME messages written at once,
+ * byte 6: the priority, see OverloadMonitor.readLowPriority().
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class RegisterRequest{
+    /**
+     * The lengths a REGISTER trailer may have, in bytes.
+     */
+    static final int DEFAULT_TRAILER_LENGTH = 0;
+
+    static final int INTERVAL_TRAILER_LENGTH = 4;
+
+    static final int FORMAT_TRAILER_LENGTH = 6;
+
+    static final int PRIORITY_TRAILER_LENGTH = 7;
+
+    /**
+     * Reads the trailer of a REGISTER message.
+     *
+     * @param payload the REGISTER message following its length byte
+     * @param config the settings of the Producer, which clamp the interval
+     * @param highWaterMark the size of the outbound queue of the client, a
+     * batch is never larger than that
+     * @return the period, the TIME format and the priority asked for
+     * @throws ProtocolException if the trailer has none of the lengths above,
+     * or an unknown format or priority
+     */
+    static RegisterRequest read(ByteBuffer payload, ProducerConfig config, int highWaterMark) throws ProtocolException{
+        int length = payload.remaining();
+        if(length != DEFAULT_TRAILER_LENGTH && length != INTERVAL_TRAILER_LENGTH
+                && length != FORMAT_TRAILER_LENGTH && length != PRIORITY_TRAILER_LENGTH){
+            //Reports the unexpected length
+            FrameDecoder.expectLength(payload, PRIORITY_TRAILER_LENGTH);
+        }
+        int requestedInterval = 0;
+        TimeEncoder timeEncoder = TimeEncoder.DEFAULT;
+        boolean lowPriority = false;
+        if(length >= INTERVAL_TRAILER_LENGTH){
+            requestedInterval = payload.getInt();
+        }
+        if(length >= FORMAT_TRAILER_LENGTH){
+            timeEncoder = TimeEncoder.read(payload, highWaterMark);
+        }
+        if(length >= PRIORITY_TRAILER_LENGTH){
+            lowPriority = OverloadMonitor.readLowPriority(payload);
+        }
+        if(requestedInterval <= 0){
+            requestedInterval = (int)Producer.DELAY_BETWEEN_TIME_MESSAGES;
+        }
+        return new RegisterRequest(RateSchedule.periodOf(requestedInterval, config), timeEncoder, lowPriority);
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The number of ticks between two TIME messages to the client.
+     */
+    final int period;
+
+    final TimeEncoder timeEncoder;
+
+    final boolean lowPriority;
+
+    private RegisterRequest(int _period, TimeEncoder _timeEncoder, boolean _lowPriority){
+        period = _period;
+        timeEncoder = _timeEncoder;
+        lowPriority = _lowPriority;
+    }
+}
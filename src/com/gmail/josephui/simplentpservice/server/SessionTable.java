@@ -0,0 +1,357 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Keeps the state of the sessions of an EventLoop in primitive arrays
+ * indexed by a slot number, rather than in fields and nodes of an object per
+ * session, so that a million sessions cost a handful of arrays instead of
+ * millions of small objects for the garbage collector to trace. The slot of a
+ * closed session is recycled through a free list, the arrays only grow when
+ * every slot is in use.
+ *
+ * The keep-alive deadlines are kept in a timing wheel like TimingWheel, whose
+ * buckets are linked lists of slots through the next and previous arrays, so
+ * scheduling, rescheduling and cancelling are O(1) and an expiry pass only
+ * touches the buckets up to the time it expires.
+ *
+ * This class is not thread safe, it is only accessed from the Thread of the
+ * EventLoop owning it.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class SessionTable<T>{
+    /**
+     * Set once the session has sent its REGISTER message.
+     */
+    static final int REGISTERED = 1;
+
+    /**
+     * Set once the Consumer has joined the multicast group.
+     */
+    static final int MULTICAST_MEMBER = 1 << 1;
+
+    /**
+     * Set once the Consumer has been sent to another Producer, or told to
+     * retry later.
+     */
+    static final int REDIRECTED = 1 << 2;
+
+    /**
+     * Set if the Consumer registered as low priority.
+     */
+    static final int LOW_PRIORITY = 1 << 3;
+
+    /**
+     * Set while the slot is in a bucket of the keep-alive wheel.
+     */
+    private static final int SCHEDULED = 1 << 7;
+
+    /**
+     * The number of slots allocated up front.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Marks the end of a list of slots.
+     */
+    private static final int NONE = -1;
+
+    /**
+     * The estimated size of a reference in an array, in bytes, as with
+     * compressed references.
+     */
+    private static final int REFERENCE_SIZE = 4;
+
+    /**
+     * The size of the state kept per slot, in bytes.
+     */
+    static final int BYTES_PER_SLOT = REFERENCE_SIZE + 8 + 4 + 1 + 4 + 4 + 4;
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The length of time covered by a bucket of the wheel, in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The first slot of each bucket of the wheel, NONE if it is empty.
+     */
+    private final int[] buckets;
+
+    /**
+     * The session of each slot, null if the slot is free.
+     */
+    private T[] sessions;
+
+    /**
+     * The time the keep-alive deadline of each slot was scheduled at, in
+     * milliseconds since the epoch, which is the time of its last KeepAlive
+     * message.
+     */
+    private long[] keepAliveTimes;
+
+    /**
+     * The number of ticks between two TIME messages of each slot.
+     */
+    private int[] timePeriods;
+
+    /**
+     * The REGISTERED, MULTICAST_MEMBER, REDIRECTED, LOW_PRIORITY and
+     * SCHEDULED flags of each slot.
+     */
+    private byte[] flags;
+
+    /**
+     * The bucket of each scheduled slot, which is not always the one of its
+     * time as a slot scheduled behind the cursor goes in the cursor's bucket.
+     */
+    private int[] slotBuckets;
+
+    /**
+     * The next slot of the bucket, or of the free list for a free slot.
+     */
+    private int[] next;
+
+    /**
+     * The previous slot of the bucket, NONE for the first one.
+     */
+    private int[] previous;
+
+    /**
+     * The first free slot, NONE if every slot is in use.
+     */
+    private int firstFree;
+
+    /**
+     * The number of slots in use.
+     */
+    private int size;
+
+    /**
+     * The number of slots in the keep-alive wheel.
+     */
+    private int scheduled;
+
+    /**
+     * The tick of the oldest bucket that may still hold slots, or
+     * Long.MIN_VALUE before the first slot is scheduled, see TimingWheel.
+     */
+    private long cursorTick;
+
+    private boolean cursorStarted;
+
+    SessionTable(){
+        this(TimingWheel.DEFAULT_TICK_DURATION, TimingWheel.DEFAULT_WHEEL_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    SessionTable(long _tickDuration, int wheelSize){
+        if(_tickDuration <= 0 || wheelSize <= 0){
+            throw new IllegalArgumentException("tickDuration and wheelSize must be positive");
+        }
+        tickDuration = _tickDuration;
+        buckets = new int[wheelSize];
+        Arrays.fill(buckets, NONE);
+        sessions = (T[])new Object[0];
+        keepAliveTimes = new long[0];
+        timePeriods = new int[0];
+        flags = new byte[0];
+        slotBuckets = new int[0];
+        next = new int[0];
+        previous = new int[0];
+        firstFree = NONE;
+        cursorTick = Long.MIN_VALUE;
+        grow(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Takes a free slot for the session, growing the table if there is none.
+     *
+     * @param session the session the slot is for
+     * @return the slot, with no flag set
+     */
+    int allocate(T session){
+        if(firstFree == NONE){
+            grow(sessions.length * 2);
+        }
+        int slot = firstFree;
+        firstFree = next[slot];
+        sessions[slot] = session;
+        flags[slot] = 0;
+        timePeriods[slot] = 0;
+        keepAliveTimes[slot] = 0;
+        next[slot] = NONE;
+        previous[slot] = NONE;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Gives the slot back to the free list, cancelling its keep-alive
+     * deadline.
+     *
+     * @param slot a slot obtained from allocate(Object) and not released yet
+     */
+    void release(int slot){
+        cancelKeepAlive(slot);
+        sessions[slot] = null;
+        flags[slot] = 0;
+        next[slot] = firstFree;
+        firstFree = slot;
+        size--;
+    }
+
+    private void grow(int capacity){
+        int oldCapacity = sessions.length;
+        sessions = Arrays.copyOf(sessions, capacity);
+        keepAliveTimes = Arrays.copyOf(keepAliveTimes, capacity);
+        timePeriods = Arrays.copyOf(timePeriods, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        slotBuckets = Arrays.copyOf(slotBuckets, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        //The new slots are put on the free list in order
+        for(int slot = capacity - 1; slot >= oldCapacity; slot--){
+            next[slot] = firstFree;
+            firstFree = slot;
+        }
+    }
+
+    T get(int slot){
+        return sessions[slot];
+    }
+
+    boolean hasFlag(int slot, int flag){
+        return (flags[slot] & flag) != 0;
+    }
+
+    void setFlag(int slot, int flag){
+        flags[slot] |= flag;
+    }
+
+    int getTimePeriod(int slot){
+        return timePeriods[slot];
+    }
+
+    void setTimePeriod(int slot, int timePeriod){
+        timePeriods[slot] = timePeriod;
+    }
+
+    /**
+     * Schedules the keep-alive deadline of the slot at the given time,
+     * moving it out of its previous bucket if it was already scheduled.
+     *
+     * @param slot the slot of the session
+     * @param time the time in milliseconds since the epoch
+     */
+    void scheduleKeepAlive(int slot, long time){
+        cancelKeepAlive(slot);
+        long tick = time / tickDuration;
+        if(cursorTick == Long.MIN_VALUE || (!cursorStarted && tick < cursorTick)){
+            cursorTick = tick;
+        }else if(tick < cursorTick){
+            //Already behind the cursor, keep it where the next expiry pass
+            //will see it
+            tick = cursorTick;
+        }
+        keepAliveTimes[slot] = time;
+        int bucket = (int)(tick % buckets.length);
+        int head = buckets[bucket];
+        slotBuckets[slot] = bucket;
+        previous[slot] = NONE;
+        next[slot] = head;
+        if(head != NONE){
+            previous[head] = slot;
+        }
+        buckets[bucket] = slot;
+        flags[slot] |= SCHEDULED;
+        scheduled++;
+    }
+
+    /**
+     * Removes the slot from the keep-alive wheel, this does nothing if it is
+     * not scheduled.
+     */
+    void cancelKeepAlive(int slot){
+        if((flags[slot] & SCHEDULED) == 0){
+            return;
+        }
+        if(previous[slot] != NONE){
+            next[previous[slot]] = next[slot];
+        }else{
+            buckets[slotBuckets[slot]] = next[slot];
+        }
+        if(next[slot] != NONE){
+            previous[next[slot]] = previous[slot];
+        }
+        next[slot] = NONE;
+        previous[slot] = NONE;
+        flags[slot] &= ~SCHEDULED;
+        scheduled--;
+    }
+
+    /**
+     * Removes every slot whose keep-alive deadline was scheduled before
+     * timeMinimum from the wheel and adds its session to expired. The slots
+     * themselves are released when the sessions are closed.
+     *
+     * @param timeMinimum the time in milliseconds since the epoch
+     * @param expired the collection the expired sessions are added to
+     * @return the number of expired sessions
+     */
+    int expireOlderThan(long timeMinimum, Collection<? super T> expired){
+        if(scheduled == 0 || cursorTick == Long.MIN_VALUE){
+            return 0;
+        }
+        long lastTick = timeMinimum / tickDuration;
+        int removed = 0;
+        //A full rotation is enough to visit every bucket once
+        long endTick = Math.min(lastTick, cursorTick + buckets.length - 1);
+        for(long tick = cursorTick; tick <= endTick && scheduled > 0; tick++){
+            int slot = buckets[(int)(tick % buckets.length)];
+            while(slot != NONE){
+                int nextSlot = next[slot];
+                if(keepAliveTimes[slot] < timeMinimum){
+                    cancelKeepAlive(slot);
+                    expired.add(sessions[slot]);
+                    removed++;
+                }
+                slot = nextSlot;
+            }
+        }
+        //The bucket holding timeMinimum may still receive slots that are not
+        //due yet, so the cursor stops there
+        if(lastTick > cursorTick){
+            cursorTick = lastTick;
+        }
+        cursorStarted = true;
+        return removed;
+    }
+
+    /**
+     * @return the number of slots in use
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * @return the number of slots allocated, in use or free
+     */
+    int capacity(){
+        return sessions.length;
+    }
+
+    /**
+     * @return the estimated heap size of the arrays of this table, in bytes
+     */
+    long getFootprint(){
+        return (long)capacity() * BYTES_PER_SLOT + 4L * buckets.length;
+    }
+}
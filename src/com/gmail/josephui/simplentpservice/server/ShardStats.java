@@ -0,0 +1,173 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import com.gmail.josephui.simplentpservice.metrics.Histogram;
+
+/**
+ * The broadcast statistics of one shard of the Consumers, an EventLoop of
+ * the EVENT_LOOP engine or a BroadcastShard of the BLOCKING engine. Besides
+ * the duration of each fan-out, the delivery time of every Consumer is
+ * recorded, from the start of the shard's tick until its TIME message is
+ * handed to the socket, so the spread between the first and the last
+ * Consumer of a tick shows in the percentiles.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public final class ShardStats{
+    private final String name;
+
+    /**
+     * The time the shard took to send the TIME message to all of its
+     * listening Consumers, in microseconds.
+     */
+    private final Histogram fanOutMicros;
+
+    /**
+     * The time from the start of the tick until the TIME message of each
+     * Consumer was handed to its socket, in microseconds.
+     */
+    private final Histogram deliveryMicros;
+
+    /**
+     * The listening Consumers of the shard as of its last tick.
+     */
+    private volatile int listeningClients;
+
+    /**
+     * The sessions, slots and estimated heap size in bytes of the
+     * SessionTable of an EventLoop as of its last tick, all 0 for a
+     * BroadcastShard.
+     */
+    private volatile int sessions;
+
+    private volatile int sessionSlots;
+
+    private volatile long sessionTableBytes;
+
+    ShardStats(String _name){
+        name = _name;
+        fanOutMicros = new Histogram();
+        deliveryMicros = new Histogram();
+    }
+
+    void recordFanOut(long startNanos, int clients){
+        fanOutMicros.record((ClockSource.getDefault().nanoTime() - startNanos) / 1000);
+        listeningClients = clients;
+    }
+
+    void recordDelivery(long startNanos, long deliveredNanos){
+        deliveryMicros.record((deliveredNanos - startNanos) / 1000);
+    }
+
+    void recordSessionTable(int _sessions, int slots, long bytes){
+        sessions = _sessions;
+        sessionSlots = slots;
+        sessionTableBytes = bytes;
+    }
+
+    /**
+     * Clears the histograms, so that each snapshot covers the ticks since
+     * the previous one.
+     *
+     * @return the statistics since the previous call
+     */
+    public Snapshot snapshotAndReset(){
+        return new Snapshot(fanOutMicros.snapshotAndReset(), deliveryMicros.snapshotAndReset());
+    }
+
+    /**
+     * An immutable copy of the ShardStats.
+     */
+    public final class Snapshot{
+        private final Histogram.Snapshot fanOutMicrosSnapshot;
+
+        private final Histogram.Snapshot deliveryMicrosSnapshot;
+
+        private final int listeningClientsCount;
+
+        private final int sessionsCount;
+
+        private final int sessionSlotsCount;
+
+        private final long sessionTableBytesCount;
+
+        private Snapshot(Histogram.Snapshot _fanOutMicrosSnapshot, Histogram.Snapshot _deliveryMicrosSnapshot){
+            fanOutMicrosSnapshot = _fanOutMicrosSnapshot;
+            deliveryMicrosSnapshot = _deliveryMicrosSnapshot;
+            listeningClientsCount = listeningClients;
+            sessionsCount = sessions;
+            sessionSlotsCount = sessionSlots;
+            sessionTableBytesCount = sessionTableBytes;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        public int getListeningClients(){
+            return listeningClientsCount;
+        }
+
+        /**
+         * @return the sessions of the EventLoop, registered or not, 0 for a
+         * BroadcastShard
+         */
+        public int getSessions(){
+            return sessionsCount;
+        }
+
+        /**
+         * @return the slots of the SessionTable of the EventLoop, in use or
+         * free, 0 for a BroadcastShard
+         */
+        public int getSessionSlots(){
+            return sessionSlotsCount;
+        }
+
+        /**
+         * @return the estimated heap size of the SessionTable of the
+         * EventLoop in bytes, 0 for a BroadcastShard
+         */
+        public long getSessionTableBytes(){
+            return sessionTableBytesCount;
+        }
+
+        public Histogram.Snapshot getFanOutMicros(){
+            return fanOutMicrosSnapshot;
+        }
+
+        public Histogram.Snapshot getDeliveryMicros(){
+            return deliveryMicrosSnapshot;
+        }
+
+        /**
+         * @param format the format to print this Snapshot in
+         * @return this Snapshot on a single line, without the [name] header
+         * of toString(), which the Log adds
+         */
+        public String format(MetricsFormat format){
+            return format == MetricsFormat.JSON ? toJson() : toText();
+        }
+
+        public String toJson(){
+            return "{\"shard\":\"" + name + "\",\"listeningClients\":" + listeningClientsCount
+                    + ",\"sessions\":" + sessionsCount + ",\"sessionSlots\":" + sessionSlotsCount
+                    + ",\"sessionTableBytes\":" + sessionTableBytesCount
+                    + ",\"fanOutMicros\":" + ProducerMetrics.toJson(fanOutMicrosSnapshot)
+                    + ",\"deliveryMicros\":" + ProducerMetrics.toJson(deliveryMicrosSnapshot) + "}";
+        }
+
+        @Override
+        public String toString(){
+            return "[" + name + "] " + toText();
+        }
+
+        private String toText(){
+            String sessionTable = sessionSlotsCount == 0 ? "" : " sessions=" + sessionsCount + " sessionSlots=" + sessionSlotsCount
+                    + " sessionTableBytes=" + sessionTableBytesCount;
+            return "listeningClients=" + listeningClientsCount + sessionTable
+                    + " fanOut(us) " + fanOutMicrosSnapshot + " delivery(us) " + deliveryMicrosSnapshot;
+        }
+    }
+}
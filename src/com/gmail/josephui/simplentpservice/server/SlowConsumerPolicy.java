@@ -0,0 +1,42 @@
+package com.gmail.josephui.simplentpservice.server;
+
+/**
+ * This class provides the enumerate constants for what the Producer does when 
+ * the outbound queue of a Consumer reaches its high-water mark, that is when 
+ * the Consumer does not read its TIME messages as fast as they are sent.
+ * 
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+public enum SlowConsumerPolicy{
+    //The oldest queued TIME message is dropped to make room for the new one, 
+    //only the newest TIME message matters to the Consumer
+    DROP_STALE,
+    
+    //The connection to the Consumer is closed
+    DISCONNECT,
+    
+    //The Consumer is marked degraded and only its newest TIME message is 
+    //kept until it has caught up
+    DEGRADE;
+    
+/*------------------------------------------------------------------------------
+START STATIC
+------------------------------------------------------------------------------*/
+    
+    /**
+     * Looks up the policy by name, ignoring case and allowing '-' in place of 
+     * '_' so that "drop-stale" may be given on the command line.
+     * 
+     * @param name the name of the policy
+     * @return the matching policy, or null if there is none
+     */
+    public static SlowConsumerPolicy getByName(String name){
+        for(SlowConsumerPolicy policy : values()){
+            if(policy.name().equalsIgnoreCase(name.replace('-', '_'))){
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,31 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event recorded for each TIME broadcast, its duration is the fan-out
+ * duration. The event costs nothing unless a recording enables it.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+@Name("com.gmail.josephui.simplentpservice.TimeBroadcast")
+@Label("TIME Broadcast")
+@Category("SimpleNtpService")
+@Description("The TIME message sent to every listening Consumer of one Thread")
+@StackTrace(false)
+final class TimeBroadcastEvent extends Event{
+    @Label("Listening Clients")
+    int listeningClients;
+
+    @Label("Tick Lag")
+    @Description("How late the broadcast started after its scheduled time")
+    @Timespan(Timespan.NANOSECONDS)
+    long tickLag;
+}
@@ -0,0 +1,159 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.protocol.VarInt;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the TIME messages of a single client in the format it asked for in
+ * its REGISTER message. A client that asks for nothing gets the full TIME
+ * message, 10 bytes each, written one per write as before.
+ *
+ * A client asking for the compact format gets a full TIME message first,
+ * then TIME_DELTA messages carrying the difference with the previous time as
+ * a zigzag varint, which is 4 bytes for the default interval. A full TIME
+ * message is sent again every RESYNC_INTERVAL messages, so that a client that
+ * got a delta wrong does not stay wrong, and whenever the delta would not be
+ * smaller than the full time.
+ *
+ * A client may also ask for its TIME messages to be coalesced, batchSize of
+ * them being written at once with a single write.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class TimeEncoder{
+    /**
+     * The number of TIME messages between two full TIME messages of the
+     * compact format.
+     */
+    static final int RESYNC_INTERVAL = 64;
+
+    /**
+     * The most TIME messages coalesced into a single write.
+     */
+    static final int MAX_BATCH_SIZE = 16;
+
+    /**
+     * The size of the largest TIME message of any format, in bytes.
+     */
+    static final int MAX_MESSAGE_SIZE = ProducerPacketFactory.TIME_MESSAGE_PACKET_SIZE;
+
+    /**
+     * The values of the format byte of the REGISTER message.
+     */
+    private static final byte FULL_FORMAT = 0;
+
+    private static final byte COMPACT_FORMAT = 1;
+
+    /**
+     * The encoder of the clients that ask for neither the compact format nor
+     * batching, it holds no state so it is shared.
+     */
+    static final TimeEncoder DEFAULT = new TimeEncoder(false, 1);
+
+    /**
+     * Reads the format byte and the batch size byte that may follow the
+     * interval of a REGISTER message.
+     *
+     * @param payload the rest of the REGISTER message, 2 bytes
+     * @param highWaterMark the size of the outbound queue of the client, a
+     * batch is never larger than that
+     * @return the encoder of the client
+     * @throws ProtocolException if the format is unknown
+     */
+    static TimeEncoder read(ByteBuffer payload, int highWaterMark) throws ProtocolException{
+        byte format = payload.get();
+        if(format != FULL_FORMAT && format != COMPACT_FORMAT){
+            throw new ProtocolException("Unknown TIME format: " + format);
+        }
+        int batchSize = Math.max(1, Math.min(Math.min(MAX_BATCH_SIZE, highWaterMark), payload.get() & 0xFF));
+        if(format == FULL_FORMAT && batchSize == 1){
+            return DEFAULT;
+        }
+        return new TimeEncoder(format == COMPACT_FORMAT, batchSize);
+    }
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    private final boolean compact;
+
+    private final int batchSize;
+
+    /**
+     * The last time encoded, which the next delta is taken against.
+     */
+    private long previousTime;
+
+    /**
+     * The number of TIME_DELTA messages left before the next full TIME
+     * message, 0 when the next one has to be full.
+     */
+    private int untilResync;
+
+    /**
+     * The state saved by mark(), see reset().
+     */
+    private long markedPreviousTime;
+
+    private int markedUntilResync;
+
+    private TimeEncoder(boolean _compact, int _batchSize){
+        compact = _compact;
+        batchSize = _batchSize;
+    }
+
+    /**
+     * @return the number of TIME messages written at once
+     */
+    int getBatchSize(){
+        return batchSize;
+    }
+
+    boolean isCompact(){
+        return compact;
+    }
+
+    /**
+     * Appends the TIME message to buffer. This does not allocate.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @param buffer the buffer to append to, with at least MAX_MESSAGE_SIZE
+     * bytes remaining
+     */
+    void encode(long time, ByteBuffer buffer){
+        if(!compact){
+            ProducerPacketFactory.putTimeMessage(buffer, time);
+            return;
+        }
+        long delta = time - previousTime;
+        if(untilResync == 0 || VarInt.zigZagSize(delta) >= 8){
+            ProducerPacketFactory.putTimeMessage(buffer, time);
+            untilResync = RESYNC_INTERVAL - 1;
+        }else{
+            ProducerPacketFactory.putTimeDeltaMessage(buffer, delta);
+            untilResync--;
+        }
+        previousTime = time;
+    }
+
+    /**
+     * Saves the state of the compact format, before encoding messages that
+     * may not be written after all.
+     */
+    void mark(){
+        markedPreviousTime = previousTime;
+        markedUntilResync = untilResync;
+    }
+
+    /**
+     * Restores the state saved by mark(), the messages encoded since were
+     * not written and will be encoded again.
+     */
+    void reset(){
+        previousTime = markedPreviousTime;
+        untilResync = markedUntilResync;
+    }
+}
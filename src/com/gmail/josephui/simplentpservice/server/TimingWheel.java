@@ -0,0 +1,224 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import java.util.Collection;
+
+/**
+ * A hashed timing wheel keeping entries in buckets by time. Scheduling,
+ * rescheduling and cancelling an entry are O(1), and removing the entries
+ * older than a given time only touches the buckets up to that time, so the
+ * cost of each expiry pass depends on the number of entries that are due
+ * rather than on the total number of entries.
+ *
+ * An entry whose time lies more than one rotation of the wheel ahead shares
+ * its bucket with earlier entries and is skipped until it is due, so the span
+ * of the wheel (tickDuration * wheelSize) should exceed the time entries are
+ * typically scheduled ahead of the expiry pass.
+ *
+ * This class is not thread safe, callers accessing it from several Threads
+ * have to synchronize on it.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class TimingWheel<T>{
+    /**
+     * The default length of a bucket, in milliseconds.
+     */
+    static final long DEFAULT_TICK_DURATION = 100;
+
+    /**
+     * The default number of buckets. With the DEFAULT_TICK_DURATION this
+     * spans 12.8 seconds, which covers Producer.KEEP_ALIVE_TIME.
+     */
+    static final int DEFAULT_WHEEL_SIZE = 128;
+
+/*------------------------------------------------------------------------------
+START NON-STATIC
+------------------------------------------------------------------------------*/
+
+    /**
+     * The length of time covered by a bucket, in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The head of the doubly linked list of entries in each bucket.
+     */
+    private final Entry<T>[] buckets;
+
+    /**
+     * The tick of the oldest bucket that may still hold entries, or
+     * Long.MIN_VALUE before the first entry is scheduled.
+     */
+    private long cursorTick;
+
+    /**
+     * Set by the first expiry pass, until then the cursor follows the
+     * earliest entry scheduled.
+     */
+    private boolean cursorStarted;
+
+    /**
+     * The number of entries currently scheduled.
+     */
+    private int size;
+
+    TimingWheel(){
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long _tickDuration, int wheelSize){
+        if(_tickDuration <= 0 || wheelSize <= 0){
+            throw new IllegalArgumentException("tickDuration and wheelSize must be positive");
+        }
+        tickDuration = _tickDuration;
+        buckets = (Entry<T>[])new Entry<?>[wheelSize];
+        cursorTick = Long.MIN_VALUE;
+    }
+
+    /**
+     * Creates an entry for the given value, the entry is not scheduled until
+     * schedule(Entry, long) is called.
+     *
+     * @param value the value held by the entry
+     * @return the new entry
+     */
+    Entry<T> newEntry(T value){
+        return new Entry<T>(value);
+    }
+
+    /**
+     * Schedules the entry at the given time, moving it out of its previous
+     * bucket if it was already scheduled.
+     *
+     * @param entry the entry to schedule
+     * @param time the time in milliseconds since the epoch
+     */
+    void schedule(Entry<T> entry, long time){
+        if(entry.scheduled){
+            unlink(entry);
+        }
+        long tick = time / tickDuration;
+        if(cursorTick == Long.MIN_VALUE || (!cursorStarted && tick < cursorTick)){
+            cursorTick = tick;
+        }else if(tick < cursorTick){
+            //Already behind the cursor, keep it where the next expiry pass
+            //will see it
+            tick = cursorTick;
+        }
+        entry.time = time;
+        link(entry, (int)(tick % buckets.length));
+    }
+
+    /**
+     * Removes the entry from the wheel, this does nothing if the entry is not
+     * scheduled.
+     *
+     * @param entry the entry to remove
+     */
+    void cancel(Entry<T> entry){
+        if(entry.scheduled){
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Removes every entry scheduled before timeMinimum and adds its value to
+     * expired.
+     *
+     * @param timeMinimum the time in milliseconds since the epoch
+     * @param expired the collection the values of the removed entries are
+     * added to
+     * @return the number of removed entries
+     */
+    int expireOlderThan(long timeMinimum, Collection<? super T> expired){
+        if(size == 0 || cursorTick == Long.MIN_VALUE){
+            return 0;
+        }
+        long lastTick = timeMinimum / tickDuration;
+        int removed = 0;
+        //A full rotation is enough to visit every bucket once
+        long endTick = Math.min(lastTick, cursorTick + buckets.length - 1);
+        for(long tick = cursorTick; tick <= endTick && size > 0; tick++){
+            Entry<T> entry = buckets[(int)(tick % buckets.length)];
+            while(entry != null){
+                Entry<T> next = entry.next;
+                if(entry.time < timeMinimum){
+                    unlink(entry);
+                    expired.add(entry.value);
+                    removed++;
+                }
+                entry = next;
+            }
+        }
+        //The bucket holding timeMinimum may still receive entries that are
+        //not due yet, so the cursor stops there
+        if(lastTick > cursorTick){
+            cursorTick = lastTick;
+        }
+        cursorStarted = true;
+        return removed;
+    }
+
+    /**
+     * @return the number of entries currently scheduled
+     */
+    int size(){
+        return size;
+    }
+
+    private void link(Entry<T> entry, int bucket){
+        Entry<T> head = buckets[bucket];
+        entry.bucket = bucket;
+        entry.prev = null;
+        entry.next = head;
+        if(head != null){
+            head.prev = entry;
+        }
+        buckets[bucket] = entry;
+        entry.scheduled = true;
+        size++;
+    }
+
+    private void unlink(Entry<T> entry){
+        if(entry.prev != null){
+            entry.prev.next = entry.next;
+        }else{
+            buckets[entry.bucket] = entry.next;
+        }
+        if(entry.next != null){
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.scheduled = false;
+        size--;
+    }
+
+    /**
+     * A value scheduled in the TimingWheel, the entry is the node of its
+     * bucket's linked list so that rescheduling does not allocate.
+     */
+    static final class Entry<T>{
+        private final T value;
+
+        private long time;
+
+        private int bucket;
+
+        private boolean scheduled;
+
+        private Entry<T> prev;
+
+        private Entry<T> next;
+
+        private Entry(T _value){
+            value = _value;
+        }
+
+        T getValue(){
+            return value;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.gmail.josephui.simplentpservice.server;
+
+import com.gmail.josephui.simplentpservice.ClockSource;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Admits the accepted connections at a controlled rate, so that a reconnect
+ * storm, such as every Consumer reconnecting at once after the Producer has
+ * restarted, is absorbed by the listen backlog instead of by the Threads and
+ * the sessions it would otherwise create all at once.
+ *
+ * The bucket holds up to burst tokens and is refilled with rate tokens per
+ * second, each admitted connection takes one. The connections that do not
+ * get a token wait in the listen backlog of the ServerSocket. The seconds are
+ * those of the default ClockSource.
+ *
+ * @author Joseph Hui
+ * @version 2015.1.17
+ */
+final class TokenBucket{
+    /**
+     * The nanoseconds it takes to refill one token.
+     */
+    private final long nanosPerToken;
+
+    private final double burst;
+
+    private final ClockSource clock;
+
+    /**
+     * The tokens left, as of lastRefillNanos.
+     */
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    /**
+     * @param rate the tokens added per second
+     * @param _burst the most tokens held, which is how many connections are
+     * admitted at once after a quiet period
+     */
+    TokenBucket(int rate, int _burst){
+        if(rate <= 0){
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        if(_burst <= 0){
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        nanosPerToken = 1000000000L / rate;
+        burst = _burst;
+        tokens = _burst;
+        clock = ClockSource.getDefault();
+        lastRefillNanos = clock.nanoTime();
+    }
+
+    private void refill(long now){
+        tokens = Math.min(burst, tokens + (double)(now - lastRefillNanos) / nanosPerToken);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Takes a token if there is one, without waiting.
+     *
+     * @return true if a token was taken
+     */
+    synchronized boolean tryAcquire(){
+        refill(clock.nanoTime());
+        if(tokens >= 1){
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a token taken by tryAcquire() that was not used, as when no
+     * connection was waiting after all.
+     */
+    synchronized void refund(){
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    /**
+     * @return the nanoseconds until the next token is available, 0 if there
+     * is one
+     */
+    synchronized long nanosUntilNextToken(){
+        refill(clock.nanoTime());
+        return tokens >= 1 ? 0 : (long)((1 - tokens) * nanosPerToken);
+    }
+
+    /**
+     * Takes a token, parking the calling Thread until there is one.
+     *
+     * @return the nanoseconds spent waiting for it, 0 if there was one
+     */
+    long acquire(){
+        if(tryAcquire()){
+            return 0;
+        }
+        long startNanos = clock.nanoTime();
+        do{
+            LockSupport.parkNanos(clock.toRealNanos(nanosUntilNextToken()));
+        }while(!tryAcquire());
+        return clock.nanoTime() - startNanos;
+    }
+}